@@ -32,6 +32,7 @@ package org.uecide;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.commons.io.input.*;
 
@@ -49,6 +50,9 @@ public class APT {
 
     ArrayList<Source>sources = new ArrayList<Source>();
 
+    // How many packages to download at once.
+    static final int DOWNLOAD_THREADS = 4;
+
     public APT(String rootPath) throws FileNotFoundException, IOException {
         root = new File(rootPath);
         initRepository();
@@ -419,20 +423,69 @@ System.err.println("Required package " + p.getName());
         return true;
     }
 
+    /*! Download a set of packages into the cache, several at a time.
+     *  Returns the packages that could not be downloaded.
+     */
+    public ArrayList<Package> fetchPackages(Collection<Package> pkgs) {
+        final ArrayList<Package> failed = new ArrayList<Package>();
+        ArrayList<Package> needed = new ArrayList<Package>();
+
+        for (Package pkg : pkgs) {
+            if (!needed.contains(pkg)) {
+                needed.add(pkg);
+            }
+        }
+
+        // Just the one?  Then we can show the full progress bar.
+        if (needed.size() == 1) {
+            if (!needed.get(0).fetchPackage(cacheFolder)) {
+                failed.add(needed.get(0));
+            }
+            return failed;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(DOWNLOAD_THREADS);
+        for (final Package pkg : needed) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (!pkg.fetchPackage(cacheFolder, false)) {
+                        synchronized (failed) {
+                            failed.add(pkg);
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Base.exception(e);
+        }
+        return failed;
+    }
+
     public void upgradePackage(Package p) throws FileNotFoundException, IOException{
         if (!isUpgradable(p)) {
             return;
         }
         Package[] deps = resolveDepends(p);
+        ArrayList<Package> toFetch = new ArrayList<Package>();
         for (Package dep : deps) {
             if (!isInstalled(dep) || isUpgradable(dep)) {
-                if (!dep.fetchPackage(cacheFolder)) {
-                    System.err.println("Error downloading " + dep + " (fetch dep failed)");
-                    return;
-                }
+                toFetch.add(dep);
             }
         }
-        if (!p.fetchPackage(cacheFolder)) {
+        toFetch.add(p);
+
+        ArrayList<Package> failed = fetchPackages(toFetch);
+        for (Package dep : failed) {
+            if (dep != p) {
+                System.err.println("Error downloading " + dep + " (fetch dep failed)");
+                return;
+            }
+        }
+        if (failed.contains(p)) {
             System.err.println("Error downloading " + p + " (fetch failed)");
         }
 
@@ -450,15 +503,22 @@ System.err.println("Required package " + p.getName());
     }
     public void installPackage(Package p) throws FileNotFoundException, IOException{
         Package[] deps = resolveDepends(p);
+        ArrayList<Package> toFetch = new ArrayList<Package>();
         for (Package dep : deps) {
             if (!isInstalled(dep)) {
-                if (!dep.fetchPackage(cacheFolder)) {
-                    System.err.println("Error downloading " + dep);
-                    return;
-                }
+                toFetch.add(dep);
+            }
+        }
+        toFetch.add(p);
+
+        ArrayList<Package> failed = fetchPackages(toFetch);
+        for (Package dep : failed) {
+            if (dep != p) {
+                System.err.println("Error downloading " + dep);
+                return;
             }
         }
-        if (!p.fetchPackage(cacheFolder)) {
+        if (failed.contains(p)) {
             System.err.println("Error downloading " + p);
         }
 
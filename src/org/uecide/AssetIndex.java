@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+
+/*! The AssetIndex saves the work done at startup finding and parsing all
+ *  the cores, boards, compilers, programmers and tools, so that the next
+ *  start can skip it.
+ *
+ *  Two things are kept in cache/assets.idx: the list of configuration files
+ *  found by the FileCache, along with the modification time of every folder
+ *  searched to find them, and the parsed content of each configuration
+ *  file, along with its size and modification time.  Anything that no
+ *  longer matches what's on disk is simply looked for or parsed again.
+ */
+public class AssetIndex {
+
+    static final String INDEX_NAME = "assets.idx";
+    static final int INDEX_FORMAT = 1;
+
+    static class Entry {
+        long modified;
+        long length;
+        TreeMap<String, String> properties;
+        TreeMap<String, String> embedded;
+        TreeMap<String, String> embeddedTypes;
+    }
+
+    static boolean loaded = false;
+    static boolean dirty = false;
+
+    static ArrayList<String> roots = new ArrayList<String>();
+    static HashMap<String, Long> folders = new HashMap<String, Long>();
+    static ArrayList<String> files = new ArrayList<String>();
+    static HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    // Files asked for since the index was loaded.  Only these get saved.
+    static HashSet<String> used = new HashSet<String>();
+
+    static File getIndexFile() {
+        return new File(Base.getCacheFolder(), INDEX_NAME);
+    }
+
+    static ArrayList<String> getPaths(Collection<File> list) {
+        ArrayList<String> out = new ArrayList<String>();
+        for (File f : list) {
+            out.add(f.getAbsolutePath());
+        }
+        return out;
+    }
+
+    /*! Fill the FileCache from the index if the same folders were searched
+     *  last time and none of them have changed since.  Returns false if the
+     *  folders need to be searched again.
+     */
+    public static synchronized boolean restoreFileCache(Collection<File> searchRoots) {
+        load();
+
+        if (!roots.equals(getPaths(searchRoots))) {
+            return false;
+        }
+
+        if (folders.size() == 0) {
+            return false;
+        }
+
+        for (String folder : folders.keySet()) {
+            if (new File(folder).lastModified() != folders.get(folder)) {
+                return false;
+            }
+        }
+
+        FileCache.files = new ArrayList<String>(files);
+        FileCache.folders = new HashMap<String, Long>(folders);
+        return true;
+    }
+
+    /*! Remember what the FileCache found for next time. */
+    public static synchronized void storeFileCache(Collection<File> searchRoots) {
+        load();
+        roots = getPaths(searchRoots);
+        folders = new HashMap<String, Long>(FileCache.folders);
+        files = new ArrayList<String>(FileCache.files);
+        dirty = true;
+    }
+
+    /*! Load a configuration file, using the parsed copy in the index if the
+     *  file hasn't changed.
+     */
+    public static PropertyFile loadPropertyFile(File f) {
+        String key = f.getAbsolutePath();
+        long modified = f.lastModified();
+        long length = f.length();
+
+        synchronized (AssetIndex.class) {
+            load();
+            used.add(key);
+            Entry e = entries.get(key);
+            if ((e != null) && (e.modified == modified) && (e.length == length)) {
+                return new PropertyFile(f, e.properties, e.embedded, e.embeddedTypes);
+            }
+        }
+
+        PropertyFile pf = new PropertyFile(f);
+
+        // Anything pulled in with @include could change without this file
+        // changing, so those files are never cached.
+        if (pf.hasIncludes) {
+            return pf;
+        }
+
+        Entry e = new Entry();
+        e.modified = modified;
+        e.length = length;
+        e.properties = new TreeMap<String, String>(pf.properties);
+        e.embedded = new TreeMap<String, String>(pf.getEmbeddedMap());
+        e.embeddedTypes = new TreeMap<String, String>(pf.getEmbeddedTypes());
+
+        synchronized (AssetIndex.class) {
+            entries.put(key, e);
+            dirty = true;
+        }
+
+        return pf;
+    }
+
+    static void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        File indexFile = getIndexFile();
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != INDEX_FORMAT) {
+                    return;
+                }
+
+                ArrayList<String> r = new ArrayList<String>();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    r.add(readString(in));
+                }
+
+                HashMap<String, Long> d = new HashMap<String, Long>();
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = readString(in);
+                    d.put(name, in.readLong());
+                }
+
+                ArrayList<String> fl = new ArrayList<String>();
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    fl.add(readString(in));
+                }
+
+                HashMap<String, Entry> el = new HashMap<String, Entry>();
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = readString(in);
+                    Entry e = new Entry();
+                    e.modified = in.readLong();
+                    e.length = in.readLong();
+                    e.properties = readMap(in);
+                    e.embedded = readMap(in);
+                    e.embeddedTypes = readMap(in);
+                    el.put(name, e);
+                }
+
+                roots = r;
+                folders = d;
+                files = fl;
+                entries = el;
+            } finally {
+                in.close();
+            }
+        } catch (Exception ex) {
+            // A damaged index just means everything gets loaded the slow way.
+            Base.exception(ex);
+        }
+    }
+
+    /*! Write the index out to the cache folder if anything has changed. */
+    public static synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFile())));
+            try {
+                out.writeInt(INDEX_FORMAT);
+
+                out.writeInt(roots.size());
+                for (String r : roots) {
+                    writeString(out, r);
+                }
+
+                out.writeInt(folders.size());
+                for (String d : folders.keySet()) {
+                    writeString(out, d);
+                    out.writeLong(folders.get(d));
+                }
+
+                out.writeInt(files.size());
+                for (String f : files) {
+                    writeString(out, f);
+                }
+
+                ArrayList<String> keep = new ArrayList<String>();
+                for (String name : entries.keySet()) {
+                    if (used.contains(name)) {
+                        keep.add(name);
+                    }
+                }
+
+                out.writeInt(keep.size());
+                for (String name : keep) {
+                    Entry e = entries.get(name);
+                    writeString(out, name);
+                    out.writeLong(e.modified);
+                    out.writeLong(e.length);
+                    writeMap(out, e.properties);
+                    writeMap(out, e.embedded);
+                    writeMap(out, e.embeddedTypes);
+                }
+            } finally {
+                out.close();
+            }
+            dirty = false;
+        } catch (Exception ex) {
+            Base.exception(ex);
+        }
+    }
+
+    // DataOutputStream.writeUTF() can't cope with more than 64K, which an
+    // embedded script could easily be.
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    static void writeMap(DataOutputStream out, TreeMap<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+    }
+
+    static TreeMap<String, String> readMap(DataInputStream in) throws IOException {
+        TreeMap<String, String> map = new TreeMap<String, String>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String k = readString(in);
+            map.put(k, readString(in));
+        }
+        return map;
+    }
+}
@@ -31,16 +31,42 @@
 package org.uecide;
 
 
-public class BackgroundLibraryCompileService extends Service {
+import java.io.File;
+import java.util.Set;
+
+/*! Compiles the libraries used by open sketches in the background.  While
+ *  the FileWatchService is watching, this only does anything after files
+ *  have changed or wake() has been called; otherwise it checks every five
+ *  seconds.
+ */
+public class BackgroundLibraryCompileService extends Service implements FileChangeListener {
+
+    static volatile boolean pending = true;
+
     public BackgroundLibraryCompileService() {
         setName("Background Library Compile");
         setInterval(5000);
+        FileWatchService.addListener(this);
     }
 
     public void setup() { }
     public void cleanup() { }
 
+    /*! Ask for the libraries to be checked the next time round. */
+    public static void wake() {
+        pending = true;
+    }
+
+    public void filesChanged(Set<File> files) {
+        pending = true;
+    }
+
     public void loop() {
+        if (FileWatchService.isWatching() && !pending) {
+            return;
+        }
+        pending = false;
+
         synchronized (Editor.editorList) {
             for (Editor e : Editor.editorList) {
                 if (!e.compilerRunning()) {
@@ -52,6 +78,9 @@ public class BackgroundLibraryCompileService extends Service {
                             e.loadedSketch.precompileLibrary(lib);
                         }
                     }
+                } else {
+                    // Come back to this one once it has finished compiling.
+                    pending = true;
                 }
             }
         }
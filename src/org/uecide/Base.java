@@ -50,6 +50,7 @@ import org.uecide.varcmd.VariableCommand;
 import java.lang.reflect.*;
 
 import java.util.regex.*;
+import java.util.function.Supplier;
 
 
 import java.security.*;
@@ -230,24 +231,41 @@ public class Base {
     public static String presetProgrammer = null;
 
     public static boolean cleanBuild = false;
+    public static String diagnosticsReport = null;
     public static boolean purgeCache = false;
 
     public static boolean extraDebug = false;
 
     static public void cacheSystemFilesFromList(File[] list) {
-        for (File f : list) {
-            Debug.message("Caching " + f);
+        for (final File f : list) {
+            Debug.trace(new Supplier<String>() {
+                public String get() {
+                    return "Caching " + f;
+                }
+            });
             FileCache.add(f);
         }
     }
 
     static public void cacheSystemFiles() {
-        cacheSystemFilesFromList(getCoresFolders());
-        cacheSystemFilesFromList(getToolsFolders());
-        cacheSystemFilesFromList(getProgrammersFolders());
-        cacheSystemFilesFromList(getBoardsFolders());
-        cacheSystemFilesFromList(getCompilersFolders());
-        cacheSystemFilesFromList(getIconsFolders());
+        ArrayList<File> roots = new ArrayList<File>();
+        roots.addAll(Arrays.asList(getCoresFolders()));
+        roots.addAll(Arrays.asList(getToolsFolders()));
+        roots.addAll(Arrays.asList(getProgrammersFolders()));
+        roots.addAll(Arrays.asList(getBoardsFolders()));
+        roots.addAll(Arrays.asList(getCompilersFolders()));
+        roots.addAll(Arrays.asList(getIconsFolders()));
+
+        // Nothing has been added or removed since last time, so there's no
+        // need to go looking for it all again.
+        if (AssetIndex.restoreFileCache(roots)) {
+            Debug.message("Using cached list of system files");
+            return;
+        }
+
+        FileCache.clear();
+        cacheSystemFilesFromList(roots.toArray(new File[0]));
+        AssetIndex.storeFileCache(roots);
 // I'd love to cache the library tree and parse it, but that would make
 // categories suck big time.
 //        cacheSystemFilesFromList(getLibrariesFolders()); 
@@ -272,6 +290,7 @@ public class Base {
         cli.addParameter("purge",               "",         Boolean.class,  "cli.help.purge");
         cli.addParameter("help",                "",         Boolean.class,  "cli.help.help");
         cli.addParameter("log",                 "file",     String.class,   "cli.help.log");
+        cli.addParameter("diagnostics",         "file",     String.class,   "cli.help.diagnostics");
 
         cli.addParameter("update",              "",         Boolean.class,  "cli.help.update");
         cli.addParameter("install",             "package",  String.class,   "cli.help.install");
@@ -311,11 +330,10 @@ public class Base {
 
         if (cli.isSet("log")) {
             File f = new File(cli.getString("log"));
-            FileOutputStream fos = new FileOutputStream(f);
-            PrintStream ps = new PrintStream(fos);
             System.out.println("Logging to " + f.getAbsolutePath());
-            System.setErr(ps);
-            System.setOut(ps);
+            Debug.setLogFile(f);
+            System.setErr(Debug.getLogStream());
+            System.setOut(Debug.getLogStream());
         }
 
         Authenticator.setDefault(new Authenticator() {
@@ -361,6 +379,7 @@ public class Base {
         presetProgrammer = cli.getString("programmer");
         purgeCache = cli.isSet("purge");
         cleanBuild = cli.isSet("clean");
+        diagnosticsReport = cli.getString("diagnostics");
 
 
         if(!cli.isSet("exceptions")) {
@@ -406,6 +425,7 @@ public class Base {
 
         preferences = new PropertyFile(getDataFile("preferences.txt"), "/org/uecide/config/preferences.txt");
         preferences.setPlatformAutoOverride(true);
+        Debug.loadPreferences();
 
         if (preferences.getBoolean("editor.hwaccel")) {
             Properties props = System.getProperties();
@@ -974,6 +994,7 @@ public class Base {
             System.exit(0);
         }
 
+        ServiceManager.addService(new FileWatchService());
         ServiceManager.addService(new UsbDiscoveryService());
         ServiceManager.addService(new BackgroundLibraryCompileService());
         ServiceManager.addService(new ChangedFileService());
@@ -1103,14 +1124,18 @@ System.err.println("Loading class " + className);
 
         if(e == null) {
             if(autoProgram) {
-                if(!s.build()) {
+                boolean built = s.build();
+                writeDiagnosticsReport(s);
+                if(!built) {
                     System.exit(10);
                 }
                 if (!s.upload()) {
                     System.exit(10);
                 }
             } else if(autoCompile) {
-                if (!s.build()) {
+                boolean built = s.build();
+                writeDiagnosticsReport(s);
+                if (!built) {
                     System.exit(10);
                 }
             }
@@ -1125,6 +1150,21 @@ System.err.println("Loading class " + className);
         return true;
     }
 
+    /*! Write the diagnostics from the last build of a sketch to the file given
+     *  with --diagnostics, if there was one.
+     */
+    static void writeDiagnosticsReport(Sketch s) {
+        if (diagnosticsReport == null) {
+            return;
+        }
+        try {
+            s.getDiagnostics().writeReport(new File(diagnosticsReport));
+        } catch (IOException ex) {
+            Base.exception(ex);
+            Base.error(ex);
+        }
+    }
+
     /*! Initialize any platform specific settings */
     static protected void initPlatform() {
         try {
@@ -2850,54 +2890,54 @@ System.err.println("Loading class " + className);
     }
 
     public static void waitForAssetLoading() {
-//        while (coreLoaderThread != null) {
-//            try {
-//                coreLoaderThread.join();
-//                coreLoaderThread = null;
-//            } catch (Exception e) {
-//            }
-//        }
-//
-//        while (compilerLoaderThread != null) {
-//            try {
-//                compilerLoaderThread.join();
-//                compilerLoaderThread = null;
-//            } catch (Exception e) {
-//            }
-//        }
-//
-//        while (boardLoaderThread != null) {
-//            try {
-//                boardLoaderThread.join();
-//                boardLoaderThread = null;
-//            } catch (Exception e) {
-//            }
-//        }
-//       
-//        while (programmerLoaderThread != null) {
-//            try {
-//                programmerLoaderThread.join();
-//                programmerLoaderThread = null;
-//            } catch (Exception e) {
-//            }
-//        }
-//       
-//        while (toolLoaderThread != null) {
-//            try {
-//                toolLoaderThread.join();
-//                toolLoaderThread = null;
-//            } catch (Exception e) {
-//            }
-//        }
-//       
-//        while (libraryLoaderThread != null) {
-//            try {
-//                libraryLoaderThread.join();
-//                libraryLoaderThread = null;
-//            } catch (Exception e) {
-//            }
-//        }
-//
+        while (coreLoaderThread != null) {
+            try {
+                coreLoaderThread.join();
+                coreLoaderThread = null;
+            } catch (Exception e) {
+            }
+        }
+
+        while (compilerLoaderThread != null) {
+            try {
+                compilerLoaderThread.join();
+                compilerLoaderThread = null;
+            } catch (Exception e) {
+            }
+        }
+
+        while (boardLoaderThread != null) {
+            try {
+                boardLoaderThread.join();
+                boardLoaderThread = null;
+            } catch (Exception e) {
+            }
+        }
+       
+        while (programmerLoaderThread != null) {
+            try {
+                programmerLoaderThread.join();
+                programmerLoaderThread = null;
+            } catch (Exception e) {
+            }
+        }
+       
+        while (toolLoaderThread != null) {
+            try {
+                toolLoaderThread.join();
+                toolLoaderThread = null;
+            } catch (Exception e) {
+            }
+        }
+       
+        while (libraryLoaderThread != null) {
+            try {
+                libraryLoaderThread.join();
+                libraryLoaderThread = null;
+            } catch (Exception e) {
+            }
+        }
+
 //        while (cleanupThread != null) {
 //            try {
 //                cleanupThread.join();
@@ -2925,18 +2965,34 @@ System.err.println("Loading class " + className);
 
         loadManualPages();
 
-        Debug.message("Loading cores");
-        loadCores();
-//        waitForAssetLoading();
-
-        Debug.message("Loading compilers");
-        loadCompilers();
-
-        Debug.message("Loading boards");
-        loadBoards();
-
-        Debug.message("Loading programmers");
-        loadProgrammers();
+        // Cores, compilers, boards and programmers don't depend on each
+        // other, so they can all be loaded at once.
+        Debug.message("Loading cores, compilers, boards and programmers");
+        coreLoaderThread = new Thread("core-loader") {
+            public void run() {
+                loadCores();
+            }
+        };
+        compilerLoaderThread = new Thread("compiler-loader") {
+            public void run() {
+                loadCompilers();
+            }
+        };
+        boardLoaderThread = new Thread("board-loader") {
+            public void run() {
+                loadBoards();
+            }
+        };
+        programmerLoaderThread = new Thread("programmer-loader") {
+            public void run() {
+                loadProgrammers();
+            }
+        };
+        coreLoaderThread.start();
+        compilerLoaderThread.start();
+        boardLoaderThread.start();
+        programmerLoaderThread.start();
+        waitForAssetLoading();
 
         Debug.message("Loading tools");
         loadTools();
@@ -2951,7 +3007,7 @@ System.err.println("Loading class " + className);
         Debug.message("Loading libraries");
         gatherLibraries();
 
-//        waitForAssetLoading();
+        AssetIndex.save();
 
         Debug.message("Loading assets done");
         IconManager.setIconFamily(Preferences.get("theme.icons"));
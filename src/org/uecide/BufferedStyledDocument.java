@@ -92,12 +92,20 @@ class BufferedStyledDocument extends DefaultStyledDocument {
     /** insert the buffered strings */
 
     public synchronized void insertAll() {
+        if (elements.size() == 0) {
+            hasAppendage = false;
+            return;
+        }
+
         ElementSpec[] elementArray = new ElementSpec[elements.size()];
         elements.toArray(elementArray);
 
         try {
-            // check how many lines have been used so far
-            // if too many, shave off a few lines from the beginning
+            super.insert(super.getLength(), elementArray);
+
+            // check how many lines have been used now that the new text
+            // is in.  if too many, shave off a few lines from the beginning
+            // so a big batch can't leave us over the limit.
             Element element = super.getDefaultRootElement();
             int lineCount = element.getElementCount();
             int overage = lineCount - maxLineCount;
@@ -105,18 +113,15 @@ class BufferedStyledDocument extends DefaultStyledDocument {
             if(overage > 0) {
                 // if 1200 lines, and 1000 lines is max,
                 // find the position of the end of the 200th line
-                //systemOut.println("overage is " + overage);
-                Element lineElement = element.getElement(overage);
+                Element lineElement = element.getElement(overage - 1);
 
-                if(lineElement == null) return;   // do nuthin
-
-                int endOffset = lineElement.getEndOffset();
-                // remove to the end of the 200th line
-                super.remove(0, endOffset);
+                if(lineElement != null) {
+                    int endOffset = lineElement.getEndOffset();
+                    // remove to the end of the 200th line
+                    super.remove(0, Math.min(endOffset, super.getLength()));
+                }
             }
 
-            super.insert(super.getLength(), elementArray);
-
         } catch(BadLocationException e) {
             Base.exception(e);
             // ignore the error otherwise this will cause an infinite loop
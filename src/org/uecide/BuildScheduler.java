@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/*! The BuildScheduler runs the steps of a build on a fixed size pool of
+ *  threads.  Each step is a Task which may depend on any number of other
+ *  tasks; a task is only started once everything it depends on has finished
+ *  successfully.  As soon as any task fails nothing new is started, and the
+ *  build as a whole fails once the running tasks have drained.
+ *
+ *  Progress can be reported to the Context as tasks complete, scaled into
+ *  the range given by setProgressRange().
+ */
+public class BuildScheduler {
+
+    public static final int PENDING = 0;
+    public static final int RUNNING = 1;
+    public static final int DONE = 2;
+    public static final int FAILED = 3;
+    public static final int SKIPPED = 4;
+
+    /*! A Job is the work done by a task.  Return false to fail the build. */
+    public static interface Job {
+        public boolean run() throws Exception;
+    }
+
+    public class Task {
+        String name;
+        Job job;
+        int state = PENDING;
+        int waiting = 0;
+        ArrayList<Task> dependents = new ArrayList<Task>();
+
+        Task(String n, Job j) {
+            name = n;
+            job = j;
+        }
+
+        public String getName() { return name; }
+        public int getState() { synchronized (BuildScheduler.this) { return state; } }
+
+        public String toString() { return name; }
+    }
+
+    Context ctx;
+    ExecutorService executor = null;
+    int threads;
+
+    ArrayList<Task> tasks = new ArrayList<Task>();
+    int outstanding = 0;
+    int completed = 0;
+    boolean failed = false;
+    boolean started = false;
+
+    boolean reportProgress = false;
+    int progressStart = 0;
+    int progressEnd = 100;
+
+    /*! Create a new scheduler with the number of threads set in the preferences. */
+    public BuildScheduler(Context c) {
+        this(c, getThreadCount());
+    }
+
+    public BuildScheduler(Context c, int t) {
+        ctx = c;
+        threads = t < 1 ? 1 : t;
+    }
+
+    /*! The number of threads to use for a build.  This is the *compiler.threads*
+     *  preference, or the number of available processors if that isn't set.
+     */
+    public static int getThreadCount() {
+        int t = Preferences.getInteger("compiler.threads");
+        if (t <= 0) {
+            t = Runtime.getRuntime().availableProcessors();
+        }
+        return t;
+    }
+
+    /*! Report progress to the context, scaled between *start* and *end*.  No
+     *  progress is reported unless this has been called.
+     */
+    public void setProgressRange(int start, int end) {
+        reportProgress = true;
+        progressStart = start;
+        progressEnd = end;
+    }
+
+    /*! Add a new task that will run once all the listed tasks have completed. */
+    public synchronized Task add(String name, Job job, Task... after) {
+        return add(name, job, Arrays.asList(after));
+    }
+
+    /*! Add a new task that will run once all the listed tasks have completed. */
+    public synchronized Task add(String name, Job job, Collection<Task> after) {
+        Task t = new Task(name, job);
+        tasks.add(t);
+        outstanding++;
+
+        for (Task dep : after) {
+            if (dep == null) {
+                continue;
+            }
+            if (dep.state == FAILED || dep.state == SKIPPED) {
+                t.state = SKIPPED;
+            } else if (dep.state != DONE) {
+                t.waiting++;
+                dep.dependents.add(t);
+            }
+        }
+
+        if (t.state == SKIPPED) {
+            outstanding--;
+            failed = true;
+        } else if (started && (t.waiting == 0)) {
+            dispatch(t);
+        }
+
+        return t;
+    }
+
+    /*! Get a copy of the list of all the tasks added so far. */
+    public synchronized ArrayList<Task> getTasks() {
+        return new ArrayList<Task>(tasks);
+    }
+
+    /*! Start all the tasks that are ready and wait for everything to finish.
+     *  Returns true if every task succeeded.
+     */
+    public boolean run() {
+        synchronized (this) {
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    int num = 0;
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "build-" + (num++));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+
+            started = true;
+
+            for (Task t : tasks) {
+                if ((t.state == PENDING) && (t.waiting == 0)) {
+                    dispatch(t);
+                }
+            }
+
+            while (outstanding > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    failed = true;
+                    break;
+                }
+            }
+
+            return !failed;
+        }
+    }
+
+    /*! Stop accepting work and release the threads. */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /*! Stop starting new tasks.  Anything already running will finish. */
+    public synchronized void cancel() {
+        failed = true;
+        skipPending();
+    }
+
+    public synchronized boolean hasFailed() {
+        return failed;
+    }
+
+    // Must be called with the lock held.
+    void dispatch(final Task t) {
+        if (failed) {
+            t.state = SKIPPED;
+            outstanding--;
+            notifyAll();
+            return;
+        }
+
+        t.state = RUNNING;
+        executor.execute(new Runnable() {
+            public void run() {
+                boolean ok = false;
+                try {
+                    ok = t.job.run();
+                } catch (Exception ex) {
+                    Base.exception(ex);
+                    ctx.error(ex);
+                } finally {
+                    // Always account for the task, even if it died with an
+                    // Error, or run() would wait for it forever.
+                    finished(t, ok);
+                }
+            }
+        });
+    }
+
+    synchronized void finished(Task t, boolean ok) {
+        outstanding--;
+        completed++;
+
+        if (ok) {
+            t.state = DONE;
+            for (Task d : t.dependents) {
+                d.waiting--;
+                if ((d.state == PENDING) && (d.waiting == 0)) {
+                    dispatch(d);
+                }
+            }
+        } else {
+            t.state = FAILED;
+            Debug.message("Build task " + t.getName() + " failed");
+            failed = true;
+            skipPending();
+        }
+
+        int total = completed + outstanding;
+        if (reportProgress && (total > 0)) {
+            ctx.progress(progressStart + ((progressEnd - progressStart) * completed / total));
+        }
+
+        notifyAll();
+    }
+
+    // Must be called with the lock held.
+    void skipPending() {
+        for (Task t : tasks) {
+            if (t.state == PENDING) {
+                t.state = SKIPPED;
+                outstanding--;
+            }
+        }
+        notifyAll();
+    }
+}
@@ -30,10 +30,18 @@
 
 package org.uecide;
 
-public class ChangedFileService extends Service {
+import java.io.File;
+import java.util.Set;
+
+/*! Reloads files that have been changed outside the IDE.  Normally this is
+ *  driven by the FileWatchService; if that isn't able to watch the files
+ *  then every open tab is checked once a second instead.
+ */
+public class ChangedFileService extends Service implements FileChangeListener {
     public ChangedFileService() {
         setName("Changed Files");
         setInterval(1000);
+        FileWatchService.addListener(this);
     }
 
     public void setup() {
@@ -43,6 +51,22 @@ public class ChangedFileService extends Service {
     }
 
     public void loop() {
+        if (FileWatchService.isWatching()) {
+            return;
+        }
+        checkEditors(null);
+    }
+
+    public void filesChanged(Set<File> files) {
+        if (!isRunning()) {
+            return;
+        }
+        checkEditors(files);
+    }
+
+    // Check the tabs of every editor for files that need reloading.  If
+    // *files* is given only tabs for those files are looked at.
+    void checkEditors(Set<File> files) {
         for (Editor ed : Editor.editorList) {
             if (!ed.compilerRunning()) {
                 int tabs = ed.getTabCount();
@@ -51,6 +75,9 @@ public class ChangedFileService extends Service {
                     if (tl == null) {
                         continue;
                     }
+                    if ((files != null) && ((tl.getFile() == null) || !files.contains(tl.getFile().getAbsoluteFile()))) {
+                        continue;
+                    }
                     if (tl.needsReload()) {
                         if(tl.isModified()) {
                             tl.askReload();
@@ -59,8 +86,17 @@ public class ChangedFileService extends Service {
                         }
                     }
                 }
-                ed.updateSketchConfig();
+                if ((files == null) || configChanged(ed, files)) {
+                    ed.updateSketchConfig();
+                }
             }
         }
     }
+
+    boolean configChanged(Editor ed, Set<File> files) {
+        if ((ed.loadedSketch == null) || (ed.loadedSketch.getFolder() == null)) {
+            return false;
+        }
+        return files.contains(new File(ed.loadedSketch.getFolder(), "sketch.cfg").getAbsoluteFile());
+    }
 }
@@ -39,6 +39,8 @@ import javax.swing.event.*;
 import javax.swing.text.*;
 import java.util.regex.*;
 import java.awt.image.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 
 import java.awt.datatransfer.*;
 
@@ -97,6 +99,34 @@ public class Console extends JTextPane implements ClipboardOwner {
 
     private final static String LINK_ATTRIBUTE = "linkact";
 
+    // Text can be appended from any thread.  It is queued here, with runs of
+    // the same style joined together, and written to the document by the
+    // flush timer on the event thread at most once every FLUSH_INTERVAL ms.
+    // If more than MAX_PENDING characters build up before the console gets
+    // to them the oldest are thrown away - they would only have been pushed
+    // off the top of the document anyway.
+    static final int FLUSH_INTERVAL = 25;
+    static final int MAX_PENDING = 1024 * 1024;
+
+    static class Chunk {
+        StringBuilder text;
+        AttributeSet attributes;
+
+        Chunk(String t, AttributeSet a) {
+            text = new StringBuilder(t);
+            attributes = a;
+        }
+    }
+
+    final Object pendingLock = new Object();
+    ArrayDeque<Chunk> pending = new ArrayDeque<Chunk>();
+    int pendingChars = 0;
+    boolean flushScheduled = false;
+    javax.swing.Timer flushTimer;
+
+    // Text being written to the document during a flush.
+    StringBuilder run = new StringBuilder();
+
     Editor urlClickListener = null;
 
     public Console() {
@@ -107,6 +137,16 @@ public class Console extends JTextPane implements ClipboardOwner {
         document = new BufferedStyledDocument(10000, 2000);
         document.setParagraphAttributes(0, 0, body, true);
 
+        flushTimer = new javax.swing.Timer(FLUSH_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                flush();
+            }
+        });
+        flushTimer.setRepeats(false);
+        // A flush can take longer than the interval, and a coalesced event
+        // would be lost while it runs, leaving flushScheduled stuck.
+        flushTimer.setCoalesce(false);
+
         setDocument(document);
         setEditable(false);
 
@@ -337,23 +377,51 @@ public class Console extends JTextPane implements ClipboardOwner {
         return i;
     }
 
-    void doAppendString(String message, MutableAttributeSet type) {
+    void doAppendString(String message, AttributeSet type) {
+        if ((message == null) || (message.length() == 0)) {
+            return;
+        }
+
+        synchronized (pendingLock) {
+            Chunk last = pending.peekLast();
+            if ((last != null) && (last.attributes == type)) {
+                last.text.append(message);
+            } else {
+                pending.add(new Chunk(message, type));
+            }
+            pendingChars += message.length();
+
+            while ((pendingChars > MAX_PENDING) && (pending.size() > 1)) {
+                pendingChars -= pending.removeFirst().text.length();
+            }
+
+            if (!flushScheduled) {
+                flushScheduled = true;
+                flushTimer.start();
+            }
+        }
+    }
+
+    // Write everything that has been queued up to the document in one go.
+    // This runs on the event thread.
+    void flush() {
+        ArrayDeque<Chunk> chunks;
+        synchronized (pendingLock) {
+            chunks = pending;
+            pending = new ArrayDeque<Chunk>();
+            pendingChars = 0;
+            flushScheduled = false;
+        }
+
+        if (chunks.size() == 0) {
+            return;
+        }
+
+        dropHiddenLines(chunks, document.maxLineCount);
+
         try {
-            String[] chars = message.split("(?!^)");
-            for (String c : chars) {
-                if (c.equals("\010")) {
-                    document.remove(document.getEndPosition().getOffset()-2, 1);
-                    continue;
-                } 
-                if (c.equals("\r")) {
-                    couldEraseLine = true;
-                    continue;
-                }
-                if (!c.equals("\n") && couldEraseLine) {
-                    removeLastLine();
-                }
-                document.appendString(c, type);
-                couldEraseLine = false;
+            for (Chunk c : chunks) {
+                writeChunk(c.text, c.attributes);
             }
             document.insertAll();
             setCaretPosition(document.getLength());
@@ -362,11 +430,86 @@ public class Console extends JTextPane implements ClipboardOwner {
         }
     }
 
+    // Throw away everything but the last *max* lines of the queued text.
+    // Anything before that would be trimmed off the top of the document
+    // as soon as it was inserted.
+    void dropHiddenLines(ArrayDeque<Chunk> chunks, int max) {
+        int lines = 0;
+        Iterator<Chunk> it = chunks.descendingIterator();
+        while (it.hasNext()) {
+            Chunk c = it.next();
+            for (int i = c.text.length() - 1; i >= 0; i--) {
+                if (c.text.charAt(i) == '\n') {
+                    lines++;
+                    if (lines > max) {
+                        c.text.delete(0, i + 1);
+                        while (it.hasNext()) {
+                            it.next();
+                            it.remove();
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // Scan a chunk once, dealing with carriage returns and backspaces as we
+    // go.  Anything that only affects the text in this chunk is done in the
+    // run buffer; only when it reaches back into the document is the document
+    // itself touched.
+    void writeChunk(CharSequence text, AttributeSet type) throws BadLocationException {
+        run.setLength(0);
+        int len = text.length();
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+            if (c == '\010') {
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                } else {
+                    document.insertAll();
+                    int end = document.getLength();
+                    if (end > 0) {
+                        document.remove(end - 1, 1);
+                    }
+                }
+                continue;
+            }
+            if (c == '\r') {
+                couldEraseLine = true;
+                continue;
+            }
+            if ((c != '\n') && couldEraseLine) {
+                int nl = run.lastIndexOf("\n");
+                if (nl >= 0) {
+                    run.setLength(nl + 1);
+                } else {
+                    run.setLength(0);
+                    document.insertAll();
+                    removeLastLine();
+                }
+            }
+            run.append(c);
+            couldEraseLine = false;
+        }
+        if (run.length() > 0) {
+            document.appendString(run.toString(), type);
+        }
+    }
+
     public void removeLastLine() {
         try {
-            String content = document.getText(0, document.getLength());
-            int lastLineBreak = content.lastIndexOf('\n') + 1;
-            document.remove(lastLineBreak, document.getLength() - lastLineBreak); 
+            // Only the last paragraph needs looking at, not the whole document.
+            Element root = document.getDefaultRootElement();
+            Element last = root.getElement(root.getElementCount() - 1);
+            int start = last.getStartOffset();
+            int end = document.getLength();
+            if (end <= start) {
+                return;
+            }
+            String content = document.getText(start, end - start);
+            int lastLineBreak = start + content.lastIndexOf('\n') + 1;
+            document.remove(lastLineBreak, end - lastLineBreak);
         } catch (Exception ignored) {
             Base.exception(ignored);
         }
@@ -394,8 +537,11 @@ public class Console extends JTextPane implements ClipboardOwner {
             doAppendString(bchar + " " + message, bullet3);
         } else if (type == LINK) {
             String[] chunks = message.split("\\|");
-            link.addAttribute(LINK_ATTRIBUTE, new URLLinkAction(chunks[0]));
-            doAppendString(chunks[1], link);
+            // Each link needs its own attributes since it may still be
+            // queued when the next one comes along.
+            SimpleAttributeSet thisLink = new SimpleAttributeSet(link);
+            thisLink.addAttribute(LINK_ATTRIBUTE, new URLLinkAction(chunks[0]));
+            doAppendString(chunks[1], thisLink);
         } else if (type == BLACK) {
             doAppendString(message, fgBlack);
         } else if (type == RED) {
@@ -419,9 +565,11 @@ public class Console extends JTextPane implements ClipboardOwner {
     // to the console with the right type.  Pass the chunks through
     // append() to do the formatting.  Chunks are plain text (body),
     // or {\type text...} to embed a certain type inside the text
+    static final Pattern parsedBlock = Pattern.compile("\\{\\\\(\\w+)\\s*(.*)\\}");
+
     public void appendParsed(String message) {
 
-        Pattern pat = Pattern.compile("\\{\\\\(\\w+)\\s*(.*)\\}");
+        Pattern pat = parsedBlock;
 
         int openBracketLocation = message.indexOf("{\\");
         
@@ -482,6 +630,11 @@ public class Console extends JTextPane implements ClipboardOwner {
     }
 
     void clear() {
+        synchronized (pendingLock) {
+            pending.clear();
+            pendingChars = 0;
+        }
+        couldEraseLine = false;
         try {
             document.remove(0, document.getLength());
         } catch (Exception e) {
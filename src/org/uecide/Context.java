@@ -33,6 +33,7 @@ package org.uecide;
 import java.io.*;
 import java.lang.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
 
 import javax.script.*;
@@ -47,6 +48,17 @@ import org.uecide.varcmd.VariableCommand;
 // Simple context container to hold the current context while running scripts and things.
 // It is here that all execution, messaging, string parsing, etc should happen.
 
+/*! Concurrency: a Context is not thread safe and should only be used by one
+ *  thread at a time.  To hand work to another thread, fork() the context and
+ *  give the fork to that thread.  A fork starts off sharing the settings of
+ *  the context it came from; the shared settings are never changed again,
+ *  as the first change either side makes is made to a private copy.  Forks
+ *  are cheap, so make one per task.  The board, core, compiler, programmer,
+ *  sketch and editor are shared between forks, and the DataStreamParser
+ *  passed on to a fork must not keep any state of its own.  Output buffers
+ *  and running processes are never shared.
+ */
+
 public class Context {
     public Board board = null;
     public Core core = null;
@@ -69,10 +81,23 @@ public class Context {
 
     public PropertyFile savedSettings = null;
 
+    // Set when the PropertyFile is shared with a fork and must be copied
+    // before it is changed.
+    boolean settingsShared = false;
+    boolean sketchSettingsShared = false;
+    boolean savedSettingsShared = false;
+
     public DataStreamParser parser = null;
 
     public boolean silence = false;
 
+    // The merged properties are cached along with the layers they were
+    // built from and the version of each layer at the time.
+    PropertyFile mergedCache = null;
+    int mergedCacheVersion = 0;
+    PropertyFile[] mergedLayers = null;
+    int[] mergedVersions = null;
+
     // Make a new empty context.
 
     public Context(Context src) {
@@ -95,6 +120,49 @@ public class Context {
         savedSettings = new PropertyFile(src.savedSettings);
     }
 
+    /*! Make a copy of this context for use on another thread.  The settings
+     *  are shared until either context changes them.
+     */
+    public synchronized Context fork() {
+        Context c = new Context(true);
+        c.board = board;
+        c.core = core;
+        c.compiler = compiler;
+        c.programmer = programmer;
+        c.sketch = sketch;
+        c.editor = editor;
+        c.port = port;
+        c.listener = listener;
+        c.parser = parser;
+        c.silence = silence;
+
+        c.settings = settings;
+        c.sketchSettings = sketchSettings;
+        c.savedSettings = savedSettings;
+        c.settingsShared = settingsShared = true;
+        c.sketchSettingsShared = sketchSettingsShared = true;
+        c.savedSettingsShared = savedSettingsShared = true;
+        return c;
+    }
+
+    // Used by fork() which fills everything in itself.
+    Context(boolean forking) {
+    }
+
+    // Get a private copy of the settings if they're shared with a fork.
+    void ownSettings() {
+        if (settingsShared) {
+            settings = copySettings(settings);
+            settingsShared = false;
+        }
+    }
+
+    // An exact copy, keeping any empty values (which the PropertyFile copy
+    // constructor would drop) as they hide the same keys in lower layers.
+    static PropertyFile copySettings(PropertyFile pf) {
+        return new PropertyFile(null, pf.properties, pf.getEmbeddedMap(), pf.getEmbeddedTypes());
+    }
+
     public Context() {
         settings = new PropertyFile();
         sketchSettings = new PropertyFile();
@@ -142,9 +210,11 @@ public class Context {
 
     public void clearSettings() {
         settings = new PropertyFile();
+        settingsShared = false;
     }
 
     public void set(String k, String v) {
+        ownSettings();
         settings.set(k, v);
     }
 
@@ -153,31 +223,98 @@ public class Context {
     }
 
     public void mergeSettings(PropertyFile pf) {
+        ownSettings();
         settings.mergeData(pf);
     }
 
+    // The property files that make up the merged properties, lowest priority
+    // first.  Missing layers are null.
+    PropertyFile[] getLayers() {
+        return new PropertyFile[] {
+            programmer == null ? null : programmer.getProperties(),
+            compiler == null ? null : compiler.getProperties(),
+            core == null ? null : core.getProperties(),
+            board == null ? null : board.getProperties(),
+            sketchSettings,
+            settings
+        };
+    }
+
     // Utility function to merge all the property files together in order.
+    // The result is cached until one of the layers is changed or replaced.
+    // The returned PropertyFile is shared and should be treated as read only;
+    // if it does get changed it is thrown away and rebuilt on the next call.
+
+    public synchronized PropertyFile getMerged() {
+        PropertyFile[] layers = getLayers();
+
+        if (mergedCache != null && mergedCache.getVersion() == mergedCacheVersion) {
+            boolean valid = true;
+            for (int i = 0; i < layers.length; i++) {
+                if (layers[i] != mergedLayers[i]) {
+                    valid = false;
+                    break;
+                }
+                if ((layers[i] != null) && (layers[i].getVersion() != mergedVersions[i])) {
+                    valid = false;
+                    break;
+                }
+            }
+            if (valid) {
+                return mergedCache;
+            }
+        }
 
-    public PropertyFile getMerged() {
         PropertyFile pf = new PropertyFile();
-        if (programmer != null) { pf.mergeData(programmer.getProperties()); }
-        if (compiler != null) { pf.mergeData(compiler.getProperties()); }
-        if (core != null) { pf.mergeData(core.getProperties()); }
-        if (board != null) { pf.mergeData(board.getProperties()); }
-        pf.mergeData(sketchSettings);
-        pf.mergeData(settings);
+        int[] versions = new int[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            if (layers[i] != null) {
+                versions[i] = layers[i].getVersion();
+                pf.mergeData(layers[i]);
+            }
+        }
+
+        mergedCache = pf;
+        mergedCacheVersion = pf.getVersion();
+        mergedLayers = layers;
+        mergedVersions = versions;
         return pf;
     }
 
+    // Look up a single merged value.  This walks down the layers from the top
+    // rather than building the merged properties.  An empty value in a layer
+    // removes the key from the layers below it, just as merging does.
+
     public String getMerged(String k) {
-        PropertyFile pf = new PropertyFile();
-        if (programmer != null) { pf.mergeData(programmer.getProperties()); }
-        if (compiler != null) { pf.mergeData(compiler.getProperties()); }
-        if (core != null) { pf.mergeData(core.getProperties()); }
-        if (board != null) { pf.mergeData(board.getProperties()); }
-        pf.mergeData(sketchSettings);
-        pf.mergeData(settings);
-        return pf.get(k);
+        PropertyFile[] layers = getLayers();
+        for (int i = layers.length - 1; i >= 0; i--) {
+            if (layers[i] == null) {
+                continue;
+            }
+            String v = layers[i].getRaw(k);
+            if (v != null) {
+                if (v.equals("")) {
+                    return null;
+                }
+                return v.trim();
+            }
+        }
+        return null;
+    }
+
+    // The platform specific flavour of a key if one exists in the merged
+    // properties, found by walking the layers like getMerged(String).
+
+    public String getMergedPlatformSpecificKey(String k) {
+        String pk = k + "." + Base.getOSFullName();
+        if (getMerged(pk) != null) {
+            return pk;
+        }
+        pk = k + "." + Base.getOSName();
+        if (getMerged(pk) != null) {
+            return pk;
+        }
+        return k;
     }
 
     // Find a resource by its URI.  A URI is not a normal Java URI but a UECIDE
@@ -409,6 +546,17 @@ public class Context {
         System.out.println();
     }
         
+    public void progress(int percent) {
+        if (editor != null) {
+            editor.setProgress(percent);
+            return;
+        }
+        if (sketch != null) {
+            sketch.setCompilingProgress(percent);
+            return;
+        }
+    }
+
     public void rawMessageStream(String e) {
         if (editor != null) {
             editor.outputMessageStream(e);
@@ -552,14 +700,16 @@ public class Context {
     }
 
     public Object executeKey(String key, boolean silent) {
-        PropertyFile props = getMerged();
-    
+        // This runs for every file compiled, so look the keys up through the
+        // layers rather than building the whole merged property set.
+
         // If there is a platform specific version of the key then we should switch to that instead.
-        key = props.getPlatformSpecificKey(key);
+        key = getMergedPlatformSpecificKey(key);
+        String value = getMerged(key);
 
         // If the key is just a plain key and starts with a URI indicator then run it as a javascript file
-        if (props.get(key) != null) {
-            String data = parseString(props.get(key));
+        if (value != null) {
+            String data = parseString(value);
             String[] val = data.split("::");
             if (
                 val[0].startsWith("res:") || 
@@ -580,13 +730,13 @@ public class Context {
         }
 
         // If the key has a sub-key of .0 then run it as a UECIDE Script
-        if (props.get(key + ".0") != null) {
+        if (getMerged(key + ".0") != null) {
             return executeUScript(key, silent);
         }
 
         // Otherwise try and run it as a command (either built in or system).
-        if (props.get(key) != null) {
-            return executeCommand(parseString(props.get(key)), parseString(props.get(key + ".environment")), silent);
+        if (value != null) {
+            return executeCommand(parseString(value), parseString(getMerged(key + ".environment")), silent);
         }
 
         return false;
@@ -723,7 +873,7 @@ public class Context {
 
                 String kk = param.substring(0, epos);
                 String vv = param.substring(epos + 1);
-                settings.set(kk, vv);
+                set(kk, vv);
                 lineno++;
                 continue;
             }
@@ -768,86 +918,18 @@ public class Context {
 
 
 
+    // Expand all the ${...} references in a string.  The string is compiled
+    // into a StringTemplate which is cached for next time.
     public String parseString(String in) {
-        PropertyFile tokens = getMerged();
-        
-        int iStart;
-        int iEnd;
-        int iTest;
-        String out;
-        String start;
-        String end;
-        String mid;
-
         if(in == null) {
             return null;
         }
 
-        out = in;
-
-        iStart = out.indexOf("${");
-
-        if(iStart == -1) {
-            return out;
+        if(in.indexOf("${") == -1) {
+            return in;
         }
 
-        iEnd = out.indexOf("}", iStart);
-        iTest = out.indexOf("${", iStart + 1);
-
-        while((iTest > -1) && (iTest < iEnd)) {
-            iStart = iTest;
-            iTest = out.indexOf("${", iStart + 1);
-        }
-
-        while(iStart != -1) {
-            start = out.substring(0, iStart);
-            end = out.substring(iEnd + 1);
-            mid = out.substring(iStart + 2, iEnd);
-
-            // Compatability hack for old format roots
-            if (mid.equals("board.root")) { mid = "board:root"; }
-            if (mid.equals("core.root")) { mid = "core:root"; }
-            if (mid.equals("compiler.root")) { mid = "compiler:root"; }
-
-            if(mid.indexOf(":") > -1) {
-                String command = mid.substring(0, mid.indexOf(":"));
-                String param = mid.substring(mid.indexOf(":") + 1);
-
-                mid = runFunctionVariable(command, param);
-            } else {
-                String tmid = tokens.get(mid);
-
-                if(tmid == null) {
-                    tmid = "";
-                }
-
-                mid = tmid;
-            }
-
-
-            if(mid != null) {
-                out = start + mid + end;
-            } else {
-                out = start + end;
-            }
-
-            iStart = out.indexOf("${");
-            iEnd = out.indexOf("}", iStart);
-            iTest = out.indexOf("${", iStart + 1);
-
-            while((iTest > -1) && (iTest < iEnd)) {
-                iStart = iTest;
-                iTest = out.indexOf("${", iStart + 1);
-            }
-        }
-
-        // This shouldn't be needed as the methodology should always find any tokens put in
-        // by other token replacements.  But just in case, eh?
-        if(out != in) {
-            out = parseString(out);
-        }
-
-        return out;
+        return StringTemplate.compile(in).expand(this);
     }
 
     public String runFunctionVariable(String command, String param) {
@@ -897,8 +979,6 @@ public class Context {
     }
 
     public Object runSystemCommand(String command, String env, boolean silent) {
-        PropertyFile props = getMerged();
-
         Object res;
 
         if(command == null) {
@@ -935,8 +1015,9 @@ public class Context {
             }
         }
 
-        if (props.get("build.path") != null) {
-            process.directory(props.getFile("build.path"));
+        String buildPath = getMerged("build.path");
+        if (buildPath != null) {
+            process.directory(new File(buildPath));
         }
 
         StringBuilder sb = new StringBuilder();
@@ -953,8 +1034,10 @@ public class Context {
             if (!silent) command(sb.toString());
         }
 
+        Process proc;
+
         try {
-            runningProcess = process.start();
+            proc = process.start();
         } catch(Exception e) {
             Base.exception(e);
             error(Base.i18n.string("err.process"));
@@ -962,202 +1045,231 @@ public class Context {
             return false;
         }
 
-        Base.processes.add(runningProcess);
-
-        InputStream in = runningProcess.getInputStream();
-        InputStream err = runningProcess.getErrorStream();
-        boolean running = true;
-        int result = -1;
-
-        byte[] tmp = new byte[1];
+        runningProcess = proc;
+        Base.processes.add(proc);
 
+        // The output of the process is read in bulk by a pair of pump threads
+        // and handed back through a queue, so it's all dealt with here on the
+        // calling thread in the order it arrived.
+        ArrayBlockingQueue<OutputChunk> queue = new ArrayBlockingQueue<OutputChunk>(OUTPUT_QUEUE_SIZE);
+        OutputPump outPump = new OutputPump(proc.getInputStream(), false, queue);
+        OutputPump errPump = new OutputPump(proc.getErrorStream(), true, queue);
+        outPump.start();
+        errPump.start();
 
-        String outline = "";
-        String errline = "";
+        int result = -1;
+        int open = 2;
+        IOException failure = null;
 
-        while(isProcessRunning(runningProcess)) {
-            try {
-                while(in.available() > 0) {
-                    int i = in.read(tmp, 0, 1);
-
-                    if(i < 0)break;
-                    
-                    String inch = new String(tmp, 0, i);
-                    if (buffer == null) rawMessageStream(inch);
-                    if (parser != null) {
-                        if (((inch.charAt(0) >= ' ') && (inch.charAt(0) <= (char)127)) || (inch.charAt(0) == '\n')) {
-                            outline += inch;
-                        }
-                        if (inch.equals("\n")) {
-//                            rawMessageStream(outline);
-                            outline = parser.parseStreamMessage(this, outline);
-                            outline = parser.parseStreamError(this, outline);
-                            if (buffer != null) {
-                                buffer.append(inch);
-                            } else {                        
-                                messageStream(inch);
-                            }
-                            outline = "";
-                        }
-                    } else {
-                        if (buffer != null) {
-                            buffer.append(inch);
-                        } else {                        
-                            messageStream(inch);
-                        }
+        try {
+            while (open > 0) {
+                OutputChunk chunk = queue.take();
+                if (chunk.text == null) {
+                    open--;
+                    if (failure == null) {
+                        failure = chunk.exception;
                     }
+                    continue;
                 }
+                handleOutput(chunk);
+            }
 
-                while(err.available() > 0) {
-                    int i = err.read(tmp, 0, 1);
+            if (failure != null) {
+                throw failure;
+            }
 
-                    if(i < 0)break;
-                    
-                    String inch = new String(tmp, 0, i);
-                    if (buffer == null) rawErrorStream(inch);
-                    if (parser != null) {
-                        if (((inch.charAt(0) >= ' ') && (inch.charAt(0) <= (char)127)) || (inch.charAt(0) == '\n')) {
-                            errline += inch;
-                        }
-                        if (inch.equals("\n")) {
-//                            rawErrorStream(errline);
-                            errline = parser.parseStreamMessage(this, errline);
-                            errline = parser.parseStreamError(this, errline);
-                            if (buffer != null) {
-                                buffer.append(inch);
-                            } else {                        
-                                errorStream(inch);
-                            }
-                            errline = "";
-                        }
-                    } else {
-                        if (buffer != null) {
-                            buffer.append(inch);
-                        } else {                        
-                            errorStream(inch);
-                        }
-                    }
+            result = proc.waitFor();
+        } catch(Exception ignored) {
+            Base.exception(ignored);
+            String igm = ignored.getMessage();
+            if (igm != null) {
+                if (igm.equals("Stream closed")) {
+                    error(Base.i18n.string("misc.cancelled"));
+                } else {
+                    error(ignored);
                 }
+            }
+        } finally {
+            if (open > 0) {
+                // We stopped reading early, so nothing is going to empty the
+                // queue.  Kill the process and close its streams so the
+                // pumps can finish, then drain what they left behind.
+                finishProcess(proc, queue, open);
+            }
+        }
 
-                Thread.sleep(1);
+        Base.processes.remove(proc);
 
-            } catch(Exception ignored) {
-                Base.exception(ignored);
-                Base.error(ignored);
-            }
+        if(result == 0) {
+            return true;
         }
 
-        try {
-            while(in.available() > 0) {
-                int i = in.read(tmp, 0, 1);
-
-                if(i < 0)break;
-                
-                String inch = new String(tmp, 0, i);
-                if (((inch.charAt(0) >= ' ') && (inch.charAt(0) <= (char)127)) || (inch.charAt(0) == '\n')) {
-                    outline += inch;
-                }
+        return false;
+    }
 
-                if (buffer == null) rawMessageStream(inch);
-                if (inch.equals("\n")) {
-                    if (parser != null) {
-//                        rawMessageStream(outline);
-                        outline = parser.parseStreamMessage(this, outline);
-                        outline = parser.parseStreamError(this, outline);
-                    }
-                    if (buffer != null) {
-                        buffer.append(outline);
-                    } else {                        
-                        messageStream(outline);
-                    }
-                    outline = "";
-                }
-            }
+    static final int OUTPUT_QUEUE_SIZE = 256;
 
-            if (!outline.equals("")) {
-                if (parser != null) {
-//                    rawMessageStream(outline);
-                    outline = parser.parseStreamMessage(this, outline);
-                    outline = parser.parseStreamError(this, outline);
-                }
-                if (buffer != null) {
-                    buffer.append(outline);
-                } else {                        
-                    messageStream(outline);
+    // Stop a process whose output is no longer being read and wait (for a
+    // while) for both of its pump threads to reach the end of their streams.
+    static void finishProcess(Process proc, BlockingQueue<OutputChunk> queue, int open) {
+        if (proc.isAlive()) {
+            proc.destroy();
+        }
+        try {
+            proc.getInputStream().close();
+        } catch (IOException ex) {
+        }
+        try {
+            proc.getErrorStream().close();
+        } catch (IOException ex) {
+        }
+
+        boolean interrupted = false;
+        long giveUp = System.currentTimeMillis() + 5000;
+        while ((open > 0) && (System.currentTimeMillis() < giveUp)) {
+            try {
+                OutputChunk chunk = queue.poll(100, TimeUnit.MILLISECONDS);
+                if ((chunk != null) && (chunk.text == null)) {
+                    open--;
                 }
+            } catch (InterruptedException ex) {
+                // Keep draining - the pumps can't finish until we do.
+                interrupted = true;
             }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            while(err.available() > 0) {
-                int i = err.read(tmp, 0, 1);
+    // A block of output from one of the streams of a process.  The complete
+    // lines in it are split out ready for the DataStreamParser.  A chunk
+    // with no text marks the end of the stream.
+    static class OutputChunk {
+        boolean error;
+        String text;
+        ArrayList<String> lines;
+        IOException exception;
+    }
 
-                if(i < 0)break;
-                
-                String inch = new String(tmp, 0, i);
-                if (((inch.charAt(0) >= ' ') && (inch.charAt(0) <= (char)127)) || (inch.charAt(0) == '\n')) {
-                    errline += inch;
-                }
+    // Reads everything from one stream of a process as fast as it comes.
+    static class OutputPump extends Thread {
+        InputStream stream;
+        boolean error;
+        BlockingQueue<OutputChunk> queue;
 
-                if (buffer == null) rawErrorStream(inch);
+        OutputPump(InputStream s, boolean e, BlockingQueue<OutputChunk> q) {
+            super(e ? "stderr-pump" : "stdout-pump");
+            setDaemon(true);
+            stream = s;
+            error = e;
+            queue = q;
+        }
 
-                if (inch.equals("\n")) {
-                    if (parser != null) {
-//                        rawErrorStream(errline);
-                        errline = parser.parseStreamMessage(this, errline);
-                        errline = parser.parseStreamError(this, errline);
-                    }
-                    if (bufferError) {
-                        if (buffer != null) {
-                            buffer.append(errline);
-                        } else {                        
-                            errorStream(errline);
+        public void run() {
+            OutputChunk end = new OutputChunk();
+            end.error = error;
+            StringBuilder line = new StringBuilder();
+            try {
+                Reader r = new InputStreamReader(stream);
+                char[] buf = new char[8192];
+                int n;
+                while ((n = r.read(buf)) > 0) {
+                    OutputChunk chunk = new OutputChunk();
+                    chunk.error = error;
+                    chunk.text = new String(buf, 0, n);
+                    chunk.lines = new ArrayList<String>();
+                    int start = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (buf[i] == '\n') {
+                            line.append(buf, start, i - start + 1);
+                            chunk.lines.add(line.toString());
+                            line.setLength(0);
+                            start = i + 1;
                         }
-                    } else {
-                        errorStream(errline);
                     }
-                    errline = "";
+                    line.append(buf, start, n - start);
+                    put(chunk);
                 }
+            } catch (IOException e) {
+                end.exception = e;
             }
 
-            if (!errline.equals("")) {
-                if (parser != null) {
-//                    rawErrorStream(errline);
-                    errline = parser.parseStreamMessage(this, errline);
-                    errline = parser.parseStreamError(this, errline);
-                }
-                if (bufferError) {
-                    if (buffer != null) {
-                        buffer.append(errline);
-                    } else {                        
-                        errorStream(errline);
-                    }
-                } else {
-                    errorStream(errline);
-                }
+            // Anything left over without a line ending still counts as a line.
+            if (line.length() > 0) {
+                OutputChunk chunk = new OutputChunk();
+                chunk.error = error;
+                chunk.text = "";
+                chunk.lines = new ArrayList<String>();
+                chunk.lines.add(line.toString());
+                put(chunk);
             }
+            put(end);
+        }
 
-        } catch(Exception ignored) {
-            Base.exception(ignored);
-            String igm = ignored.getMessage();
-            if (igm != null) {
-                if (igm.equals("Stream closed")) {
-                    error(Base.i18n.string("misc.cancelled"));
-                } else {
-                    error(ignored);
+        void put(OutputChunk c) {
+            while (true) {
+                try {
+                    queue.put(c);
+                    return;
+                } catch (InterruptedException e) {
                 }
             }
         }
+    }
 
-        if (runningProcess != null) {
-            result = runningProcess.exitValue();
-        }
+    // Pass a chunk of process output on to wherever it needs to go.  Without
+    // a parser the text goes straight through; with one each line goes
+    // through the parser first and whatever it leaves is passed on.
+    void handleOutput(OutputChunk chunk) {
+        boolean toBuffer = (buffer != null) && (!chunk.error || bufferError);
 
-        Base.processes.remove(runningProcess);
+        if (buffer == null && !chunk.text.equals("")) {
+            if (chunk.error) {
+                rawErrorStream(chunk.text);
+            } else {
+                rawMessageStream(chunk.text);
+            }
+        }
 
-        if(result == 0) {
-            return true;
+        if (parser == null) {
+            String text = chunk.text;
+            if (text.equals("")) {
+                // The unterminated last line, which for raw output has
+                // already been passed through as part of the text.
+                return;
+            }
+            if (toBuffer) {
+                buffer.append(text);
+            } else if (chunk.error) {
+                errorStream(text);
+            } else {
+                messageStream(text);
+            }
+            return;
         }
 
-        return false;
+        for (String line : chunk.lines) {
+            StringBuilder printable = new StringBuilder(line.length());
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (((c >= ' ') && (c <= (char)127)) || (c == '\n')) {
+                    printable.append(c);
+                }
+            }
+            String out = parser.parseStreamMessage(this, printable.toString());
+            out = parser.parseStreamError(this, out);
+            if ((out == null) || out.equals("")) {
+                continue;
+            }
+            if (toBuffer) {
+                buffer.append(out);
+            } else if (chunk.error) {
+                errorStream(out);
+            } else {
+                messageStream(out);
+            }
+        }
     }
 
     public static boolean isProcessRunning(Process process)
@@ -1214,11 +1326,14 @@ public class Context {
 
     public void snapshot() {
         savedSettings = settings;
+        savedSettingsShared = settingsShared;
         settings = new PropertyFile();
+        settingsShared = false;
     }
 
     public void rollback() {
         settings = savedSettings;
+        settingsShared = savedSettingsShared;
     }
 
     public void addDataStreamParser(DataStreamParser p) {
@@ -1235,6 +1350,7 @@ public class Context {
         } else {
             sketchSettings = new PropertyFile();
         }
+        sketchSettingsShared = false;
     }
 
     public void saveSketchSettings() {
@@ -1242,10 +1358,16 @@ public class Context {
             return;
         }
         File f = new File(sketch.getFolder(), "sketch.cfg");
-        sketchSettings.save(f);
+        getSketchSettings().save(f);
     }
 
+    // The sketch settings are handed out to be changed, so a private copy
+    // is needed if they're shared with a fork.
     public PropertyFile getSketchSettings() {
+        if (sketchSettingsShared) {
+            sketchSettings = copySettings(sketchSettings);
+            sketchSettingsShared = false;
+        }
         return sketchSettings;
     }
 
@@ -37,6 +37,8 @@ import java.net.*;
 
 import java.security.MessageDigest;
 
+import java.util.concurrent.*;
+
 import java.nio.file.Files;
 import static java.nio.file.StandardCopyOption.*;
 
@@ -54,7 +56,18 @@ public class DebFile {
     static final int LINK = 2;
 
     File debFile;
-    File tempLoc;
+
+    // Files no bigger than this are read into memory and handed to a pool
+    // of threads to write out, so the next file can be decompressed while
+    // the last is still being written.  Bigger files are written directly.
+    static final int ASYNC_FILE_SIZE = 1024 * 1024;
+
+    // No more than this much data waiting to be written at any one time.
+    static final int ASYNC_BYTES = 16 * 1024 * 1024;
+
+    static final int WRITE_THREADS = 4;
+
+    static final int BUFFER_SIZE = 64 * 1024;
 
     static class FileInfo {
         int type;
@@ -66,57 +79,99 @@ public class DebFile {
     }
 
     // Extract a file into root adding the control files to db.
+    //
+    // The deb is read in a single pass.  Each tarball is decompressed
+    // straight out of the ar archive as it is read, and the files in it are
+    // written with temporary names.  Only once everything has been
+    // extracted are the files renamed to their proper names.
     public void extract(File db, File root) throws IOException {
-        // Step one, extract the files from the deb.
-        HashMap<String, File> files = extractOuterFiles();
-        HashMap<File, FileInfo> pendingFiles = null;
-
-        // Step two, extract the data to the filesystem with temporary names
-        if (files.get("data.tar.gz") != null) pendingFiles = extractTarGzFile(files.get("data.tar.gz"), root);
-        if (files.get("data.tar.xz") != null) pendingFiles = extractTarXzFile(files.get("data.tar.xz"), root);
-        if (files.get("data.tar.bz2") != null) pendingFiles = extractTarBz2File(files.get("data.tar.bz2"), root);
+        HashMap<File, FileInfo> dataFiles = null;
+        HashMap<File, FileInfo> controlFiles = null;
 
-        // Step three, rename the files to the proper names and
-        // copy any linked files (windows doesn't do links)
-        installFiles(pendingFiles);
-
-        // Step four, extract the control information
-        if (files.get("control.tar.gz") != null) pendingFiles = extractTarGzFile(files.get("control.tar.gz"), db);
-        if (files.get("control.tar.xz") != null) pendingFiles = extractTarXzFile(files.get("control.tar.xz"), db);
-        if (files.get("control.tar.bz2") != null) pendingFiles = extractTarBz2File(files.get("control.tar.bz2"), db);
+        FileInputStream fis = new FileInputStream(debFile);
+        ArArchiveInputStream ar = new ArArchiveInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+        try {
+            ArArchiveEntry file = ar.getNextArEntry();
+            while (file != null) {
+                String name = file.getName();
+                if (name.startsWith("data.tar")) {
+                    dataFiles = extractTarFile(openTar(name, ar), root);
+                } else if (name.startsWith("control.tar")) {
+                    controlFiles = extractTarFile(openTar(name, ar), db);
+                }
+                file = ar.getNextArEntry();
+            }
+        } finally {
+            ar.close();
+        }
 
+        // Rename the files to the proper names and copy any linked
+        // files (windows doesn't do links).  Data first, then control.
+        if (dataFiles != null) installFiles(dataFiles);
+        if (controlFiles != null) installFiles(controlFiles);
+    }
 
-        installFiles(pendingFiles);
-        
-        // Step five, remove the temporary files
-        cleanup();
+    // Get the tarball in the current ar member, decompressing it on the fly.
+    TarArchiveInputStream openTar(String name, InputStream in) throws IOException {
+        if (name.endsWith(".gz")) {
+            return new TarArchiveInputStream(new GzipCompressorInputStream(in, true));
+        }
+        if (name.endsWith(".xz")) {
+            return new TarArchiveInputStream(new XZCompressorInputStream(in, true));
+        }
+        if (name.endsWith(".bz2")) {
+            return new TarArchiveInputStream(new BZip2CompressorInputStream(in, true));
+        }
+        return new TarArchiveInputStream(in);
     }
 
     public String getPackageName() throws IOException, FileNotFoundException {
-        HashMap<String, File> files = extractOuterFiles();
-        HashMap<File, FileInfo> pendingFiles = null;
-        File db = Base.createTempFolder("udeb_");
-        if (files.get("control.tar.gz") != null) pendingFiles = extractTarGzFile(files.get("control.tar.gz"), db);
-        if (files.get("control.tar.xz") != null) pendingFiles = extractTarXzFile(files.get("control.tar.xz"), db);
-        if (files.get("control.tar.bz2") != null) pendingFiles = extractTarBz2File(files.get("control.tar.bz2"), db);
-
-        File c = new File(db, "control.udeb-new");
         String packageName = null;
-        if (c.exists()) {
-            String data = Utils.getFileAsString(c);
-            String[] lines = data.split("\n");
-            for (String line : lines) {
-                String[] bits = line.split(" ");
-                if (bits[0].equals("Package:")) {
-                    packageName = bits[1];
+        FileInputStream fis = new FileInputStream(debFile);
+        ArArchiveInputStream ar = new ArArchiveInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+        try {
+            ArArchiveEntry file = ar.getNextArEntry();
+            while (file != null) {
+                if (file.getName().startsWith("control.tar")) {
+                    TarArchiveInputStream tar = openTar(file.getName(), ar);
+                    TarArchiveEntry te = tar.getNextTarEntry();
+                    while (te != null) {
+                        if (new File(te.getName()).getName().equals("control")) {
+                            String data = new String(readEntry(tar, te), "UTF-8");
+                            String[] lines = data.split("\n");
+                            for (String line : lines) {
+                                String[] bits = line.split(" ");
+                                if (bits[0].equals("Package:")) {
+                                    packageName = bits[1];
+                                }
+                            }
+                            return packageName;
+                        }
+                        te = tar.getNextTarEntry();
+                    }
                 }
+                file = ar.getNextArEntry();
             }
-            Base.removeDir(db);
+        } finally {
+            ar.close();
         }
 
         return packageName;
     }
 
+    static byte[] readEntry(TarArchiveInputStream tar, TarArchiveEntry te) throws IOException {
+        byte[] data = new byte[(int)te.getSize()];
+        int pos = 0;
+        while (pos < data.length) {
+            int nread = tar.read(data, pos, data.length - pos);
+            if (nread <= 0) {
+                throw new EOFException("Short read extracting " + te.getName());
+            }
+            pos += nread;
+        }
+        return data;
+    }
+
     void installFiles(HashMap<File, FileInfo> files) throws IOException {
         // First do the file renaming
         for (Map.Entry<File, FileInfo> dest : files.entrySet()) {
@@ -148,107 +203,99 @@ public class DebFile {
             
     }
 
-    HashMap<String, File> extractOuterFiles() throws IOException {
-        HashMap<String, File> filelist = new HashMap<String, File>();
-        tempLoc = Base.createTempFolder("udeb_");
-        FileInputStream fis = new FileInputStream(debFile);
-        ArArchiveInputStream ar = new ArArchiveInputStream(fis);
-        ArArchiveEntry file = ar.getNextArEntry();
-        while (file != null) {
-            long size = file.getSize();
-            String name = file.getName();
-            File dest = new File(tempLoc, name);
-
-            if (file.isDirectory()) {
-                dest.mkdirs();
-                dest.setLastModified(file.getLastModified());
-            } else {
-                InputStream from = new BufferedInputStream(ar);
-                OutputStream to = new BufferedOutputStream(new FileOutputStream(dest));
-                byte[] buffer = new byte[16 * 1024];
-                int bytesRead;
-
-                while((bytesRead = from.read(buffer)) != -1) {
-                    to.write(buffer, 0, bytesRead);
-                }
-
-                to.flush();
-                to.close();
-                //from.close();
-                dest.setLastModified(file.getLastModified());
-                filelist.put(name, dest);
-            }
-            file = ar.getNextArEntry();
-        }
-        ar.close();
-        return filelist;
-    }
-
-    void cleanup() {
-        Base.removeDir(tempLoc);
-        tempLoc = null;
-    }
-
-   HashMap<File, FileInfo> extractTarGzFile(File src, File root) throws IOException {
-        GzipCompressorInputStream gzip = new GzipCompressorInputStream(new FileInputStream(src));
-        TarArchiveInputStream tar = new TarArchiveInputStream(gzip);
-        return extractTarFile(tar, root);
-    }
-
-    HashMap<File, FileInfo> extractTarXzFile(File src, File root) throws IOException {
-        XZCompressorInputStream xzip = new XZCompressorInputStream(new FileInputStream(src));
-        TarArchiveInputStream tar = new TarArchiveInputStream(xzip);
-        return extractTarFile(tar, root);
-    }
-
-    HashMap<File, FileInfo> extractTarBz2File(File src, File root) throws IOException {
-        BZip2CompressorInputStream bzip = new BZip2CompressorInputStream(new FileInputStream(src));
-        TarArchiveInputStream tar = new TarArchiveInputStream(bzip);
-        return extractTarFile(tar, root);
-    }
-
     HashMap<File, FileInfo> extractTarFile(TarArchiveInputStream tar, File root) throws IOException {
         HashMap<File, FileInfo> files = new HashMap<File, FileInfo>();
 
-        TarArchiveEntry te = tar.getNextTarEntry();
-        while (te != null) {
-
-            File dest = new File(root, te.getName());
-
-            if (te.isDirectory()) {
-                dest.mkdirs();
-            } else if (te.isLink() || te.isSymbolicLink()) {
-                FileInfo fi = new FileInfo();
-                fi.type = LINK;
-                if (te.getLinkName().startsWith("./") || te.getLinkName().startsWith("/")) {
-                    fi.source = new File(root, te.getLinkName());
+        ExecutorService writers = Executors.newFixedThreadPool(WRITE_THREADS);
+        final Semaphore inFlight = new Semaphore(ASYNC_BYTES);
+        final ArrayList<Exception> errors = new ArrayList<Exception>();
+
+        try {
+            TarArchiveEntry te = tar.getNextTarEntry();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (te != null) {
+
+                File dest = new File(root, te.getName());
+
+                if (te.isDirectory()) {
+                    dest.mkdirs();
+                } else if (te.isLink() || te.isSymbolicLink()) {
+                    FileInfo fi = new FileInfo();
+                    fi.type = LINK;
+                    if (te.getLinkName().startsWith("./") || te.getLinkName().startsWith("/")) {
+                        fi.source = new File(root, te.getLinkName());
+                    } else {
+                        fi.source = new File(dest.getParentFile(), te.getLinkName());
+                    }
+                    files.put(dest, fi);
                 } else {
-                    fi.source = new File(dest.getParentFile(), te.getLinkName());
-                }
-                files.put(dest, fi);
-            } else {
-                File tempDest = new File(root, te.getName() + ".udeb-new");
-                byte[] buffer = new byte[1024];
-                int nread;
-                int toRead = (int)te.getSize();
-                FileOutputStream fos = new FileOutputStream(tempDest);
-                while ((nread = tar.read(buffer, 0, toRead > 1024 ? 1024 : toRead)) > 0) {
-                    toRead -= nread;
-                    fos.write(buffer, 0, nread);
+                    final File tempDest = new File(root, te.getName() + ".udeb-new");
+                    final int mode = te.getMode();
+                    tempDest.getParentFile().mkdirs();
+
+                    if (te.getSize() <= ASYNC_FILE_SIZE) {
+                        final byte[] data = readEntry(tar, te);
+                        final int size = Math.max(data.length, 1);
+                        inFlight.acquireUninterruptibly(size);
+                        writers.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    FileOutputStream fos = new FileOutputStream(tempDest);
+                                    fos.write(data);
+                                    fos.close();
+                                    setMode(tempDest, mode);
+                                } catch (Exception e) {
+                                    synchronized (errors) {
+                                        errors.add(e);
+                                    }
+                                } finally {
+                                    inFlight.release(size);
+                                }
+                            }
+                        });
+                    } else {
+                        int nread;
+                        long toRead = te.getSize();
+                        FileOutputStream fos = new FileOutputStream(tempDest);
+                        while ((toRead > 0) && ((nread = tar.read(buffer, 0, toRead > buffer.length ? buffer.length : (int)toRead)) > 0)) {
+                            toRead -= nread;
+                            fos.write(buffer, 0, nread);
+                        }
+                        fos.close();
+                        setMode(tempDest, mode);
+                    }
+
+                    FileInfo fi = new FileInfo();
+                    fi.type = FILE;
+                    fi.source = tempDest;
+                    files.put(dest, fi);
                 }
-                fos.close();
-                tempDest.setExecutable((te.getMode() & 0100) == 0100);
-                tempDest.setWritable((te.getMode() & 0200) == 0200);
-                tempDest.setReadable((te.getMode() & 0400) == 0400);
-                FileInfo fi = new FileInfo();
-                fi.type = FILE;
-                fi.source = tempDest;
-                files.put(dest, fi);
+
+                te = tar.getNextTarEntry();
             }
+        } finally {
+            writers.shutdown();
+            try {
+                writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Base.exception(e);
+            }
+        }
 
-            te = tar.getNextTarEntry();
+        if (errors.size() > 0) {
+            Exception e = errors.get(0);
+            if (e instanceof IOException) {
+                throw (IOException)e;
+            }
+            throw new IOException(e);
         }
 
         return files;
     }
+
+    static void setMode(File f, int mode) {
+        f.setExecutable((mode & 0100) == 0100);
+        f.setWritable((mode & 0200) == 0200);
+        f.setReadable((mode & 0400) == 0400);
+    }
 }
@@ -54,24 +54,355 @@ import org.fife.ui.rsyntaxtextarea.*;
 import org.fife.ui.rtextarea.*;
 
 import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
 
 
+/*! Debug is the IDE's internal log.
+ *
+ *  Every message has a level.  Anything at or below the current level is
+ *  time stamped and stored in a fixed size ring buffer, which is what the
+ *  debug window shows, and is also written to the log file if there is one.
+ *  Anything above the current level is thrown away, and for messages that
+ *  are costly to build a Supplier can be passed so the string is only made
+ *  if it is going to be kept.
+ *
+ *  Tagging each message with the file and line it came from means walking
+ *  the stack, so it is only done when *debug.log.caller* is turned on.
+ *
+ *  Messages may be logged from any thread.  The debug window is only ever
+ *  touched from the event thread, which picks up new lines on a timer, and
+ *  the log file is written by its own thread.
+ */
 public class Debug {
 
-    public static StringBuilder debugText = new StringBuilder();
+    public static final int ERROR = 0;
+    public static final int WARNING = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+    public static final int TRACE = 4;
+
+    static final String[] levelNames = { "error", "warning", "info", "debug", "trace" };
+
+    public static final int DEFAULT_LINES = 10000;
+    static final int REFRESH_INTERVAL = 100;
+
     public static JFrame win;
     public static RSyntaxTextArea textArea;
     public static boolean shown = false;
     public static RTextScrollPane scrollPane;
     public static JToolBar toolbar;
-//    public static boolean pause = false;
     public static JToggleButton pauseButton;
     public static boolean verbose = false;
 
+    static volatile int level = DEBUG;
+    static volatile boolean callerTags = false;
+
+    // The ring buffer of formatted lines.  *written* counts every line ever
+    // stored so the window can tell which lines it hasn't seen yet.
+    static final Object lock = new Object();
+    static String[] ring = new String[DEFAULT_LINES];
+    static int ringHead = 0;
+    static int ringCount = 0;
+    static long written = 0;
+    static long displayed = 0;
+
+    static javax.swing.Timer refreshTimer = null;
+
+    // Asynchronous log file output
+    static final String END_OF_LOG = new String("");
+    static LinkedBlockingQueue<String> logQueue = null;
+    static Thread logThread = null;
+    static PrintStream logStream = null;
+
+    static ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        }
+    };
+
     public static void setVerbose(boolean b) {
         verbose = b;
     }
 
+    /*! Set the most detailed level of message that will be kept. */
+    public static void setLevel(int l) {
+        level = l;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /*! Find a level by name (error, warning, info, debug or trace).  Unknown
+     *  names give DEBUG.
+     */
+    public static int getLevel(String name) {
+        if (name != null) {
+            for (int i = 0; i < levelNames.length; i++) {
+                if (levelNames[i].equalsIgnoreCase(name.trim())) {
+                    return i;
+                }
+            }
+        }
+        return DEBUG;
+    }
+
+    /*! Tag each message with the file, line and method that logged it. */
+    public static void setCallerTags(boolean b) {
+        callerTags = b;
+    }
+
+    /*! Returns true if a message at the given level would be kept. */
+    public static boolean isEnabled(int l) {
+        return l <= level;
+    }
+
+    /*! Change the number of lines kept.  The newest lines are kept. */
+    public static void setMaxLines(int lines) {
+        if (lines < 100) {
+            lines = 100;
+        }
+        synchronized (lock) {
+            String[] old = getLines();
+            ring = new String[lines];
+            ringHead = 0;
+            ringCount = 0;
+            for (int i = Math.max(0, old.length - lines); i < old.length; i++) {
+                ring[ringHead] = old[i];
+                ringHead = (ringHead + 1) % ring.length;
+                ringCount++;
+            }
+        }
+    }
+
+    /*! Set up the level, caller tags and buffer size from the preferences. */
+    public static void loadPreferences() {
+        setLevel(getLevel(Preferences.get("debug.log.level")));
+        setCallerTags(Preferences.getBoolean("debug.log.caller"));
+        int lines = Preferences.getInteger("debug.log.lines");
+        if (lines > 0) {
+            setMaxLines(lines);
+        }
+    }
+
+    public static void message(String s) {
+        log(DEBUG, s);
+    }
+
+    public static void message(Supplier<String> s) {
+        log(DEBUG, s);
+    }
+
+    public static void error(String s) {
+        log(ERROR, s);
+    }
+
+    public static void warning(String s) {
+        log(WARNING, s);
+    }
+
+    public static void info(String s) {
+        log(INFO, s);
+    }
+
+    public static void trace(Supplier<String> s) {
+        log(TRACE, s);
+    }
+
+    public static void log(int l, Supplier<String> s) {
+        if (!isEnabled(l)) {
+            return;
+        }
+        record(l, s.get());
+    }
+
+    public static void log(int l, String s) {
+        if (!isEnabled(l)) {
+            return;
+        }
+        record(l, s);
+    }
+
+    static void record(int l, String s) {
+        StringBuilder line = new StringBuilder();
+        line.append("[");
+        line.append(getCurrentLocalDateTimeStamp());
+        line.append("] ");
+        if (l != DEBUG) {
+            line.append(levelNames[l].toUpperCase());
+            line.append(" ");
+        }
+        if (callerTags) {
+            StackTraceElement caller = getCaller();
+            if (caller != null) {
+                line.append(caller.getFileName());
+                line.append(" ");
+                line.append(caller.getLineNumber());
+                line.append(" (");
+                line.append(caller.getMethodName());
+                line.append("): ");
+            }
+        }
+
+        if (s == null) {
+            line.append("[null]");
+        } else if (s.endsWith("\n")) {
+            line.append(s, 0, s.length() - 1);
+        } else {
+            line.append(s);
+        }
+
+        String out = line.toString();
+
+        synchronized (lock) {
+            ring[ringHead] = out;
+            ringHead = (ringHead + 1) % ring.length;
+            if (ringCount < ring.length) {
+                ringCount++;
+            }
+            written++;
+        }
+
+        LinkedBlockingQueue<String> q = logQueue;
+        if (q != null) {
+            q.offer(out);
+        } else if (verbose) {
+            System.out.println(out);
+        }
+    }
+
+    // The first frame on the stack that isn't in this class.
+    static StackTraceElement getCaller() {
+        StackTraceElement[] st = new Throwable().getStackTrace();
+        String me = Debug.class.getName();
+        for (StackTraceElement e : st) {
+            if (!e.getClassName().equals(me)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    // Get the lines in the ring buffer, oldest first.
+    static String[] getLines() {
+        synchronized (lock) {
+            String[] out = new String[ringCount];
+            int start = (ringHead - ringCount + ring.length) % ring.length;
+            for (int i = 0; i < ringCount; i++) {
+                out[i] = ring[(start + i) % ring.length];
+            }
+            return out;
+        }
+    }
+
+    /*! Send all log messages, and anything printed to stdout or stderr, to
+     *  a file.  The file is written by a background thread so logging never
+     *  waits for the disk.
+     */
+    public static void setLogFile(File f) throws IOException {
+        final BufferedWriter writer = new BufferedWriter(new FileWriter(f));
+        final LinkedBlockingQueue<String> q = new LinkedBlockingQueue<String>();
+
+        logThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        String line = q.take();
+                        if (line == END_OF_LOG) {
+                            break;
+                        }
+                        writer.write(line);
+                        writer.newLine();
+                        if (q.isEmpty()) {
+                            writer.flush();
+                        }
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+                try {
+                    writer.close();
+                } catch (IOException ex) {
+                }
+            }
+        }, "debug-log");
+        logThread.setDaemon(true);
+        logThread.start();
+
+        // Everything printed is split into lines and queued with the log
+        // messages.  Only a newline ends a line - a partial line waits for the
+        // rest of it, so flushing the stream doesn't split it in two.  Whatever
+        // is left over is written when the log is closed.
+        logStream = new PrintStream(new OutputStream() {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+            public synchronized void write(int b) {
+                if (b == '\n') {
+                    endLine();
+                } else {
+                    buffer.write(b);
+                }
+            }
+
+            public synchronized void write(byte[] b, int off, int len) {
+                int end = off + len;
+                for (int i = off; i < end; i++) {
+                    if (b[i] == '\n') {
+                        buffer.write(b, off, i - off);
+                        endLine();
+                        off = i + 1;
+                    }
+                }
+                buffer.write(b, off, end - off);
+            }
+
+            public void flush() {
+            }
+
+            public synchronized void close() {
+                if (buffer.size() > 0) {
+                    endLine();
+                }
+            }
+
+            void endLine() {
+                q.offer(buffer.toString());
+                buffer.reset();
+            }
+        }, false);
+
+        logQueue = q;
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                closeLog();
+            }
+        });
+    }
+
+    /*! Get a stream that writes to the log file, or null if there isn't one. */
+    public static PrintStream getLogStream() {
+        return logStream;
+    }
+
+    /*! Write out anything still queued and close the log file. */
+    public static void closeLog() {
+        LinkedBlockingQueue<String> q = logQueue;
+        if (q == null) {
+            return;
+        }
+        logQueue = null;
+        if (logStream != null) {
+            logStream.close();
+        }
+        q.offer(END_OF_LOG);
+        try {
+            logThread.join(2000);
+        } catch (InterruptedException ex) {
+        }
+    }
+
     public static void show() throws IOException {
         if(shown) {
             return;
@@ -83,11 +414,13 @@ public class Debug {
         contentPane.setLayout(new BorderLayout());
 
         textArea = new RSyntaxTextArea();
-        textArea.setText(debugText.toString());
-//        textArea.setEnabled(false);
         textArea.setAntiAliasingEnabled(true);
         textArea.setMarkOccurrences(true);
 
+        synchronized (lock) {
+            textArea.setText(getText());
+            displayed = written;
+        }
 
         scrollPane = new RTextScrollPane(textArea);
 
@@ -98,7 +431,7 @@ public class Debug {
         trashButton.setToolTipText(Base.i18n.string("toolbar.clear"));
         trashButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                Debug.debugText = new StringBuilder();
+                clear();
                 textArea.setText("");
             }
         });
@@ -155,6 +488,59 @@ public class Debug {
             }
         });
 
+        refreshTimer = new javax.swing.Timer(REFRESH_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+        refreshTimer.start();
+    }
+
+    // Add any new lines to the window.  Runs on the event thread.
+    static void refresh() {
+        if (!shown) {
+            return;
+        }
+
+        StringBuilder add = new StringBuilder();
+        synchronized (lock) {
+            long missing = written - displayed;
+            if (missing <= 0) {
+                return;
+            }
+            if (missing > ringCount) {
+                missing = ringCount;
+            }
+            for (long i = missing; i > 0; i--) {
+                add.append(ring[(int)((ringHead - i + ring.length) % ring.length)]);
+                add.append("\n");
+            }
+            displayed = written;
+        }
+
+        textArea.append(add.toString());
+
+        try {
+            int excess = textArea.getLineCount() - ring.length - 1;
+            if (excess > 0) {
+                textArea.replaceRange("", 0, textArea.getLineEndOffset(excess - 1));
+            }
+            if(!pauseButton.isSelected()) {
+                textArea.setCaretPosition(textArea.getDocument().getLength());
+            }
+        } catch(Exception e) {
+            Base.exception(e);
+        }
+    }
+
+    /*! Throw away everything in the ring buffer. */
+    public static void clear() {
+        synchronized (lock) {
+            ring = new String[ring.length];
+            ringHead = 0;
+            ringCount = 0;
+            displayed = written;
+        }
     }
 
     public static void hide() {
@@ -168,6 +554,11 @@ public class Debug {
     public static void handleClose() {
         shown = false;
 
+        if (refreshTimer != null) {
+            refreshTimer.stop();
+            refreshTimer = null;
+        }
+
         if(Base.preferences != null) {
             Dimension d = win.getSize();
             Preferences.setInteger("debug.window.width", d.width);
@@ -180,52 +571,6 @@ public class Debug {
         win.dispose();
     }
 
-    public static void message(String s) {
-        Thread t = Thread.currentThread();
-        StackTraceElement[] st = t.getStackTrace();
-        StackTraceElement caller = st[2];
-
-        String tag = "[" + getCurrentLocalDateTimeStamp() + "] " + caller.getFileName() + " " + caller.getLineNumber() + " (" + caller.getMethodName() + "): ";
-
-        debugText.append(tag);
-
-        if (s == null) {
-            debugText.append("[null]\n");
-            return;
-        }
-
-        debugText.append(s);
-
-        if(verbose) System.out.print(tag + s);
-
-        if(!s.endsWith("\n")) {
-            debugText.append("\n");
-
-            if(verbose) System.out.print("\n");
-        }
-
-        if(shown) {
-            textArea.append(tag);
-            textArea.append(s);
-
-            if(!s.endsWith("\n")) {
-                textArea.append("\n");
-            }
-
-            if(!pauseButton.isSelected()) {
-                try {
-                    if (debugText != null) {
-                        if (debugText.length() > 0) {
-                            textArea.setCaretPosition(debugText.length());
-                        }
-                    }
-                } catch(Exception e) {
-                    Base.exception(e);
-                }
-            }
-        }
-    }
-
     public static void setSize(Dimension d) {
         if(shown) {
             win.setSize(d);
@@ -239,11 +584,16 @@ public class Debug {
     }
 
     public static String getText() {
-        return debugText.toString();
+        StringBuilder sb = new StringBuilder();
+        for (String line : getLines()) {
+            sb.append(line);
+            sb.append("\n");
+        }
+        return sb.toString();
     }
 
     public static String getCurrentLocalDateTimeStamp() {
-        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date());
+        return dateFormat.get().format(new Date());
     }
 
 }
@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+import java.security.MessageDigest;
+
+/*! The DependencyIndex keeps track of every input that went into making an
+ *  object file - the source file itself and every header it pulled in,
+ *  directly or otherwise - along with a signature of the command used to
+ *  build it.  An object only needs rebuilding if one of those inputs, or the
+ *  command, has changed since it was last built.
+ *
+ *  Include sets come from the compiler's own dependency (.d) file when the
+ *  core's recipe generates one (-MMD), otherwise from an in-process scan of
+ *  the #include lines that resolves against the current include paths.
+ *
+ *  The index is stored as a small text file in the build folder.
+ */
+public class DependencyIndex {
+
+    static final String INDEX_NAME = "deps.idx";
+
+    static final Pattern includePattern = Pattern.compile("^\\s*#\\s*include\\s*[<\"]([^>\"]+)[>\"]");
+
+    // Parsed #include lists, shared between all indexes, keyed on path and
+    // validated against the file's modification time and size.
+    static HashMap<String, CachedIncludes> includeCache = new HashMap<String, CachedIncludes>();
+
+    File indexFile;
+    TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+    HashMap<String, Input> stats = new HashMap<String, Input>();
+    boolean dirty = false;
+
+    static class CachedIncludes {
+        long modified;
+        long length;
+        ArrayList<String> includes;
+    }
+
+    static class Input {
+        String path;
+        long modified;
+        long length;
+        String hash;
+    }
+
+    static class Entry {
+        String signature;
+        ArrayList<Input> inputs = new ArrayList<Input>();
+    }
+
+    /*! Open (or create) the dependency index for the given build folder. */
+    public DependencyIndex(File buildFolder) {
+        indexFile = new File(buildFolder, INDEX_NAME);
+        load();
+    }
+
+    /*! Returns true if the object file exists and none of the inputs it was last built
+     *  from, nor the command used to build it, have changed.
+     */
+    public synchronized boolean isUpToDate(File object, String command) {
+        if (!object.exists()) {
+            return false;
+        }
+
+        Entry e = entries.get(object.getAbsolutePath());
+        if (e == null) {
+            return false;
+        }
+
+        if (!e.signature.equals(hashString(command))) {
+            return false;
+        }
+
+        for (Input in : e.inputs) {
+            File f = new File(in.path);
+            if (!f.exists()) {
+                return false;
+            }
+
+            if ((f.lastModified() == in.modified) && (f.length() == in.length)) {
+                continue;
+            }
+
+            // The file has been touched.  Files that get rewritten every
+            // compile (the sketch files dumped into the build folder, for
+            // instance) still count as unchanged if the content is the same.
+            if (f.length() != in.length) {
+                return false;
+            }
+
+            Input now = statFile(f);
+            if ((now == null) || (!now.hash.equals(in.hash))) {
+                return false;
+            }
+
+            in.modified = now.modified;
+            dirty = true;
+        }
+
+        return true;
+    }
+
+    /*! Record the inputs used to build an object file from the given source.  If the
+     *  compiler generated a dependency file alongside the object that is used, otherwise
+     *  the source is scanned for includes resolved against *includePaths*.
+     */
+    public synchronized void record(File object, File source, String command, List<File> includePaths, long started) {
+        Set<File> files = null;
+
+        File depFile = findDepFile(object, started);
+        if (depFile != null) {
+            files = parseDepFile(depFile);
+        }
+
+        if (files == null) {
+            files = scanIncludes(source, includePaths);
+        }
+
+        Entry e = new Entry();
+        e.signature = hashString(command);
+
+        for (File f : files) {
+            Input in = statFile(f);
+            if (in != null) {
+                e.inputs.add(in);
+            }
+        }
+
+        entries.put(object.getAbsolutePath(), e);
+        dirty = true;
+    }
+
+    /*! Forget about an object file. */
+    public synchronized void remove(File object) {
+        if (entries.remove(object.getAbsolutePath()) != null) {
+            dirty = true;
+        }
+    }
+
+    /*! Write the index out to the build folder if anything has changed.
+     *  Entries for object files that no longer exist are dropped first.
+     */
+    public synchronized void save() {
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+            if (!new File(it.next()).exists()) {
+                it.remove();
+                dirty = true;
+            }
+        }
+
+        if (!dirty) {
+            return;
+        }
+
+        try {
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8"));
+            for (String obj : entries.keySet()) {
+                Entry e = entries.get(obj);
+                pw.println("object\t" + obj);
+                pw.println("command\t" + e.signature);
+                for (Input in : e.inputs) {
+                    pw.println("input\t" + in.modified + "\t" + in.length + "\t" + in.hash + "\t" + in.path);
+                }
+            }
+            pw.close();
+            dirty = false;
+        } catch (Exception ex) {
+            Base.exception(ex);
+        }
+    }
+
+    void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            String line;
+            Entry current = null;
+            while ((line = br.readLine()) != null) {
+                String[] bits = line.split("\t");
+                if (bits[0].equals("object") && (bits.length == 2)) {
+                    current = new Entry();
+                    entries.put(bits[1], current);
+                } else if (bits[0].equals("command") && (bits.length == 2) && (current != null)) {
+                    current.signature = bits[1];
+                } else if (bits[0].equals("input") && (bits.length == 5) && (current != null)) {
+                    Input in = new Input();
+                    in.modified = Long.parseLong(bits[1]);
+                    in.length = Long.parseLong(bits[2]);
+                    in.hash = bits[3];
+                    in.path = bits[4];
+                    current.inputs.add(in);
+                }
+            }
+            br.close();
+        } catch (Exception ex) {
+            // A damaged index just means a full rebuild.
+            Base.exception(ex);
+            entries.clear();
+        }
+
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().signature == null) {
+                it.remove();
+            }
+        }
+    }
+
+    Input statFile(File f) {
+        String path = f.getAbsolutePath();
+        long modified = f.lastModified();
+        long length = f.length();
+
+        Input in = stats.get(path);
+        if ((in != null) && (in.modified == modified) && (in.length == length)) {
+            return in;
+        }
+
+        String hash = hashFile(f);
+        if (hash == null) {
+            return null;
+        }
+
+        in = new Input();
+        in.path = path;
+        in.modified = modified;
+        in.length = length;
+        in.hash = hash;
+        stats.put(path, in);
+        return in;
+    }
+
+    // GCC writes foo.cpp.d for -o foo.cpp.o.  Some recipes use -MF with the
+    // object name plus .d instead.  Either way it must have been written by
+    // this compile, not left over from an earlier one.
+    static File findDepFile(File object, long started) {
+        String name = object.getName();
+        File[] candidates = new File[2];
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            candidates[0] = new File(object.getParentFile(), name.substring(0, dot) + ".d");
+        }
+        candidates[1] = new File(object.getParentFile(), name + ".d");
+
+        for (File c : candidates) {
+            if ((c != null) && c.exists() && (c.lastModified() >= (started - 1000))) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /*! Parse a make-style dependency file as generated by gcc -MD / -MMD.  Returns
+     *  null if the file could not be understood.
+     */
+    public static Set<File> parseDepFile(File depFile) {
+        String data = Base.getFileAsString(depFile);
+        if (data == null) {
+            return null;
+        }
+
+        int colon = data.indexOf(": ");
+        if (colon == -1) {
+            colon = data.indexOf(":\n");
+        }
+        if (colon == -1) {
+            return null;
+        }
+
+        LinkedHashSet<File> files = new LinkedHashSet<File>();
+        StringBuilder name = new StringBuilder();
+        String deps = data.substring(colon + 1);
+        int len = deps.length();
+
+        for (int i = 0; i < len; i++) {
+            char c = deps.charAt(i);
+            if (c == '\\' && (i + 1 < len)) {
+                char n = deps.charAt(i + 1);
+                if (n == ' ') {
+                    name.append(' ');
+                    i++;
+                    continue;
+                }
+                if (n == '\n' || n == '\r') {
+                    i++;
+                    continue;
+                }
+            }
+
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                if (name.length() > 0) {
+                    String fn = name.toString();
+                    name.setLength(0);
+                    // Phony targets from -MP mark the start of the next rule
+                    if (fn.endsWith(":")) {
+                        break;
+                    }
+                    files.add(new File(fn).getAbsoluteFile());
+                }
+                continue;
+            }
+            name.append(c);
+        }
+
+        if (name.length() > 0) {
+            String fn = name.toString();
+            if (!fn.endsWith(":")) {
+                files.add(new File(fn).getAbsoluteFile());
+            }
+        }
+
+        return files;
+    }
+
+    /*! Find the full transitive set of files included by a source file.  Quoted
+     *  includes are looked for next to the including file first, then everything
+     *  is looked for in the include paths in order.  Includes that can't be found
+     *  (system headers from the toolchain, for instance) are skipped.
+     */
+    public static Set<File> scanIncludes(File source, List<File> includePaths) {
+        LinkedHashSet<File> found = new LinkedHashSet<File>();
+        ArrayDeque<File> pending = new ArrayDeque<File>();
+
+        File src = source.getAbsoluteFile();
+        found.add(src);
+        pending.add(src);
+
+        while (!pending.isEmpty()) {
+            File f = pending.removeFirst();
+            for (String inc : getIncludes(f)) {
+                File resolved = resolveInclude(inc, f.getParentFile(), includePaths);
+                if ((resolved != null) && found.add(resolved)) {
+                    pending.add(resolved);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    static File resolveInclude(String name, File localFolder, List<File> includePaths) {
+        if (localFolder != null) {
+            File f = new File(localFolder, name);
+            if (f.isFile()) {
+                return f.getAbsoluteFile();
+            }
+        }
+
+        for (File path : includePaths) {
+            File f = new File(path, name);
+            if (f.isFile()) {
+                return f.getAbsoluteFile();
+            }
+        }
+
+        return null;
+    }
+
+    static ArrayList<String> getIncludes(File f) {
+        String path = f.getAbsolutePath();
+        long modified = f.lastModified();
+        long length = f.length();
+
+        synchronized (includeCache) {
+            CachedIncludes ci = includeCache.get(path);
+            if ((ci != null) && (ci.modified == modified) && (ci.length == length)) {
+                return ci.includes;
+            }
+        }
+
+        ArrayList<String> includes = new ArrayList<String>();
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.indexOf("include") == -1) {
+                    continue;
+                }
+                Matcher m = includePattern.matcher(line);
+                if (m.find()) {
+                    includes.add(m.group(1).trim());
+                }
+            }
+            br.close();
+        } catch (Exception ex) {
+            Base.exception(ex);
+        }
+
+        CachedIncludes ci = new CachedIncludes();
+        ci.modified = modified;
+        ci.length = length;
+        ci.includes = includes;
+        synchronized (includeCache) {
+            includeCache.put(path, ci);
+        }
+        return includes;
+    }
+
+    /*! Convert an "includes" setting (-I<path>::-I<path>...) into a list of folders. */
+    public static ArrayList<File> parseIncludePaths(String includes) {
+        ArrayList<File> paths = new ArrayList<File>();
+        if (includes == null) {
+            return paths;
+        }
+        for (String inc : includes.split("::")) {
+            inc = inc.trim();
+            if (inc.startsWith("-I")) {
+                inc = inc.substring(2).trim();
+            }
+            if (inc.startsWith("\"") && inc.endsWith("\"") && (inc.length() > 1)) {
+                inc = inc.substring(1, inc.length() - 1);
+            }
+            if (!inc.equals("")) {
+                paths.add(new File(inc));
+            }
+        }
+        return paths;
+    }
+
+    static String hashString(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            return toHex(md.digest(s.getBytes("UTF-8")));
+        } catch (Exception ex) {
+            Base.exception(ex);
+        }
+        return s;
+    }
+
+    static String hashFile(File f) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            FileInputStream fis = new FileInputStream(f);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = fis.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+            fis.close();
+            return toHex(md.digest());
+        } catch (Exception ex) {
+            Base.exception(ex);
+        }
+        return null;
+    }
+
+    static String toHex(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : data) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}
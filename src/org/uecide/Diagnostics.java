@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import org.json.simple.*;
+
+/*! Diagnostics turns the compiler's output into structured error and warning
+ *  records and keeps every one found during a build.
+ *
+ *  The *compiler.error* and *compiler.warning* patterns are compiled once when
+ *  the object is created, and each thread matching lines gets its own Matcher
+ *  that is reset for every line rather than recreated.  The group numbers are
+ *  taken from *compiler.error.filename*, *compiler.error.line*,
+ *  *compiler.error.column* and *compiler.error.message* (and the same for
+ *  warnings).  A column group of 0 means the pattern doesn't capture one.
+ */
+public class Diagnostics {
+
+    public static final int ERROR = 0;
+    public static final int WARNING = 1;
+
+    /*! A single error or warning reported by the compiler. */
+    public static class Diagnostic {
+        File file;
+        int line;
+        int column;
+        int severity;
+        String message;
+
+        public Diagnostic(File f, int l, int c, int s, String m) {
+            file = f;
+            line = l;
+            column = c;
+            severity = s;
+            message = m;
+        }
+
+        public File getFile() { return file; }
+        public int getLine() { return line; }
+        public int getColumn() { return column; }
+        public int getSeverity() { return severity; }
+        public String getMessage() { return message; }
+        public boolean isError() { return severity == ERROR; }
+        public boolean isWarning() { return severity == WARNING; }
+
+        public String toString() {
+            return file.getPath() + ":" + line + (column > 0 ? ":" + column : "") + ": " + (isError() ? "error" : "warning") + ": " + message;
+        }
+    }
+
+    // One compiled pattern and the groups to pull the details out of.
+    static class Rule {
+        int severity;
+        Pattern pattern;
+        int fileGroup;
+        int lineGroup;
+        int columnGroup;
+        int messageGroup;
+
+        ThreadLocal<Matcher> matchers = new ThreadLocal<Matcher>() {
+            protected Matcher initialValue() {
+                return pattern.matcher("");
+            }
+        };
+
+        Rule(PropertyFile props, String key, int sev) {
+            severity = sev;
+            pattern = Pattern.compile(props.get(key));
+            fileGroup = props.getInteger(key + ".filename", 1);
+            lineGroup = props.getInteger(key + ".line", 2);
+            columnGroup = props.getInteger(key + ".column", 0);
+            messageGroup = props.getInteger(key + ".message", 3);
+        }
+
+        Diagnostic match(String s) {
+            Matcher m = matchers.get();
+            m.reset(s);
+            if (!m.find()) {
+                m.reset("");
+                return null;
+            }
+            try {
+                int line = Integer.parseInt(m.group(lineGroup));
+                int column = 0;
+                if ((columnGroup > 0) && (columnGroup <= m.groupCount()) && (m.group(columnGroup) != null)) {
+                    column = Integer.parseInt(m.group(columnGroup));
+                }
+                return new Diagnostic(new File(m.group(fileGroup)), line, column, severity, m.group(messageGroup));
+            } catch (Exception ex) {
+                // The pattern matched but didn't give us something we understand.
+                return null;
+            } finally {
+                // Don't keep a reference to the line around.
+                m.reset("");
+            }
+        }
+    }
+
+    Rule errorRule = null;
+    Rule warningRule = null;
+
+    ArrayList<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+    int errors = 0;
+    int warnings = 0;
+
+    /*! Compile the error and warning patterns from the context's merged properties. */
+    public Diagnostics(Context ctx) {
+        PropertyFile props = ctx.getMerged();
+        try {
+            if (props.get("compiler.error") != null) {
+                errorRule = new Rule(props, "compiler.error", ERROR);
+            }
+        } catch (PatternSyntaxException ex) {
+            Base.exception(ex);
+        }
+        try {
+            if (props.get("compiler.warning") != null) {
+                warningRule = new Rule(props, "compiler.warning", WARNING);
+            }
+        } catch (PatternSyntaxException ex) {
+            Base.exception(ex);
+        }
+    }
+
+    /*! Match a line against the error pattern.  Returns null if it isn't an error. */
+    public Diagnostic matchError(String s) {
+        if (errorRule == null) {
+            return null;
+        }
+        return errorRule.match(s);
+    }
+
+    /*! Match a line against the warning pattern.  Returns null if it isn't a warning. */
+    public Diagnostic matchWarning(String s) {
+        if (warningRule == null) {
+            return null;
+        }
+        return warningRule.match(s);
+    }
+
+    /*! Match a line as an error or, failing that, a warning. */
+    public Diagnostic match(String s) {
+        Diagnostic d = matchError(s);
+        if (d == null) {
+            d = matchWarning(s);
+        }
+        return d;
+    }
+
+    /*! Record a diagnostic in the collection for this build. */
+    public synchronized void add(Diagnostic d) {
+        diagnostics.add(d);
+        if (d.isError()) {
+            errors++;
+        } else {
+            warnings++;
+        }
+    }
+
+    /*! Get a copy of everything recorded so far. */
+    public synchronized ArrayList<Diagnostic> getDiagnostics() {
+        return new ArrayList<Diagnostic>(diagnostics);
+    }
+
+    public synchronized int getErrorCount() {
+        return errors;
+    }
+
+    public synchronized int getWarningCount() {
+        return warnings;
+    }
+
+    public synchronized void clear() {
+        diagnostics.clear();
+        errors = 0;
+        warnings = 0;
+    }
+
+    /*! Get everything recorded so far as a JSON object. */
+    @SuppressWarnings("unchecked")
+    public synchronized JSONObject toJSON() {
+        JSONArray list = new JSONArray();
+        for (Diagnostic d : diagnostics) {
+            JSONObject o = new JSONObject();
+            o.put("file", d.getFile().getAbsolutePath());
+            o.put("line", d.getLine());
+            o.put("column", d.getColumn());
+            o.put("severity", d.isError() ? "error" : "warning");
+            o.put("message", d.getMessage());
+            list.add(o);
+        }
+        JSONObject out = new JSONObject();
+        out.put("errors", errors);
+        out.put("warnings", warnings);
+        out.put("diagnostics", list);
+        return out;
+    }
+
+    /*! Write everything recorded so far to a file as JSON. */
+    public void writeReport(File f) throws IOException {
+        String json = toJSON().toJSONString();
+        PrintWriter pw = new PrintWriter(new FileWriter(f));
+        pw.println(json);
+        pw.close();
+    }
+}
@@ -1461,38 +1461,54 @@ public class Editor extends JFrame {
         });
     }
 
-    public synchronized void updateLibrariesTree() {
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                TreePath[] saved = saveTreeState(sketchContentTree);
-                if (saved == null) {
-                    return;
-                }
-//                treeLibraries.removeAllChildren();
-                HashMap<String, Library>libList = loadedSketch.getLibraries();
-                
-                DefaultMutableTreeNode ntc = new DefaultMutableTreeNode();
-                DefaultMutableTreeNode node;
+    // Library and output tree updates are asked for by every task of a
+    // build, so they are throttled to a few a second.
+    static final int TREE_UPDATE_INTERVAL = 250;
 
-                if(libList != null) {
-                    ArrayList<String> libs = new ArrayList<String>();
-                    libs.addAll(libList.keySet());
-                    for(String libname : libs) {
-                        node = new DefaultMutableTreeNode(libname);
-                        node.setUserObject(libList.get(libname));
-                        ntc.add(node);
-                    }
+    ThrottledUpdate librariesTreeUpdate = new ThrottledUpdate(TREE_UPDATE_INTERVAL, new Runnable() {
+        public void run() {
+            if (treeLibraries == null) {
+                return;
+            }
+            HashMap<String, Library>libList = loadedSketch.getLibraries();
+            
+            DefaultMutableTreeNode ntc = new DefaultMutableTreeNode();
+            DefaultMutableTreeNode node;
+
+            if(libList != null) {
+                ArrayList<String> libs = new ArrayList<String>();
+                libs.addAll(libList.keySet());
+                for(String libname : libs) {
+                    node = new DefaultMutableTreeNode(libname);
+                    node.setUserObject(libList.get(libname));
+                    ntc.add(node);
                 }
+            }
 
-                boolean hasChanged = mergeTrees(treeLibraries, ntc);
-                treeModel.reload(sortTree(treeLibraries));
-                restoreTreeState(sketchContentTree, saved);
-                if (hasChanged) {
-                    populateOptionsMenu(optionsMenu);
-                    optionsMenu.setEnabled(optionsMenu.getItemCount() > 0);
+            boolean hasChanged = mergeTrees(treeLibraries, ntc);
+
+            if (!hasChanged) {
+                // Only the compile progress of the libraries can have
+                // changed, so just redraw them.
+                for (int i = 0; i < treeLibraries.getChildCount(); i++) {
+                    treeModel.nodeChanged(treeLibraries.getChildAt(i));
                 }
+                return;
             }
-        });
+
+            TreePath[] saved = saveTreeState(sketchContentTree);
+            if (saved == null) {
+                return;
+            }
+            treeModel.reload(sortTree(treeLibraries));
+            restoreTreeState(sketchContentTree, saved);
+            populateOptionsMenu(optionsMenu);
+            optionsMenu.setEnabled(optionsMenu.getItemCount() > 0);
+        }
+    });
+
+    public void updateLibrariesTree() {
+        librariesTreeUpdate.request();
     }
 
     public void updateBinariesTree() {
@@ -1542,21 +1558,71 @@ public class Editor extends JFrame {
         });
     }
 
+    ThrottledUpdate outputTreeUpdate = new ThrottledUpdate(TREE_UPDATE_INTERVAL, new Runnable() {
+        public void run() {
+            if (treeOutput == null) {
+                return;
+            }
+            syncFileTreeNode(treeOutput, loadedSketch.getBuildFolder());
+        }
+    });
+
     public void updateOutputTree() {
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                TreePath[] saved = saveTreeState(sketchContentTree);
-                if (saved == null) {
-                    return;
+        outputTreeUpdate.request();
+    }
+
+    // Bring the children of a node in line with the files in a folder by
+    // inserting and removing just the nodes that differ, rather than
+    // rebuilding the whole branch.  Must be called on the event thread.
+    void syncFileTreeNode(DefaultMutableTreeNode node, File dir) {
+        File[] files = null;
+        if ((dir != null) && dir.isDirectory()) {
+            files = dir.listFiles();
+        }
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+
+        int i = 0;
+        int j = 0;
+        while ((i < node.getChildCount()) || (j < files.length)) {
+            DefaultMutableTreeNode child = null;
+            File childFile = null;
+            if (i < node.getChildCount()) {
+                child = (DefaultMutableTreeNode)node.getChildAt(i);
+                if (!(child.getUserObject() instanceof File)) {
+                    treeModel.removeNodeFromParent(child);
+                    continue;
                 }
-                treeOutput.removeAllChildren();
-                addFileTreeToNode(treeOutput, loadedSketch.getBuildFolder());
-                treeModel.nodeStructureChanged(treeOutput);
+                childFile = (File)child.getUserObject();
+            }
 
+            int cmp = (child == null) ? 1 : (j >= files.length) ? -1 : childFile.compareTo(files[j]);
 
-                restoreTreeState(sketchContentTree, saved);
+            if (cmp < 0) {
+                treeModel.removeNodeFromParent(child);
+            } else if (cmp > 0) {
+                DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(files[j].getName());
+                newNode.setUserObject(files[j]);
+                if (files[j].isDirectory()) {
+                    addFileTreeToNode(newNode, files[j]);
+                }
+                treeModel.insertNodeInto(newNode, node, i);
+                i++;
+                j++;
+            } else {
+                if (files[j].isDirectory()) {
+                    syncFileTreeNode(child, files[j]);
+                } else if (child.getChildCount() > 0) {
+                    // Was a folder, now a file.
+                    child.removeAllChildren();
+                    treeModel.nodeStructureChanged(child);
+                }
+                i++;
+                j++;
             }
-        });
+        }
     }
 
     public void updateFilesTree() {
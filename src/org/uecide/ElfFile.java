@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/*! ElfFile reads the headers, sections, symbols and program headers of an
+ *  ELF file.  The file is mapped into memory rather than read, so opening
+ *  even a large debug build is instant; the section, symbol and program
+ *  header tables are only decoded the first time they are asked for.
+ *
+ *  Both 32 and 64 bit files in either byte order are understood.  Call
+ *  close() when finished so the mapping is released - until then some
+ *  platforms will not let the file be overwritten by the next build.
+ */
+public class ElfFile {
+
+    public static final int ELFCLASS32 = 1;
+    public static final int ELFCLASS64 = 2;
+
+    public static final int ELFDATA2LSB = 1;
+    public static final int ELFDATA2MSB = 2;
+
+    public static final int SHT_NULL = 0;
+    public static final int SHT_PROGBITS = 1;
+    public static final int SHT_SYMTAB = 2;
+    public static final int SHT_STRTAB = 3;
+    public static final int SHT_NOBITS = 8;
+    public static final int SHT_DYNSYM = 11;
+
+    public static final long SHF_WRITE = 0x1;
+    public static final long SHF_ALLOC = 0x2;
+    public static final long SHF_EXECINSTR = 0x4;
+
+    public static final int SHN_UNDEF = 0;
+    public static final int SHN_LORESERVE = 0xFF00;
+    public static final int SHN_XINDEX = 0xFFFF;
+
+    public static final int PT_LOAD = 1;
+
+    /*! A single entry from the section header table. */
+    public class Section {
+        int index;
+        String name;
+        long nameIndex;
+        long type;
+        long flags;
+        long address;
+        long offset;
+        long size;
+        long link;
+        long info;
+        long align;
+        long entrySize;
+
+        public int getIndex() { return index; }
+        public String getName() { return name; }
+        public long getType() { return type; }
+        public long getFlags() { return flags; }
+        public long getAddress() { return address; }
+        public long getOffset() { return offset; }
+        public long getSize() { return size; }
+        public long getLink() { return link; }
+        public long getInfo() { return info; }
+        public long getAlignment() { return align; }
+        public long getEntrySize() { return entrySize; }
+
+        public boolean isAllocated() { return (flags & SHF_ALLOC) != 0; }
+        public boolean isWritable() { return (flags & SHF_WRITE) != 0; }
+        public boolean isExecutable() { return (flags & SHF_EXECINSTR) != 0; }
+        public boolean hasData() { return type != SHT_NOBITS && type != SHT_NULL; }
+
+        /*! A copy of the section's contents, in the file's byte order.  The
+         *  copy stays valid after the file is closed.
+         */
+        public ByteBuffer getData() {
+            if (!hasData()) {
+                return ByteBuffer.allocate(0);
+            }
+            return copy(offset, size);
+        }
+
+        public String toString() { return name; }
+    }
+
+    /*! A single entry from the symbol table. */
+    public class Symbol {
+        String name;
+        long value;
+        long size;
+        int info;
+        int other;
+        int sectionIndex;
+
+        public String getName() { return name; }
+        public long getValue() { return value; }
+        public long getSize() { return size; }
+        public int getBinding() { return (info >> 4) & 0x0F; }
+        public int getType() { return info & 0x0F; }
+        public int getOther() { return other; }
+        public int getSectionIndex() { return sectionIndex; }
+
+        /*! The section this symbol is defined in, or null if it is
+         *  undefined, absolute or common.
+         */
+        public Section getSection() {
+            if (sectionIndex == SHN_UNDEF || sectionIndex >= SHN_LORESERVE) {
+                return null;
+            }
+            ArrayList<Section> secs = getSections();
+            if (sectionIndex >= secs.size()) {
+                return null;
+            }
+            return secs.get(sectionIndex);
+        }
+
+        public String toString() { return name; }
+    }
+
+    /*! A single entry from the program header table. */
+    public class ProgramHeader {
+        long type;
+        long flags;
+        long offset;
+        long virtualAddress;
+        long physicalAddress;
+        long fileSize;
+        long memorySize;
+        long align;
+
+        public long getType() { return type; }
+        public long getFlags() { return flags; }
+        public long getOffset() { return offset; }
+        public long getVirtualAddress() { return virtualAddress; }
+        public long getPhysicalAddress() { return physicalAddress; }
+        public long getFileSize() { return fileSize; }
+        public long getMemorySize() { return memorySize; }
+        public long getAlignment() { return align; }
+    }
+
+    /*! The memory used by the allocated sections, split the same way as
+     *  the size utility's text, data and bss columns.  Read only data that
+     *  isn't code is counted separately as rodata.
+     */
+    public static class SizeSummary {
+        public long text = 0;
+        public long rodata = 0;
+        public long data = 0;
+        public long bss = 0;
+
+        public long getFlash() { return text + rodata + data; }
+        public long getRam() { return data + bss; }
+    }
+
+    File file;
+    ByteBuffer buffer;
+
+    int elfClass;
+    int dataEncoding;
+    int version;
+    int osAbi;
+    int abiVersion;
+
+    int type;
+    int machine;
+    long entry;
+    long phOffset;
+    long shOffset;
+    long flags;
+    int phEntrySize;
+    int phCount;
+    int shEntrySize;
+    int shCount;
+    int shStringIndex;
+
+    ArrayList<Section> sections = null;
+    HashMap<String, Section> sectionsByName = null;
+    ArrayList<Symbol> symbols = null;
+    ArrayList<ProgramHeader> programHeaders = null;
+
+    /*! Map the file and read the ELF header.  Throws an IOException if the
+     *  file can't be mapped or isn't an ELF file.
+     */
+    public ElfFile(File f) throws IOException {
+        file = f;
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            long len = raf.length();
+            if (len > Integer.MAX_VALUE) {
+                throw new IOException(f.getName() + " is too big to map");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, len);
+        } finally {
+            raf.close();
+        }
+
+        try {
+            readHeader();
+        } catch (BufferUnderflowException ex) {
+            close();
+            throw new IOException(f.getName() + " is truncated");
+        } catch (IndexOutOfBoundsException ex) {
+            close();
+            throw new IOException(f.getName() + " is truncated");
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    void readHeader() throws IOException {
+        if (buffer.limit() < 16 ||
+            buffer.get(0) != 0x7F || buffer.get(1) != 'E' || buffer.get(2) != 'L' || buffer.get(3) != 'F') {
+            throw new IOException(file.getName() + " is not an ELF file");
+        }
+
+        elfClass = buffer.get(4) & 0xFF;
+        dataEncoding = buffer.get(5) & 0xFF;
+        version = buffer.get(6) & 0xFF;
+        osAbi = buffer.get(7) & 0xFF;
+        abiVersion = buffer.get(8) & 0xFF;
+
+        if (elfClass != ELFCLASS32 && elfClass != ELFCLASS64) {
+            throw new IOException(file.getName() + " has an unknown ELF class " + elfClass);
+        }
+
+        if (dataEncoding == ELFDATA2LSB) {
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (dataEncoding == ELFDATA2MSB) {
+            buffer.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            throw new IOException(file.getName() + " has an unknown data encoding " + dataEncoding);
+        }
+
+        int pos = 16;
+        type = half(pos); pos += 2;
+        machine = half(pos); pos += 2;
+        pos += 4; // e_version repeats ei_version
+        entry = addr(pos); pos += addrSize();
+        phOffset = addr(pos); pos += addrSize();
+        shOffset = addr(pos); pos += addrSize();
+        flags = word(pos); pos += 4;
+        pos += 2; // e_ehsize
+        phEntrySize = half(pos); pos += 2;
+        phCount = half(pos); pos += 2;
+        shEntrySize = half(pos); pos += 2;
+        shCount = half(pos); pos += 2;
+        shStringIndex = half(pos);
+    }
+
+    public File getFile() { return file; }
+    public boolean is64Bit() { return elfClass == ELFCLASS64; }
+    public boolean isBigEndian() { return dataEncoding == ELFDATA2MSB; }
+    public int getVersion() { return version; }
+    public int getOsAbi() { return osAbi; }
+    public int getAbiVersion() { return abiVersion; }
+    public int getType() { return type; }
+    public int getMachine() { return machine; }
+    public long getEntry() { return entry; }
+    public long getFlags() { return flags; }
+
+    /*! All the sections, in section header table order. */
+    public synchronized ArrayList<Section> getSections() {
+        if (sections != null) {
+            return sections;
+        }
+
+        ArrayList<Section> list = new ArrayList<Section>();
+        HashMap<String, Section> byName = new HashMap<String, Section>();
+
+        if (shOffset != 0 && shEntrySize > 0) {
+            int count = shCount;
+            int strndx = shStringIndex;
+
+            // Files with very many sections keep the real counts in the
+            // first section header.
+            if (count == 0) {
+                count = (int)(is64Bit() ? xword(shOffset + 32) : word(shOffset + 20));
+            }
+            if (strndx == SHN_XINDEX) {
+                strndx = (int)word(shOffset + (is64Bit() ? 44 : 28));
+            }
+
+            for (int i = 0; i < count; i++) {
+                list.add(readSection(i, shOffset + ((long)i * shEntrySize)));
+            }
+
+            Section strtab = (strndx < list.size()) ? list.get(strndx) : null;
+            for (Section s : list) {
+                s.name = (strtab == null) ? "" : string(strtab, s.nameIndex);
+                if (!byName.containsKey(s.name)) {
+                    byName.put(s.name, s);
+                }
+            }
+        }
+
+        sectionsByName = byName;
+        sections = list;
+        return sections;
+    }
+
+    /*! Find a section by name, or null if there isn't one. */
+    public Section getSection(String name) {
+        getSections();
+        return sectionsByName.get(name);
+    }
+
+    Section readSection(int index, long pos) {
+        Section s = new Section();
+        s.index = index;
+        s.nameIndex = word(pos);
+        s.type = word(pos + 4);
+        if (is64Bit()) {
+            s.flags = xword(pos + 8);
+            s.address = xword(pos + 16);
+            s.offset = xword(pos + 24);
+            s.size = xword(pos + 32);
+            s.link = word(pos + 40);
+            s.info = word(pos + 44);
+            s.align = xword(pos + 48);
+            s.entrySize = xword(pos + 56);
+        } else {
+            s.flags = word(pos + 8);
+            s.address = word(pos + 12);
+            s.offset = word(pos + 16);
+            s.size = word(pos + 20);
+            s.link = word(pos + 24);
+            s.info = word(pos + 28);
+            s.align = word(pos + 32);
+            s.entrySize = word(pos + 36);
+        }
+        return s;
+    }
+
+    /*! All the entries in the symbol table.  If there is no full symbol
+     *  table the dynamic one is used instead.
+     */
+    public synchronized ArrayList<Symbol> getSymbols() {
+        if (symbols != null) {
+            return symbols;
+        }
+
+        ArrayList<Symbol> list = new ArrayList<Symbol>();
+        Section symtab = null;
+        for (Section s : getSections()) {
+            if (s.type == SHT_SYMTAB) {
+                symtab = s;
+                break;
+            }
+            if (s.type == SHT_DYNSYM && symtab == null) {
+                symtab = s;
+            }
+        }
+
+        if (symtab != null) {
+            long entsize = symtab.entrySize > 0 ? symtab.entrySize : (is64Bit() ? 24 : 16);
+            long count = symtab.size / entsize;
+            Section strtab = (symtab.link < sections.size()) ? sections.get((int)symtab.link) : null;
+            list.ensureCapacity((int)count);
+            for (long i = 0; i < count; i++) {
+                list.add(readSymbol(symtab.offset + (i * entsize), strtab));
+            }
+        }
+
+        symbols = list;
+        return symbols;
+    }
+
+    Symbol readSymbol(long pos, Section strtab) {
+        Symbol s = new Symbol();
+        long nameIndex = word(pos);
+        if (is64Bit()) {
+            s.info = buffer.get((int)(pos + 4)) & 0xFF;
+            s.other = buffer.get((int)(pos + 5)) & 0xFF;
+            s.sectionIndex = half(pos + 6);
+            s.value = xword(pos + 8);
+            s.size = xword(pos + 16);
+        } else {
+            s.value = word(pos + 4);
+            s.size = word(pos + 8);
+            s.info = buffer.get((int)(pos + 12)) & 0xFF;
+            s.other = buffer.get((int)(pos + 13)) & 0xFF;
+            s.sectionIndex = half(pos + 14);
+        }
+        s.name = (nameIndex == 0 || strtab == null) ? "" : string(strtab, nameIndex);
+        return s;
+    }
+
+    /*! All the entries in the program header table. */
+    public synchronized ArrayList<ProgramHeader> getProgramHeaders() {
+        if (programHeaders != null) {
+            return programHeaders;
+        }
+
+        ArrayList<ProgramHeader> list = new ArrayList<ProgramHeader>();
+        if (phOffset != 0 && phEntrySize > 0) {
+            for (int i = 0; i < phCount; i++) {
+                long pos = phOffset + ((long)i * phEntrySize);
+                ProgramHeader p = new ProgramHeader();
+                p.type = word(pos);
+                if (is64Bit()) {
+                    p.flags = word(pos + 4);
+                    p.offset = xword(pos + 8);
+                    p.virtualAddress = xword(pos + 16);
+                    p.physicalAddress = xword(pos + 24);
+                    p.fileSize = xword(pos + 32);
+                    p.memorySize = xword(pos + 40);
+                    p.align = xword(pos + 48);
+                } else {
+                    p.offset = word(pos + 4);
+                    p.virtualAddress = word(pos + 8);
+                    p.physicalAddress = word(pos + 12);
+                    p.fileSize = word(pos + 16);
+                    p.memorySize = word(pos + 20);
+                    p.flags = word(pos + 24);
+                    p.align = word(pos + 28);
+                }
+                list.add(p);
+            }
+        }
+
+        programHeaders = list;
+        return programHeaders;
+    }
+
+    /*! Add up the sizes of the allocated sections.  Any sections named in
+     *  *ignore* (for instance an EEPROM section) are left out.
+     */
+    public SizeSummary getSizeSummary(Collection<String> ignore) {
+        SizeSummary sum = new SizeSummary();
+        for (Section s : getSections()) {
+            if (!s.isAllocated() || s.size == 0) {
+                continue;
+            }
+            if ((ignore != null) && ignore.contains(s.name)) {
+                continue;
+            }
+            if (s.type == SHT_NOBITS) {
+                sum.bss += s.size;
+            } else if (s.isWritable()) {
+                sum.data += s.size;
+            } else if (s.isExecutable()) {
+                sum.text += s.size;
+            } else {
+                sum.rodata += s.size;
+            }
+        }
+        return sum;
+    }
+
+    public SizeSummary getSizeSummary() {
+        return getSizeSummary(null);
+    }
+
+    /*! Release the mapping.  The sections, symbols and program headers that
+     *  have already been read stay usable, and any data already fetched with
+     *  Section.getData() is a copy so is unaffected.  Fetching section data
+     *  after closing throws an IllegalStateException.
+     */
+    public synchronized void close() {
+        if (buffer == null) {
+            return;
+        }
+        ByteBuffer b = buffer;
+        buffer = null;
+        unmap(b);
+    }
+
+    // A mapped buffer is normally only released when it is garbage
+    // collected, which can be a long time after we have finished with it.
+    // Free it straight away where the JVM lets us.
+    static void unmap(ByteBuffer b) {
+        if (!b.isDirect()) {
+            return;
+        }
+        try {
+            Class<?> uc = Class.forName("sun.misc.Unsafe");
+            Method clean = uc.getMethod("invokeCleaner", ByteBuffer.class);
+            Field f = uc.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            clean.invoke(f.get(null), b);
+            return;
+        } catch (Exception e) {
+        }
+        try {
+            Method cm = b.getClass().getMethod("cleaner");
+            cm.setAccessible(true);
+            Object cleaner = cm.invoke(b);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            Debug.message("Unable to unmap ELF file: " + e);
+        }
+    }
+
+    ByteBuffer mapped() {
+        if (buffer == null) {
+            throw new IllegalStateException("ELF file " + file.getName() + " has been closed");
+        }
+        return buffer;
+    }
+
+    // Nothing outside this class may hold on to a view of the mapped buffer:
+    // once close() has unmapped it, touching one would crash the JVM.
+    synchronized ByteBuffer copy(long off, long len) {
+        ByteBuffer b = mapped().duplicate();
+        b.position((int)off);
+        byte[] out = new byte[(int)len];
+        b.get(out);
+        return ByteBuffer.wrap(out).order(buffer.order());
+    }
+
+    int addrSize() {
+        return is64Bit() ? 8 : 4;
+    }
+
+    int half(long pos) {
+        return mapped().getShort((int)pos) & 0xFFFF;
+    }
+
+    long word(long pos) {
+        return mapped().getInt((int)pos) & 0xFFFFFFFFL;
+    }
+
+    long xword(long pos) {
+        return mapped().getLong((int)pos);
+    }
+
+    long addr(long pos) {
+        return is64Bit() ? xword(pos) : word(pos);
+    }
+
+    String string(Section table, long index) {
+        if (index >= table.size) {
+            return "";
+        }
+        ByteBuffer b = mapped();
+        int start = (int)(table.offset + index);
+        int end = (int)Math.min(b.limit(), table.offset + table.size);
+        int p = start;
+        while (p < end && b.get(p) != 0) {
+            p++;
+        }
+        byte[] chars = new byte[p - start];
+        ByteBuffer d = b.duplicate();
+        d.position(start);
+        d.get(chars);
+        try {
+            return new String(chars, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return new String(chars);
+        }
+    }
+}
@@ -8,7 +8,18 @@ public class FileCache {
     static ArrayList<String> files =
         new ArrayList<String>();
 
+    // Every folder that was looked in, with its modification time, so that
+    // the AssetIndex can tell if the list of files is still good.
+    static HashMap<String, Long> folders =
+        new HashMap<String, Long>();
+
+    public static void clear() {
+        files = new ArrayList<String>();
+        folders = new HashMap<String, Long>();
+    }
+
     public static void add(File root) {
+        folders.put(root.getAbsolutePath(), root.lastModified());
         File[] list = root.listFiles();
         ArrayList<File>dirs = new ArrayList<File>();
 
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/*! The FileWatchService asks the operating system to tell it when anything
+ *  changes in the folders of the open sketches and the libraries they use,
+ *  instead of everything having to keep checking the files itself.
+ *
+ *  Changes are gathered up until nothing has happened for DEBOUNCE ms and
+ *  then passed to every FileChangeListener as one set of files.  The list
+ *  of folders to watch is checked again after every batch of changes and
+ *  every RESCAN seconds so newly opened sketches get picked up.
+ *
+ *  If the watcher can't be created, or a folder can't be watched (some
+ *  network filesystems don't support it), isWatching() returns false and
+ *  the other services go back to polling.  Folders that couldn't be watched
+ *  are tried again every RESCAN seconds, and stop counting as soon as they
+ *  are no longer wanted.
+ */
+public class FileWatchService extends Service {
+
+    static final int DEBOUNCE = 250;
+    static final int RESCAN = 5;
+
+    static ArrayList<FileChangeListener> listeners = new ArrayList<FileChangeListener>();
+    static volatile boolean watching = false;
+
+    WatchService watcher = null;
+    HashMap<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    HashSet<Path> roots = new HashSet<Path>();
+    HashSet<Path> excluded = new HashSet<Path>();
+    HashSet<Path> failedRoots = new HashSet<Path>();
+    boolean failed = false;
+
+    public FileWatchService() {
+        setName("File Watcher");
+        setInterval(0);
+    }
+
+    public static void addListener(FileChangeListener l) {
+        synchronized (listeners) {
+            if (!listeners.contains(l)) {
+                listeners.add(l);
+            }
+        }
+    }
+
+    public static void removeListener(FileChangeListener l) {
+        synchronized (listeners) {
+            listeners.remove(l);
+        }
+    }
+
+    /*! Returns true if changes are being reported, or false if anything
+     *  interested in files changing has to look for itself.
+     */
+    public static boolean isWatching() {
+        return watching;
+    }
+
+    public void setup() {
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            updateWatches(false);
+            watching = !failed;
+        } catch (IOException ex) {
+            Base.exception(ex);
+            watcher = null;
+            watching = false;
+        }
+    }
+
+    public void cleanup() {
+        watching = false;
+        closeWatcher();
+        keys.clear();
+        roots.clear();
+        failedRoots.clear();
+    }
+
+    // Closing the watcher wakes the thread up if it is waiting for events.
+    public void stop(boolean wait) {
+        running = false;
+        closeWatcher();
+        super.stop(wait);
+    }
+
+    synchronized void closeWatcher() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    public void loop() {
+        if (watcher == null) {
+            // Nothing to do but wait to be stopped.
+            try {
+                Thread.sleep(RESCAN * 1000);
+            } catch (InterruptedException ex) {
+            }
+            return;
+        }
+
+        try {
+            WatchKey key = watcher.poll(RESCAN, TimeUnit.SECONDS);
+            HashSet<File> changed = new HashSet<File>();
+
+            // A quiet RESCAN period is a good time to try again with any
+            // folders that couldn't be watched before.
+            boolean retry = (key == null);
+
+            // Keep collecting until things have been quiet for a while.
+            while (key != null) {
+                processKey(key, changed);
+                key = watcher.poll(DEBOUNCE, TimeUnit.MILLISECONDS);
+            }
+
+            updateWatches(retry);
+            watching = !failed;
+
+            if (changed.size() > 0) {
+                fireChanged(changed);
+            }
+        } catch (ClosedWatchServiceException ex) {
+            watching = false;
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    void processKey(WatchKey key, Set<File> changed) {
+        Path dir = keys.get(key);
+        if (dir == null) {
+            key.cancel();
+            return;
+        }
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // We lost track - say the whole folder changed.
+                changed.add(dir.toFile());
+                continue;
+            }
+
+            Path child = dir.resolve((Path)event.context());
+            changed.add(child.toFile());
+
+            if ((event.kind() == ENTRY_CREATE) && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                if (!register(child)) {
+                    // Try the whole folder again on the next rescan.
+                    for (Path root : roots) {
+                        if (child.startsWith(root)) {
+                            failedRoots.add(root);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    void fireChanged(Set<File> changed) {
+        ArrayList<FileChangeListener> list;
+        synchronized (listeners) {
+            list = new ArrayList<FileChangeListener>(listeners);
+        }
+        Set<File> files = Collections.unmodifiableSet(changed);
+        for (FileChangeListener l : list) {
+            try {
+                l.filesChanged(files);
+            } catch (Exception ex) {
+                Base.exception(ex);
+            }
+        }
+    }
+
+    // Work out which folders should be watched and start or stop watching
+    // them as needed.  Only new folders are walked, plus the ones that failed
+    // before if *retry* is set, so this is cheap to call.
+    void updateWatches(boolean retry) {
+        HashSet<Path> wanted = new HashSet<Path>();
+        HashSet<Path> exclude = new HashSet<Path>();
+
+        synchronized (Editor.editorList) {
+            for (Editor e : Editor.editorList) {
+                Sketch s = e.loadedSketch;
+                if (s == null) {
+                    continue;
+                }
+                if (s.getFolder() != null) {
+                    wanted.add(s.getFolder().toPath().toAbsolutePath());
+                }
+                if (s.getBuildFolder() != null) {
+                    exclude.add(s.getBuildFolder().toPath().toAbsolutePath());
+                }
+                for (Library lib : s.getImportedLibraries()) {
+                    if ((lib != null) && (lib.getFolder() != null)) {
+                        wanted.add(lib.getFolder().toPath().toAbsolutePath());
+                    }
+                }
+            }
+        }
+
+        excluded = exclude;
+
+        for (Iterator<Path> it = roots.iterator(); it.hasNext(); ) {
+            Path root = it.next();
+            if (!wanted.contains(root)) {
+                it.remove();
+                failedRoots.remove(root);
+                unregister(root);
+            }
+        }
+
+        if (retry) {
+            for (Iterator<Path> it = failedRoots.iterator(); it.hasNext(); ) {
+                if (register(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+
+        for (Path root : wanted) {
+            if (!roots.contains(root)) {
+                roots.add(root);
+                if (!register(root)) {
+                    failedRoots.add(root);
+                }
+            }
+        }
+
+        failed = !failedRoots.isEmpty();
+    }
+
+    // Watch a folder and everything below it.  Returns false if any of it
+    // couldn't be watched.
+    boolean register(Path start) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(Path dir, java.nio.file.attribute.BasicFileAttributes attrs) throws IOException {
+                    Path name = dir.getFileName();
+                    if (excluded.contains(dir) || ((name != null) && name.toString().startsWith("."))) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (keys.containsValue(dir)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    keys.put(key, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (ClosedWatchServiceException ex) {
+            watching = false;
+        } catch (Exception ex) {
+            Debug.message("Unable to watch " + start + ": " + ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    // Stop watching a folder and everything below it, unless it is also
+    // inside another folder that is still wanted.
+    void unregister(Path root) {
+        for (Iterator<Map.Entry<WatchKey, Path>> it = keys.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<WatchKey, Path> me = it.next();
+            Path dir = me.getValue();
+            if (!dir.startsWith(root)) {
+                continue;
+            }
+            boolean stillWanted = false;
+            for (Path r : roots) {
+                if (dir.startsWith(r)) {
+                    stillWanted = true;
+                    break;
+                }
+            }
+            if (!stillWanted) {
+                me.getKey().cancel();
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+
+/*! The FlashImageCache remembers the last image successfully programmed into
+ *  each device by the bootloader uploaders, so that the next upload only
+ *  needs to program the pages that have changed.  A device is identified by
+ *  the board, the port it is on and, where the port can tell us, the USB
+ *  serial number.
+ *
+ *  Images are stored as pages of *pageSize* bytes keyed by the start address
+ *  of the page, exactly as the uploaders hold them.  Each device's image is
+ *  kept in its own file in the cache folder.
+ *
+ *  Differential uploading is turned on with the *compiler.upload_differential*
+ *  preference, which is one of:
+ *  * off - always program every page (the default)
+ *  * trust - assume the device still holds the saved image
+ *  * verify - read back a few of the unchanged pages first, and program
+ *    everything if any of them differ
+ */
+public class FlashImageCache {
+
+    public static final int OFF = 0;
+    public static final int TRUST = 1;
+    public static final int VERIFY = 2;
+
+    static final int MAGIC = 0x55464931; // "UFI1"
+
+    // The number of unchanged pages read back in VERIFY mode.
+    static final int VERIFY_PAGES = 4;
+
+    /*! Reads a page back from the device for verification.  Returns null if
+     *  the page could not be read.
+     */
+    public static interface PageReader {
+        public byte[] readPage(long address, int length);
+    }
+
+    /*! The differential upload mode selected in the preferences. */
+    public static int getMode() {
+        String mode = Preferences.get("compiler.upload_differential");
+        if (mode == null) {
+            return OFF;
+        }
+        if (mode.equals("trust")) {
+            return TRUST;
+        }
+        if (mode.equals("verify")) {
+            return VERIFY;
+        }
+        return OFF;
+    }
+
+    /*! Build the key that identifies the device on *port* running *board*. */
+    public static String getDeviceKey(CommunicationPort port, Board board) {
+        StringBuilder key = new StringBuilder();
+        key.append(board == null ? "unknown" : board.getName());
+        key.append("@");
+        key.append(port.toString());
+
+        if (port instanceof SerialCommunicationPort) {
+            HashMap<String, String> attrs = ((SerialCommunicationPort)port).getUSBAttributes();
+            if (attrs != null) {
+                String serial = attrs.get("serial");
+                if (serial == null) {
+                    serial = attrs.get("USB Serial Number");
+                }
+                if (serial != null) {
+                    key.append("#");
+                    key.append(serial);
+                }
+            }
+        }
+
+        return key.toString();
+    }
+
+    static File getImageFile(String key) {
+        File dir = new File(Base.getCacheFolder(), "flash");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return new File(dir, SymbolIndex.hash(key) + ".img");
+    }
+
+    /*! Load the image last programmed into a device.  Returns null if there
+     *  isn't one, or if it was stored with a different page size.
+     */
+    public static synchronized TreeMap<Long, byte[]> load(String key, long pageSize) {
+        File f = getImageFile(key);
+        if (!f.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if ((in.readInt() != MAGIC) || !in.readUTF().equals(key) || (in.readInt() != pageSize)) {
+                return null;
+            }
+
+            int count = in.readInt();
+            TreeMap<Long, byte[]> image = new TreeMap<Long, byte[]>();
+
+            for (int i = 0; i < count; i++) {
+                long address = in.readLong();
+                byte[] page = new byte[(int)pageSize];
+                in.readFully(page);
+                image.put(address, page);
+            }
+            return image;
+        } catch (Exception ex) {
+            Base.exception(ex);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /*! Remember the image that has just been programmed into a device. */
+    public static synchronized void save(String key, long pageSize, TreeMap<Long, byte[]> image) {
+        File f = getImageFile(key);
+        File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeUTF(key);
+            out.writeInt((int)pageSize);
+            out.writeInt(image.size());
+
+            for (Map.Entry<Long, byte[]> e : image.entrySet()) {
+                out.writeLong(e.getKey());
+                out.write(e.getValue(), 0, (int)pageSize);
+            }
+            out.close();
+        } catch (Exception ex) {
+            Base.exception(ex);
+            tmp.delete();
+            return;
+        }
+
+        f.delete();
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+        }
+    }
+
+    /*! Forget a device's image, such as when an upload fails part way
+     *  through and what is on the device is no longer known.
+     */
+    public static synchronized void forget(String key) {
+        File f = getImageFile(key);
+        if (f.exists()) {
+            f.delete();
+        }
+    }
+
+    /*! Work out which pages of *image* need programming into the device
+     *  identified by *key*.  With differential uploading turned off, or with
+     *  nothing saved for the device, that is every page.  Otherwise it is the
+     *  pages that differ from the saved image - unless in VERIFY mode a sample
+     *  of the other pages read back through *reader* don't match it.
+     */
+    public static TreeMap<Long, byte[]> selectPages(Context ctx, String key, long pageSize, TreeMap<Long, byte[]> image, PageReader reader) {
+        int mode = getMode();
+        if (mode == OFF) {
+            return image;
+        }
+
+        TreeMap<Long, byte[]> cached = load(key, pageSize);
+        if (cached == null) {
+            return image;
+        }
+
+        TreeMap<Long, byte[]> changed = changedPages(image, cached);
+
+        if ((mode == VERIFY) && (changed.size() < image.size())) {
+            for (Long address : samplePages(image, changed, VERIFY_PAGES)) {
+                byte[] expected = cached.get(address);
+                byte[] actual = reader.readPage(address, expected.length);
+                if ((actual == null) || !Arrays.equals(expected, actual)) {
+                    ctx.message(String.format("Device does not match the saved image at 0x%08x, programming everything", address));
+                    return image;
+                }
+            }
+        }
+
+        ctx.message(changed.size() + " of " + image.size() + " pages have changed");
+        return changed;
+    }
+
+    /*! Record the outcome of an upload.  A successful differential upload
+     *  saves the image for next time.  Otherwise the device's contents are
+     *  either unknown or no longer being tracked, so any saved image is
+     *  thrown away.
+     */
+    public static void uploadFinished(String key, long pageSize, TreeMap<Long, byte[]> image, boolean success) {
+        if (success && (getMode() != OFF)) {
+            save(key, pageSize, image);
+        } else {
+            forget(key);
+        }
+    }
+
+    /*! Get the pages of *image* that differ from the *cached* image. */
+    public static TreeMap<Long, byte[]> changedPages(TreeMap<Long, byte[]> image, TreeMap<Long, byte[]> cached) {
+        TreeMap<Long, byte[]> changed = new TreeMap<Long, byte[]>();
+        for (Map.Entry<Long, byte[]> e : image.entrySet()) {
+            byte[] old = cached.get(e.getKey());
+            if ((old == null) || !Arrays.equals(old, e.getValue())) {
+                changed.put(e.getKey(), e.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /*! Choose up to *count* of the pages that are not going to be programmed
+     *  to read back and check against the cached image.  The first and last
+     *  are always included and the rest are spread out evenly between them.
+     */
+    public static ArrayList<Long> samplePages(TreeMap<Long, byte[]> image, TreeMap<Long, byte[]> changed, int count) {
+        ArrayList<Long> unchanged = new ArrayList<Long>();
+        for (Long address : image.keySet()) {
+            if (!changed.containsKey(address)) {
+                unchanged.add(address);
+            }
+        }
+
+        if (unchanged.size() <= count) {
+            return unchanged;
+        }
+
+        if (count < 2) {
+            return new ArrayList<Long>(unchanged.subList(0, Math.max(count, 0)));
+        }
+
+        ArrayList<Long> sample = new ArrayList<Long>();
+        for (int i = 0; i < count; i++) {
+            sample.add(unchanged.get((int)((long)i * (unchanged.size() - 1) / (count - 1))));
+        }
+        return sample;
+    }
+}
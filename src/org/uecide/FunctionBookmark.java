@@ -195,5 +195,9 @@ public class FunctionBookmark {
     public String getReturnType() {
         return returnType;
     }
+
+    public String getParamList() {
+        return paramList;
+    }
 }
 
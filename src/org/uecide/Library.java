@@ -69,6 +69,9 @@ public class Library implements Comparable {
     public HashMap<String, TreeSet<File>>sourceFilesByArch = null;
     public HashMap<String, TreeSet<File>>headerFilesByArch = null;
 
+    // Just the names of the header files, for quick lookups.
+    HashSet<String> headerNames = new HashSet<String>();
+
     public boolean valid = false;
 
     public boolean buildLibrary = false;
@@ -223,6 +226,13 @@ public class Library implements Comparable {
 
         probedFiles = new ArrayList<String>();
 
+        HashSet<String> names = new HashSet<String>();
+        for (File f : headerFiles) {
+            names.add(f.getName());
+        }
+        headerNames = names;
+        invalidateIndex();
+
 //        for(File f : headerFiles) {
 //            gatherIncludes(f);
 //        }
@@ -235,13 +245,7 @@ public class Library implements Comparable {
     ArrayList<String> probedFiles;
 
     public boolean hasHeader(String header) {
-        for(File f : headerFiles) {
-            if(f.getName().equals(header)) {
-                return true;
-            }
-        }
-
-        return false;
+        return headerNames.contains(header);
     }
 
     public File getHeader(String header) {
@@ -363,8 +367,17 @@ public class Library implements Comparable {
         return sf;
     }
 
+    /*! Get the list of headers this library includes that it doesn't
+     *  provide itself.  The list is cached by the LibraryIncludeIndex.
+     */
     public ArrayList<String> getRequiredLibraries() {
+        return LibraryIncludeIndex.getRequiredIncludes(this);
+    }
+
+    // Read through all the library's files to find what it includes.
+    synchronized ArrayList<String> scanRequiredLibraries() {
         requiredLibraries = new ArrayList<String>();
+        probedFiles = new ArrayList<String>();
         for(File f : headerFiles) {
             gatherIncludes(f);
         }
@@ -461,6 +474,16 @@ public class Library implements Comparable {
     public static TreeMap<String, ArrayList<Library>> libraryList = new TreeMap<String, ArrayList<Library>>();
     public static TreeMap<String, String> categoryNames = new TreeMap<String, String>();
 
+    // Indexes of libraries by name and by the names of the headers they
+    // provide.  Each entry lists the libraries in the same order a search
+    // through libraryList would find them.  They are built on first use and
+    // thrown away whenever a library is added or rescanned.  The generation
+    // counts the invalidations so that an index built from a list which has
+    // changed since is never published.
+    static volatile HashMap<String, ArrayList<Library>> librariesByName = null;
+    static volatile HashMap<String, ArrayList<Library>> librariesByHeader = null;
+    static int indexGeneration = 0;
+
     // A "group" consists of a type and a subtype separated by a colon.  Valid types are:
     // core, compiler, board, cat.  Subtypes are dependant on the type.
     //   core:<core name>
@@ -480,7 +503,7 @@ public class Library implements Comparable {
         }
     }
 
-    public static void addLibrary(String group, Library lib) {
+    public static synchronized void addLibrary(String group, Library lib) {
         ArrayList<Library> setData = libraryList.get(group);
 
         if(setData == null) {
@@ -489,6 +512,70 @@ public class Library implements Comparable {
 
         setData.add(lib);
         libraryList.put(group, setData);
+        invalidateIndex();
+    }
+
+    static synchronized void invalidateIndex() {
+        indexGeneration++;
+        librariesByName = null;
+        librariesByHeader = null;
+    }
+
+    static void buildIndex() {
+        // Take a copy of the libraries to work through so that addLibrary()
+        // can carry on while the index is built.
+        ArrayList<Library> libs = new ArrayList<Library>();
+        int generation;
+        synchronized (Library.class) {
+            if (librariesByName != null && librariesByHeader != null) {
+                return;
+            }
+            generation = indexGeneration;
+            for (ArrayList<Library> dataSet : libraryList.values()) {
+                libs.addAll(dataSet);
+            }
+        }
+
+        HashMap<String, ArrayList<Library>> byName = new HashMap<String, ArrayList<Library>>();
+        HashMap<String, ArrayList<Library>> byHeader = new HashMap<String, ArrayList<Library>>();
+
+        for (Library l : libs) {
+            addToIndex(byName, l.toString(), l);
+            for (String h : l.headerNames) {
+                addToIndex(byHeader, h, l);
+            }
+        }
+
+        // If anything changed while we were working the index is already out
+        // of date, so leave it for the next lookup to build again.
+        synchronized (Library.class) {
+            if (generation == indexGeneration) {
+                librariesByHeader = byHeader;
+                librariesByName = byName;
+            }
+        }
+    }
+
+    static void addToIndex(HashMap<String, ArrayList<Library>> index, String key, Library l) {
+        ArrayList<Library> list = index.get(key);
+        if (list == null) {
+            list = new ArrayList<Library>();
+            index.put(key, list);
+        }
+        list.add(l);
+    }
+
+    static Library findInIndex(HashMap<String, ArrayList<Library>> index, String key, String core) {
+        ArrayList<Library> list = index.get(key);
+        if (list == null) {
+            return null;
+        }
+        for (Library l : list) {
+            if (l.worksWith(core)) {
+                return l;
+            }
+        }
+        return null;
     }
 
     public static TreeSet<Library> getLibraries(String group) {
@@ -612,8 +699,11 @@ public class Library implements Comparable {
     // Load all the libraries from everywhere.
 
     public static void loadLibraries() {
-        libraryList = new TreeMap<String, ArrayList<Library>>();
-        categoryNames = new TreeMap<String, String>();
+        synchronized (Library.class) {
+            libraryList = new TreeMap<String, ArrayList<Library>>();
+            categoryNames = new TreeMap<String, String>();
+            invalidateIndex();
+        }
 
 
 // We never have these any more. They're all split out into core-centric library folders
@@ -716,15 +806,11 @@ public class Library implements Comparable {
     }
 
     public static Library getLibraryByName(String name, String core) {
-        for(String group : libraryList.keySet()) {
-            Library l = getLibraryByName(name, core, group);
-
-            if(l != null) {
-                return l;
-            }
+        HashMap<String, ArrayList<Library>> index;
+        while ((index = librariesByName) == null) {
+            buildIndex();
         }
-
-        return null;
+        return findInIndex(index, name, core);
     }
 
     public static Library getLibraryByInclude(String include, String core) {
@@ -740,17 +826,11 @@ public class Library implements Comparable {
             return lib;
         }
 
-        for(ArrayList<Library> dataSet : libraryList.values()) {
-            for(Library l : dataSet) {
-                if(l.worksWith(core)) {
-                    if(l.hasHeader(include)) {
-                        return l;
-                    }
-                }
-            }
+        HashMap<String, ArrayList<Library>> index;
+        while ((index = librariesByHeader) == null) {
+            buildIndex();
         }
-
-        return null;
+        return findInIndex(index, include, core);
     }
 
     public synchronized static TreeSet<String> getLibraryCategories() {
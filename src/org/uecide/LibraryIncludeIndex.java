@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+
+/*! The LibraryIncludeIndex remembers which headers each library includes
+ *  from outside of itself (see Library.getRequiredLibraries()).  Working
+ *  that out means reading every header and source file in the library, so
+ *  the result is kept, both in memory and in the cache folder between runs,
+ *  along with a stamp made from the names, sizes and modification times of
+ *  the library's files.  It is only worked out again when the stamp changes.
+ *
+ *  With this in place finding the libraries a sketch uses is just a walk of
+ *  the include graph, without having to run the preprocessor.
+ */
+public class LibraryIncludeIndex {
+
+    static final String INDEX_NAME = "libdeps.idx";
+
+    static HashMap<String, Entry> entries = null;
+    static boolean dirty = false;
+
+    static class Entry {
+        long stamp;
+        ArrayList<String> includes = new ArrayList<String>();
+    }
+
+    static File getIndexFile() {
+        return new File(Base.getCacheFolder(), INDEX_NAME);
+    }
+
+    /*! Get the list of headers that a library includes from elsewhere. */
+    public static synchronized ArrayList<String> getRequiredIncludes(Library lib) {
+        if (entries == null) {
+            load();
+        }
+
+        String key = lib.getFolder().getAbsolutePath();
+        long stamp = getStamp(lib);
+
+        Entry e = entries.get(key);
+        if ((e == null) || (e.stamp != stamp)) {
+            e = new Entry();
+            e.stamp = stamp;
+            e.includes = lib.scanRequiredLibraries();
+            entries.put(key, e);
+            dirty = true;
+        }
+
+        return new ArrayList<String>(e.includes);
+    }
+
+    static long getStamp(Library lib) {
+        long stamp = 17;
+        stamp = addToStamp(stamp, lib.headerFiles);
+        stamp = addToStamp(stamp, lib.sourceFiles);
+        return stamp;
+    }
+
+    static long addToStamp(long stamp, Collection<File> files) {
+        if (files == null) {
+            return stamp;
+        }
+        for (File f : files) {
+            stamp = stamp * 31 + f.getAbsolutePath().hashCode();
+            stamp = stamp * 31 + f.lastModified();
+            stamp = stamp * 31 + f.length();
+        }
+        return stamp;
+    }
+
+    /*! Write the index out to the cache folder if anything has changed.
+     *  Libraries whose folders have gone are dropped first.
+     */
+    public static synchronized void save() {
+        if (entries == null) {
+            return;
+        }
+
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+            if (!new File(it.next()).isDirectory()) {
+                it.remove();
+                dirty = true;
+            }
+        }
+
+        if (!dirty) {
+            return;
+        }
+
+        try {
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(getIndexFile()), "UTF-8"));
+            for (String lib : entries.keySet()) {
+                Entry e = entries.get(lib);
+                pw.println("library\t" + e.stamp + "\t" + lib);
+                for (String inc : e.includes) {
+                    pw.println("include\t" + inc);
+                }
+            }
+            pw.close();
+            dirty = false;
+        } catch (Exception ex) {
+            Base.exception(ex);
+        }
+    }
+
+    static void load() {
+        entries = new HashMap<String, Entry>();
+
+        File indexFile = getIndexFile();
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            String line;
+            Entry current = null;
+            while ((line = br.readLine()) != null) {
+                String[] bits = line.split("\t");
+                if (bits[0].equals("library") && (bits.length == 3)) {
+                    current = new Entry();
+                    current.stamp = Long.parseLong(bits[1]);
+                    entries.put(bits[2], current);
+                } else if (bits[0].equals("include") && (bits.length == 2) && (current != null)) {
+                    current.includes.add(bits[1]);
+                }
+            }
+            br.close();
+        } catch (Exception ex) {
+            // A damaged index just gets built again.
+            Base.exception(ex);
+            entries.clear();
+        }
+    }
+}
@@ -220,6 +220,18 @@ public class Package implements Comparable, Serializable {
         }
     }
 
+    // Downloads are written to a .part file first, which is kept if the
+    // download fails so it can be carried on from where it stopped.  Once the
+    // SHA-256 has been checked a .verified marker holding the hash is written
+    // next to the package so it never has to be checked again.
+    public File getPartialFile(File cacheFolder) {
+        return new File(cacheFolder, getFilename() + ".part");
+    }
+
+    public File getVerifiedFile(File cacheFolder) {
+        return new File(cacheFolder, getFilename() + ".verified");
+    }
+
     public boolean checkFileIntegrity(File cacheFolder) {
         File downloadTo = new File(cacheFolder, getFilename());
 
@@ -231,7 +243,7 @@ public class Package implements Comparable, Serializable {
 
         long size = 0;
         try {
-            size = Integer.parseInt(properties.get("Size"));
+            size = Long.parseLong(properties.get("Size"));
         } catch (Exception ignored) {
             Base.exception(ignored);
         }
@@ -240,185 +252,265 @@ public class Package implements Comparable, Serializable {
             return false;
         }
 
-        return true; // What follows is way too slow on a Pi.
-/*
         String existingSha = properties.get("SHA256");
+        if (existingSha == null) {
+            return true;
+        }
+
+        // If the file has already been checked it only needs checking
+        // again if it has changed since.
+        File verified = getVerifiedFile(cacheFolder);
+        if (verified.exists() && (verified.lastModified() >= downloadTo.lastModified())) {
+            String sha = Base.getFileAsString(verified);
+            if ((sha != null) && sha.trim().equalsIgnoreCase(existingSha)) {
+                return true;
+            }
+        }
 
+        // Otherwise it's a file from before we kept markers, or one that has
+        // been changed.  This is the slow path, and it only ever happens once.
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             FileInputStream fis = new FileInputStream(downloadTo);
-
-            byte[] dataBytes = new byte[1024];
-
+            byte[] dataBytes = new byte[65536];
             int nread = 0;
             while ((nread = fis.read(dataBytes)) != -1) {
                 md.update(dataBytes, 0, nread);
-            };
-            byte[] mdbytes = md.digest();
-
-            StringBuilder hexString = new StringBuilder();
-            for (int i=0;i<mdbytes.length;i++) {
-              hexString.append(Integer.toString((mdbytes[i] & 0xff) + 0x100, 16).substring(1));
-
             }
+            fis.close();
 
-            if (!hexString.toString().equalsIgnoreCase(existingSha)) {
+            if (!toHex(md.digest()).equalsIgnoreCase(existingSha)) {
                 return false;
             }
-        } catch (Exception ignored) {
+        } catch (Exception e) {
+            Base.exception(e);
+            return false;
         }
+
+        markVerified(cacheFolder);
         return true;
-*/
+    }
+
+    void markVerified(File cacheFolder) {
+        try {
+            PrintWriter pw = new PrintWriter(getVerifiedFile(cacheFolder));
+            pw.println(properties.get("SHA256"));
+            pw.close();
+        } catch (Exception e) {
+            Base.exception(e);
+        }
+    }
+
+    static String toHex(byte[] mdbytes) {
+        StringBuilder hexString = new StringBuilder();
+        for (int i=0;i<mdbytes.length;i++) {
+          hexString.append(Integer.toString((mdbytes[i] & 0xff) + 0x100, 16).substring(1));
+        }
+        return hexString.toString();
     }
 
     public boolean fetchPackage(File folder) {
+        return fetchPackage(folder, true);
+    }
+
+    /*! Download the package into the cache folder unless a good copy is
+     *  already there.  If *showProgress* is false only a line at the start
+     *  and end of the download is printed, which is what you want when
+     *  several downloads are running at once.
+     */
+    public boolean fetchPackage(File folder, boolean showProgress) {
         String errorMessage = "";
-        if (!checkFileIntegrity(folder)) {
-            File downloadTo = new File(folder, getFilename());
-            if (downloadTo.exists()) {
-                Base.tryDelete(downloadTo);
-            }
-            String[] repos = properties.get("Repository").split(";");
-            shuffleArray(repos);
-            int contentLength = -1;
-            for (String repo : repos) {
-                try {
-                    InputStream in = null;
-                    if (repo.startsWith("http://") || repo.startsWith("https://")) {
-                        URI uri = new URI(repo + "/" + properties.get("Filename"));
-                        URL downloadFrom = uri.toURL();
-                        HttpURLConnection httpConn = (HttpURLConnection) downloadFrom.openConnection();
-                        contentLength = httpConn.getContentLength();
-
-//                        if (checkFileIntegrity(folder)) {
-//                            return true;
-//                        }
-                        in = httpConn.getInputStream();
-                    } else if (repo.startsWith("res://")) {
-                        String reps = repo.substring(6);
-                        if (!reps.startsWith("/")) {
-                            reps = "/" + reps;
-                        }
-                        in = Base.class.getResourceAsStream(reps + "/" + properties.get("Filename"));
-                        if (in == null) {
-                            System.err.println("Error: Resource not found: " + reps + "/" + properties.get("Filename"));
-                            return false;
-                        }
-                    } else if (repo.startsWith("file://")) {
-                        String src = repo.substring(7);
-                        src += "/";
-                        src += properties.get("Filename");
-                        File sfile = new File(src);
-                        if (!sfile.exists()) {
-                            return false;
-                        }
-                        Base.copyFile(sfile, downloadTo);
-                        return true;
+        if (checkFileIntegrity(folder)) {
+            return true;
+        }
 
-                        
-                    } else {
-                        System.err.println("Error: No URI handler for " + repo);
-                        return false;
-                    }
+        File downloadTo = new File(folder, getFilename());
+        File partial = getPartialFile(folder);
+        if (downloadTo.exists()) {
+            Base.tryDelete(downloadTo);
+        }
+        Base.tryDelete(getVerifiedFile(folder));
 
-                    BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(downloadTo));
+        String[] repos = properties.get("Repository").split(";");
+        shuffleArray(repos);
 
-                    byte[] buffer = new byte[1024];
-                    int n;
-                    long tot = 0;
-                    int lastVal = -1;
+        String tname = getName();
+        if (tname.length() > 20) {
+            tname = tname.substring(0, 20);
+        }
+        while (tname.length() < 20) {
+            tname += " ";
+        }
 
-                    String tname = getName();
-                    if (tname.length() > 20) {
-                        tname = tname.substring(0, 20);
+        for (String repo : repos) {
+            try {
+                InputStream in = null;
+                long contentLength = -1;
+                boolean resume = false;
+
+                if (repo.startsWith("http://") || repo.startsWith("https://")) {
+                    URI uri = new URI(repo + "/" + properties.get("Filename"));
+                    URL downloadFrom = uri.toURL();
+                    HttpURLConnection httpConn = (HttpURLConnection) downloadFrom.openConnection();
+                    boolean ranged = partial.exists() && (partial.length() > 0);
+                    if (ranged) {
+                        httpConn.setRequestProperty("Range", "bytes=" + partial.length() + "-");
                     }
-                    while (tname.length() < 20) {
-                        tname += " ";
+                    int code = httpConn.getResponseCode();
+
+                    // If the server won't give us the rest of the file (for
+                    // instance a 416 because the partial is already complete
+                    // or is longer than the file now is) then throw the
+                    // partial away and start again from the beginning.
+                    if (ranged && (code != HttpURLConnection.HTTP_OK) && (code != HttpURLConnection.HTTP_PARTIAL)) {
+                        httpConn.disconnect();
+                        Base.tryDelete(partial);
+                        httpConn = (HttpURLConnection) downloadFrom.openConnection();
+                        code = httpConn.getResponseCode();
                     }
 
-                    System.out.print("\rDownloading " + tname + " [.........................]");
+                    if ((code != HttpURLConnection.HTTP_OK) && (code != HttpURLConnection.HTTP_PARTIAL)) {
+                        httpConn.disconnect();
+                        throw new IOException("HTTP error " + code + " fetching " + downloadFrom);
+                    }
 
-                    String existingSha = properties.get("SHA256");
-                    MessageDigest md = MessageDigest.getInstance("SHA-256");
+                    // A server that doesn't understand ranges just sends the
+                    // whole file again.
+                    resume = (code == HttpURLConnection.HTTP_PARTIAL);
+                    contentLength = httpConn.getContentLengthLong();
+                    in = httpConn.getInputStream();
+                } else if (repo.startsWith("res://")) {
+                    String reps = repo.substring(6);
+                    if (!reps.startsWith("/")) {
+                        reps = "/" + reps;
+                    }
+                    in = Base.class.getResourceAsStream(reps + "/" + properties.get("Filename"));
+                    if (in == null) {
+                        System.err.println("Error: Resource not found: " + reps + "/" + properties.get("Filename"));
+                        return false;
+                    }
+                } else if (repo.startsWith("file://")) {
+                    String src = repo.substring(7);
+                    src += "/";
+                    src += properties.get("Filename");
+                    File sfile = new File(src);
+                    if (!sfile.exists()) {
+                        return false;
+                    }
+                    contentLength = sfile.length();
+                    in = new FileInputStream(sfile);
+                } else {
+                    System.err.println("Error: No URI handler for " + repo);
+                    return false;
+                }
 
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                long tot = 0;
 
-                    long start = System.currentTimeMillis() / 1000;
-                    long ts = start;
-                    while ((n = in.read(buffer)) > 0) {
-                        long now = System.currentTimeMillis() / 1000;
+                // When carrying on from a partial download the part we
+                // already have needs to go through the hash first.
+                if (resume) {
+                    FileInputStream pin = new FileInputStream(partial);
+                    byte[] buffer = new byte[65536];
+                    int n;
+                    while ((n = pin.read(buffer)) > 0) {
+                        md.update(buffer, 0, n);
                         tot += n;
-                        if (contentLength != -1) {
-                            int tpct = (int)((tot * 100) / contentLength) / 4;
-                            if (now != ts) {
-                                ts = now;
-                                lastVal = tpct;
-                                System.out.print("\rDownloading " + tname + " [");
-                                for (int i = 0; i < 25; i++) {
-                                    if (i <= tpct) {
-                                        System.out.print("#");
-                                    } else {
-                                        System.out.print(".");
-                                    }
+                    }
+                    pin.close();
+                    contentLength += tot;
+                }
+
+                BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(partial, resume));
+
+                byte[] buffer = new byte[65536];
+                int n;
+
+                if (showProgress) {
+                    System.out.print("\rDownloading " + tname + " [.........................]");
+                } else {
+                    System.out.println("Downloading " + tname + (resume ? " (resuming)" : ""));
+                }
+
+                String existingSha = properties.get("SHA256");
+
+                long start = System.currentTimeMillis() / 1000;
+                long ts = start;
+                long done = tot;
+                while ((n = in.read(buffer)) > 0) {
+                    long now = System.currentTimeMillis() / 1000;
+                    tot += n;
+                    if (showProgress && (contentLength > 0)) {
+                        int tpct = (int)((tot * 100) / contentLength) / 4;
+                        if (now != ts) {
+                            ts = now;
+                            System.out.print("\rDownloading " + tname + " [");
+                            for (int i = 0; i < 25; i++) {
+                                if (i <= tpct) {
+                                    System.out.print("#");
+                                } else {
+                                    System.out.print(".");
                                 }
-                                System.out.print("] ");
-
-                                long diff = now - start;
-                                if (diff > 0) {
-                                    long bps = tot / diff;
-                                    long remain = contentLength - tot;
-                                    long trem = remain / bps;
-                                    long sec = trem % 60;
-                                    long min = (trem / 60) % 60;
-                                    long hour = (trem / 3600);
-                                    if (bps >= (1024 * 1024)) {
-                                        System.out.print(String.format("%7.2f MBps %02d:%02d:%02d", (float)bps / 1048576f, hour, min, sec));
-                                    } else if (bps >= 1024) {
-                                        System.out.print(String.format("%7.2f kBps %02d:%02d:%02d", (float)bps / 1024f, hour, min, sec));
-                                    } else {
-                                        System.out.print(String.format("%4d Bps    %02d:%02d:%02d", bps, hour, min, sec));
-                                    }
+                            }
+                            System.out.print("] ");
+
+                            long diff = now - start;
+                            if (diff > 0) {
+                                long bps = (tot - done) / diff;
+                                if (bps < 1) bps = 1;
+                                long remain = contentLength - tot;
+                                long trem = remain / bps;
+                                long sec = trem % 60;
+                                long min = (trem / 60) % 60;
+                                long hour = (trem / 3600);
+                                if (bps >= (1024 * 1024)) {
+                                    System.out.print(String.format("%7.2f MBps %02d:%02d:%02d", (float)bps / 1048576f, hour, min, sec));
+                                } else if (bps >= 1024) {
+                                    System.out.print(String.format("%7.2f kBps %02d:%02d:%02d", (float)bps / 1024f, hour, min, sec));
+                                } else {
+                                    System.out.print(String.format("%4d Bps    %02d:%02d:%02d", bps, hour, min, sec));
                                 }
                             }
                         }
-                        md.update(buffer, 0, n);
-                        out.write(buffer, 0, n);
                     }
-                    in.close();
-                    out.close();
-                    byte[] mdbytes = md.digest();
+                    md.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+                in.close();
+                out.close();
 
-                    StringBuilder hexString = new StringBuilder();
-                    for (int i=0;i<mdbytes.length;i++) {
-                      hexString.append(Integer.toString((mdbytes[i] & 0xff) + 0x100, 16).substring(1));
-                    }
+                String prefix = showProgress ? "\rDownloading " + tname + " [#########################] " : "Downloading " + tname + " ";
 
-                    if (!hexString.toString().equalsIgnoreCase(existingSha)) {
-                        System.out.println("\rDownloading " + tname + " [#########################] [31mchecksum error[0m[0K");
-                        Base.tryDelete(downloadTo);
-                        return false;
-                    }
+                if ((existingSha != null) && !toHex(md.digest()).equalsIgnoreCase(existingSha)) {
+                    System.out.println(prefix + "[31mchecksum error[0m[0K");
+                    Base.tryDelete(partial);
+                    return false;
+                }
 
-                    System.out.println("\rDownloading " + tname + " [#########################] done[0K");
+                if (!partial.renameTo(downloadTo)) {
+                    System.out.println(prefix + "[31mcannot rename " + partial.getName() + "[0m[0K");
+                    return false;
+                }
 
-                    if (checkFileIntegrity(folder)) {
-                        return true;
-                    }
-                } catch (FileNotFoundException ignore) {
-                    Base.exception(ignore);
-                } catch (Exception e) {
-                    Base.exception(e);
-                    errorMessage = e.toString();
-                    System.err.println();
-                    System.err.println("[31mDownload failed: " + errorMessage + "[0m");
-                    if (downloadTo.exists()) {
-                        Base.tryDelete(downloadTo);
-                    }
+                markVerified(folder);
+
+                System.out.println(prefix + "done[0K");
+
+                if (checkFileIntegrity(folder)) {
+                    return true;
                 }
+            } catch (FileNotFoundException ignore) {
+                Base.exception(ignore);
+            } catch (Exception e) {
+                // The partial file is kept so the next attempt can carry on
+                // from where this one stopped.
+                Base.exception(e);
+                errorMessage = e.toString();
+                System.err.println();
+                System.err.println("[31mDownload failed: " + errorMessage + "[0m");
             }
-            return false;
-        } else {
-            return true;
         }
+        return false;
     }
 
     // Extract a package and install it. Returns the control file
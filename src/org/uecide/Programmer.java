@@ -133,8 +133,8 @@ public class Programmer extends UObject {
         if (!Base.isQuiet()) ctx.bullet("Resetting board.");
         try {
             CommunicationPort port = ctx.getDevice();
-            if (port instanceof SerialCommunicationPort) {
-                SerialCommunicationPort sport = (SerialCommunicationPort)port;
+            if (port instanceof SerialLinePort) {
+                CommunicationPort sport = port;
                 if (!sport.openPort()) {
                     ctx.error("Error: " + sport.getLastError());
                     return false;
@@ -163,8 +163,8 @@ public class Programmer extends UObject {
         if (!Base.isQuiet()) ctx.bullet("Resetting board.");
         try {
             CommunicationPort port = ctx.getDevice();
-            if (port instanceof SerialCommunicationPort) {
-                SerialCommunicationPort sport = (SerialCommunicationPort)port;
+            if (port instanceof SerialLinePort) {
+                CommunicationPort sport = port;
                 if (!sport.openPort()) {
                     ctx.error("Error: " + sport.getLastError());
                     return false;
@@ -61,6 +61,25 @@ public class PropertyFile {
     File userFile;
     boolean doPlatformOverride = false;
 
+    // Bumped every time the content changes so that anything built from
+    // this file (such as the merged properties of a Context) can tell when
+    // it is out of date.
+    int version = 0;
+
+    // Set if the file pulled in other files with @include.
+    boolean hasIncludes = false;
+
+    // Set if *properties* is a cached child map shared with the parent file
+    // (see getChildren()).  It must be copied before anything writes to it.
+    boolean shared = false;
+
+    // Child maps and child key lists handed out by getChildren() and
+    // childKeysOf(), keyed by path.  They are thrown away as soon as the
+    // version changes.
+    HashMap<String, TreeMap<String, String>> childCache = new HashMap<String, TreeMap<String, String>>();
+    HashMap<String, String[]> childKeysCache = new HashMap<String, String[]>();
+    int childCacheVersion = 0;
+
     /*! Create a new PropertyFile from a file on disk.  All properties are loaded and stored from the file. */
     public PropertyFile(File user) {
         this(user, (File)null);
@@ -186,6 +205,17 @@ public class PropertyFile {
         embeddedTypes = new TreeMap<String, String>();
     }
 
+    // Re-create a PropertyFile for a file on disk from its already parsed
+    // content.  Used by the AssetIndex.
+    PropertyFile(File user, TreeMap<String, String> props, TreeMap<String, String> emb, TreeMap<String, String> embTypes) {
+        userFile = user;
+        defaultProperties = new TreeMap<String, String>();
+        properties = new TreeMap<String, String>(props);
+        embedded = new TreeMap<String, String>(emb);
+        sources = new TreeMap<String, String>();
+        embeddedTypes = new TreeMap<String, String>(embTypes);
+    }
+
     /*! Create a new PropertyFile from a set of properties stored in a TreeMap<String, String> object. */
     public PropertyFile(TreeMap<String, String>data) {
         userFile = null;
@@ -225,17 +255,19 @@ public class PropertyFile {
             return;
         }
 
-        for(String key : pf.getProperties().keySet()) {
-            if (pf.getProperties().get(key).equals("")) {
+        for(Map.Entry<String, String> entry : pf.properties.entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue().equals("")) {
                 unset(key);
             } else {
-                set(key, pf.getProperties().get(key));
+                set(key, entry.getValue());
                 setSource(key, pf.getSource(key));
             }
         }
 
         embeddedTypes.putAll(pf.getEmbeddedTypes());
         embedded.putAll(pf.getEmbeddedMap());
+        version++;
     }
 
     /*! Merge the data from an existing PropertyFile into this PropertyFile prepending *prefix* on to each key. */
@@ -248,9 +280,9 @@ public class PropertyFile {
             prefix += ".";
         }
 
-        for(String key : pf.getProperties().keySet()) {
-            set(prefix + key, pf.getProperties().get(key));
-            setSource(prefix + key, pf.getSource(key));
+        for(Map.Entry<String, String> entry : pf.properties.entrySet()) {
+            set(prefix + entry.getKey(), entry.getValue());
+            setSource(prefix + entry.getKey(), pf.getSource(entry.getKey()));
         }
     }
 
@@ -348,6 +380,13 @@ public class PropertyFile {
         return null;
     }
 
+    // The value stored for a key exactly as it is, without trimming or any
+    // platform override.  Unlike getProperties() this never has to take a
+    // private copy of a shared map.
+    String getRaw(String attribute) {
+        return properties.get(attribute);
+    }
+
     // Get the platform specific flavour of a key if it exists.
     public String getPlatformSpecificKey(String attribute) {
         String k = attribute + "." + Base.getOSFullName();
@@ -437,25 +476,41 @@ public class PropertyFile {
             return;
         }
 
+        unshare();
         properties.put(attribute, value);
+        version++;
     }
 
     /*! Unset a key. If a default exists that value will now be the current value. */
     public void unset(String attribute) {
+        unshare();
         properties.remove(attribute);
+        version++;
     }
 
     /*! Remove a key and any children of that key */
     public void removeAll(String key) {
+        unshare();
+        version++;
         properties.remove(key);
-        String[] keys = properties.keySet().toArray(new String[0]);
-        for (String thiskey : keys) {
-            if (thiskey.startsWith(key + ".")) {
-                properties.remove(thiskey);
-            }
+        prefixRange(properties, key + ".").clear();
+    }
+
+    // Take a private copy of a shared child map before it gets changed.
+    void unshare() {
+        if (shared) {
+            properties = new TreeMap<String, String>(properties);
+            shared = false;
         }
     }
 
+    // All the entries whose keys start with *prefix*, which must end in a
+    // period.  Because '/' sorts directly after '.' the range from "foo." up
+    // to "foo/" is exactly the set of keys below "foo".
+    static SortedMap<String, String> prefixRange(TreeMap<String, String> map, String prefix) {
+        return map.subMap(prefix, prefix.substring(0, prefix.length() - 1) + "/");
+    }
+
     /*! Get a boolean value from a key.  The value is true if it is stored as one of:
      *  * true
      *  * yes
@@ -755,8 +810,13 @@ public class PropertyFile {
         return font;
     }
 
-    /*! Return the internal Properties object used to store the data */
+    /*! Return the internal Properties object used to store the data.  As
+     *  the caller may change it, anything cached from the old contents is
+     *  thrown away.
+     */
     public TreeMap<String, String> getProperties() {
+        unshare();
+        version++;
         return properties;
     }
 
@@ -800,12 +860,15 @@ public class PropertyFile {
                     // properties object and only replace the old ones with the new if it
                     // is all successful.
                     TreeMap<String, String> newProperties = new TreeMap<String, String>(defaultProperties);
+                    unshare();
                     FileInputStream fis = new FileInputStream(user);
                     BufferedReader r = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
                     loadProperties(properties, r);
                     r.close();
                     fis.close();
                     properties = newProperties;
+                    shared = false;
+                    version++;
                 } catch(Exception e) {
                     Base.exception(e);
                     Base.error(e);
@@ -814,25 +877,72 @@ public class PropertyFile {
         }
     }
 
-    /*! Return a PropertyFile which is a subset of all the keys below the provided *path*. */
+    /*! Return a PropertyFile which is a subset of all the keys below the provided *path*.
+     *  The subset is cached until this file is next changed, and the returned
+     *  PropertyFile only takes its own copy of it if it is written to.
+     */
     public PropertyFile getChildren(String path) {
         if(path == null || path.equals("")) {
             return new PropertyFile(this);
         }
 
         PropertyFile subset = new PropertyFile();
+        subset.properties = getChildMap(path);
+        subset.shared = true;
+        return subset;
+    }
 
+    // Find (or build and cache) the map of keys below *path* with the path
+    // stripped off.  The map is shared and must never be written to.
+    TreeMap<String, String> getChildMap(String path) {
         if(!path.endsWith(".")) {
             path += ".";
         }
 
-        for(String key : properties.keySet()) {
-            if(key.startsWith(path)) {
-                subset.set(key.substring(path.length()), properties.get(key));
+        synchronized (childCache) {
+            checkChildCache();
+            TreeMap<String, String> children = childCache.get(path);
+            if (children == null) {
+                children = new TreeMap<String, String>();
+                int len = path.length();
+                for (Map.Entry<String, String> entry : prefixRange(properties, path).entrySet()) {
+                    children.put(entry.getKey().substring(len), entry.getValue());
+                }
+                childCache.put(path, children);
             }
+            return children;
         }
+    }
 
-        return subset;
+    // Must be called with the childCache lock held.
+    void checkChildCache() {
+        if (childCacheVersion != version) {
+            childCache.clear();
+            childKeysCache.clear();
+            childCacheVersion = version;
+        }
+    }
+
+    // The distinct first components of all the keys in *map*, in order.  All
+    // the keys sharing a first component sit next to each other, so once one
+    // has been seen the rest can be skipped with a single lookup.
+    static String[] topLevelKeys(TreeMap<String, String> map) {
+        TreeSet<String> keys = new TreeSet<String>();
+        String key = map.isEmpty() ? null : map.firstKey();
+
+        while (key != null) {
+            int dot = key.indexOf('.');
+            if (dot == -1) {
+                keys.add(key);
+                key = map.higherKey(key);
+            } else {
+                String top = key.substring(0, dot);
+                keys.add(top);
+                key = map.ceilingKey(top + "/");
+            }
+        }
+
+        return keys.toArray(new String[0]);
     }
 
     /*! Return the top level of directly descendant child keys.  That is,
@@ -843,25 +953,32 @@ public class PropertyFile {
      * it will return { "bar", "foo" }.
      */
     public String[] childKeys() {
-        ArrayList<String> keys = new ArrayList<String>();
-
-        for(String key : properties.keySet()) {
-            String[] bits = key.split("\\.");
-
-            if(keys.indexOf(bits[0]) == -1) {
-                keys.add(bits[0]);
+        synchronized (childCache) {
+            checkChildCache();
+            String[] keys = childKeysCache.get("");
+            if (keys == null) {
+                keys = topLevelKeys(properties);
+                childKeysCache.put("", keys);
             }
+            return keys.clone();
         }
-
-        String[] keyArray = keys.toArray(new String[0]);
-        Arrays.sort(keyArray);
-        return keyArray;
     }
 
     /*! Return all the top-level child keys of the given path.  See: childKeys() */
     public String[] childKeysOf(String path) {
-        PropertyFile pf = getChildren(path);
-        return pf.childKeys();
+        if(path == null || path.equals("")) {
+            return childKeys();
+        }
+
+        synchronized (childCache) {
+            TreeMap<String, String> children = getChildMap(path);
+            String[] keys = childKeysCache.get(path);
+            if (keys == null) {
+                keys = topLevelKeys(children);
+                childKeysCache.put(path, keys);
+            }
+            return keys.clone();
+        }
     }
 
     /*! Return the number of elements in the user data set. */
@@ -887,15 +1004,7 @@ public class PropertyFile {
             return true;
         }
 
-        for(Object ko : properties.keySet()) {
-            String k = (String)ko;
-
-            if(k.startsWith(key + ".")) {
-                return true;
-            }
-        }
-
-        return false;
+        return !prefixRange(properties, key + ".").isEmpty();
     }
 
     /*! Obtain the best match key for the current operating system. */
@@ -947,6 +1056,7 @@ public class PropertyFile {
                 }
                 if (line.startsWith("@")) {
                     if (line.startsWith("@include ")) {
+                        hasIncludes = true;
                         Matcher fnmatch = filename.matcher(line);
                         Matcher fmtmatch = format.matcher(line);
                         if (fnmatch.find()) {
@@ -1077,6 +1187,13 @@ public class PropertyFile {
 //        return binary;
 //    }
 
+    /*! Get the current version of the content.  This changes every time a
+     *  value is set or removed through this class.
+     */
+    public int getVersion() {
+        return version;
+    }
+
     public void setSource(String k, String s) {
         sources.put(k, s);
     }
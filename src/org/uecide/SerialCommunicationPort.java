@@ -36,7 +36,7 @@ import java.util.*;
 import java.util.regex.*;
 
 
-public class SerialCommunicationPort implements CommunicationPort,SerialPortDataListener,Comparable {
+public class SerialCommunicationPort implements SerialLinePort,SerialPortDataListener,Comparable {
 
     String portName = null;
     SerialPort serialPort = null;
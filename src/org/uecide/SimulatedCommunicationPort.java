@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/*! A CommunicationPort with an emulated STK500v1 (Optiboot style) or
+ *  STK500v2 (AVRISP / Wiring style) bootloader on the other end, so that the
+ *  uploaders and board reset code can be run and timed without any hardware.
+ *
+ *  The bootloader keeps its own flash memory, which can be inspected after an
+ *  upload.  Traffic is paced to match the baud rate (10 bits per byte in each
+ *  direction), each reply can be delayed by a fixed latency, and a proportion
+ *  of replies can be dropped or corrupted to exercise error handling.  Counts
+ *  of the bytes, commands, pages and resets seen are kept for benchmarking.
+ *
+ *  Replies are delivered to the listener on the port's own thread, the same
+ *  as a real serial port.
+ */
+public class SimulatedCommunicationPort implements SerialLinePort, Comparable {
+
+    public static final int STK500V1 = 1;
+    public static final int STK500V2 = 2;
+
+    String name;
+    int protocol;
+
+    int speed = 115200;
+    boolean pacing = true;
+    int latency = 0;
+    double errorRate = 0.0;
+    Random random = new Random(0);
+
+    byte[] flash;
+    long address = 0;
+
+    boolean open = false;
+    boolean dtr = false;
+    boolean rts = false;
+    CommsListener listener = null;
+    String lastError = null;
+    HashMap<String, String> data = new HashMap<String, String>();
+
+    // The bootloader runs on this thread, fed from the queue of written data.
+    LinkedBlockingQueue<byte[]> incoming = new LinkedBlockingQueue<byte[]>();
+    Thread worker = null;
+    byte[] command = new byte[1024];
+    int commandLength = 0;
+
+    // Statistics
+    long bytesWritten = 0;
+    long bytesRead = 0;
+    int commands = 0;
+    int pagesWritten = 0;
+    int pagesRead = 0;
+    int resets = 0;
+    int errorsInjected = 0;
+
+    public SimulatedCommunicationPort(String n, int p) {
+        this(n, p, 256 * 1024);
+    }
+
+    public SimulatedCommunicationPort(String n, int p, int flashSize) {
+        name = n;
+        protocol = p;
+        flash = new byte[flashSize];
+        Arrays.fill(flash, (byte)0xFF);
+    }
+
+    /*! Pace the data to the baud rate set with setSpeed().  On by default. */
+    public void setPacing(boolean p) { pacing = p; }
+
+    /*! Add a fixed delay, in milliseconds, before each reply. */
+    public void setLatency(int ms) { latency = ms; }
+
+    /*! Drop or corrupt this proportion (0 to 1) of the replies.  The seed
+     *  makes a run repeatable.
+     */
+    public void setErrorRate(double rate, long seed) {
+        errorRate = rate;
+        random = new Random(seed);
+    }
+
+    public byte[] getFlash() { return flash; }
+
+    public long getBytesWritten() { return bytesWritten; }
+    public long getBytesRead() { return bytesRead; }
+    public int getCommandCount() { return commands; }
+    public int getPagesWritten() { return pagesWritten; }
+    public int getPagesRead() { return pagesRead; }
+    public int getResetCount() { return resets; }
+    public int getErrorsInjected() { return errorsInjected; }
+
+    /*! Zero all the statistics. */
+    public synchronized void resetStatistics() {
+        bytesWritten = 0;
+        bytesRead = 0;
+        commands = 0;
+        pagesWritten = 0;
+        pagesRead = 0;
+        resets = 0;
+        errorsInjected = 0;
+    }
+
+    public String getName() {
+        return name + " (Simulated " + (protocol == STK500V1 ? "STK500v1" : "STK500v2") + " bootloader)";
+    }
+
+    public String toString() { return name; }
+    public String getConsoleAddress() { return null; }
+    public String getConsolePort() { return name; }
+    public String getProgrammingAddress() { return null; }
+    public String getProgrammingPort() { return name; }
+    public Board getBoard() { return null; }
+    public String getBaseName() { return name; }
+    public boolean exists() { return true; }
+    public String getLastError() { return lastError; }
+
+    public synchronized boolean openPort() {
+        if (open) {
+            lastError = "Port already open";
+            return false;
+        }
+        open = true;
+        commandLength = 0;
+        incoming.clear();
+        worker = new Thread(new Runnable() {
+            public void run() {
+                bootloader();
+            }
+        }, "simulated-port-" + name);
+        worker.setDaemon(true);
+        worker.start();
+        return true;
+    }
+
+    public synchronized void closePort() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        worker.interrupt();
+        worker = null;
+
+        // Touching the port at 1200 baud is the signal for a baud based reset.
+        if (speed == 1200) {
+            reset();
+        }
+    }
+
+    public boolean print(String d) { return write(d.getBytes()); }
+    public boolean println(String d) { return write((d + "\r\n").getBytes()); }
+    public boolean write(byte d) { return write(new byte[] { d }); }
+
+    public boolean write(byte[] d) {
+        synchronized (this) {
+            if (!open) {
+                lastError = "Port not open";
+                return false;
+            }
+            bytesWritten += d.length;
+        }
+        incoming.add(Arrays.copyOf(d, d.length));
+        return true;
+    }
+
+    public void addCommsListener(CommsListener l) { listener = l; }
+    public void removeCommsListener() { listener = null; }
+
+    public synchronized boolean setSpeed(int s) {
+        speed = s;
+        return true;
+    }
+
+    public CommsSpeed[] getSpeeds() {
+        return new CommsSpeed[] {
+            new CommsSpeed(1200, "1200"),
+            new CommsSpeed(57600, "57600"),
+            new CommsSpeed(115200, "115200"),
+            new CommsSpeed(230400, "230400"),
+            new CommsSpeed(460800, "460800")
+        };
+    }
+
+    public void pulseLine() {
+        setDTR(false);
+        setRTS(false);
+        setDTR(true);
+        setRTS(true);
+        setDTR(false);
+        setRTS(false);
+    }
+
+    // The auto-reset circuit resets the board when DTR or RTS is released.
+    public synchronized void setDTR(boolean d) {
+        if (dtr && !d) {
+            reset();
+        }
+        dtr = d;
+    }
+
+    public synchronized void setRTS(boolean r) {
+        if (rts && !r) {
+            reset();
+        }
+        rts = r;
+    }
+
+    public boolean getDTR() { return dtr; }
+    public boolean getRTS() { return rts; }
+
+    public int compareTo(Object a) {
+        if (a instanceof CommunicationPort) {
+            return getName().compareTo(((CommunicationPort)a).getName());
+        }
+        return 0;
+    }
+
+    public void set(String key, String val) { data.put(key, val); }
+    public String get(String key) { return data.get(key); }
+
+    // Must be called with the lock held.
+    void reset() {
+        resets++;
+        commandLength = 0;
+        address = 0;
+    }
+
+    // Wait for the time it takes *bytes* bytes to cross the wire.
+    void transfer(int bytes) {
+        if (pacing && (speed > 0)) {
+            LockSupport.parkNanos(bytes * 10L * 1000000000L / speed);
+        }
+    }
+
+    void bootloader() {
+        try {
+            while (true) {
+                byte[] in = incoming.take();
+                transfer(in.length);
+                for (int i = 0; i < in.length; i++) {
+                    receive(in[i] & 0xFF);
+                }
+            }
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    void receive(int b) {
+        if (commandLength == command.length) {
+            commandLength = 0;
+        }
+        command[commandLength++] = (byte)b;
+
+        byte[] reply = protocol == STK500V1 ? stk500v1() : stk500v2();
+        if (reply == null) {
+            return;
+        }
+
+        synchronized (this) {
+            commandLength = 0;
+            commands++;
+        }
+
+        if (latency > 0) {
+            LockSupport.parkNanos(latency * 1000000L);
+        }
+
+        if ((errorRate > 0) && (random.nextDouble() < errorRate)) {
+            synchronized (this) {
+                errorsInjected++;
+            }
+            if (random.nextBoolean()) {
+                return; // Lost
+            }
+            reply[random.nextInt(reply.length)] ^= 0x55;
+        }
+
+        transfer(reply.length);
+
+        synchronized (this) {
+            bytesRead += reply.length;
+        }
+
+        CommsListener l = listener;
+        if (l != null) {
+            l.commsDataReceived(reply);
+        }
+    }
+
+    int commandByte(int i) {
+        return command[i] & 0xFF;
+    }
+
+    // Returns the reply once a complete STK500v1 command has been received,
+    // or null if more is needed.
+    byte[] stk500v1() {
+        int cmd = commandByte(0);
+        int args;
+
+        switch (cmd) {
+            case 0x40: args = 2; break;                  // Set parameter
+            case 0x41: args = 1; break;                  // Get parameter
+            case 0x42: args = 20; break;                 // Set device
+            case 0x45: args = 5; break;                  // Set device ext
+            case 0x55: args = 2; break;                  // Load address
+            case 0x56: args = 4; break;                  // Universal
+            case 0x64:                                   // Program page
+                if (commandLength < 4) {
+                    return null;
+                }
+                args = 3 + ((commandByte(1) << 8) | commandByte(2));
+                break;
+            case 0x74: args = 3; break;                  // Read page
+            default: args = 0; break;
+        }
+
+        if (commandLength < args + 2) {
+            return null;
+        }
+
+        if (commandByte(args + 1) != 0x20) {             // Sync_CRC_EOP
+            return new byte[] { 0x15 };                  // NOSYNC
+        }
+
+        byte[] body = new byte[0];
+
+        switch (cmd) {
+            case 0x31:
+                body = "AVR STK".getBytes();
+                break;
+            case 0x41:
+                body = new byte[] { commandByte(1) == 0x81 ? (byte)4 : (byte)3 };
+                break;
+            case 0x55:
+                address = ((commandByte(2) << 8) | commandByte(1)) * 2L;
+                break;
+            case 0x56:
+                body = new byte[] { 0 };
+                break;
+            case 0x64:
+                writeFlash(4, args - 3);
+                break;
+            case 0x74:
+                body = readFlash((commandByte(1) << 8) | commandByte(2));
+                break;
+            case 0x75:
+                body = new byte[] { 0x1E, (byte)0x95, 0x0F };
+                break;
+        }
+
+        byte[] reply = new byte[body.length + 2];
+        reply[0] = 0x14;                                 // INSYNC
+        System.arraycopy(body, 0, reply, 1, body.length);
+        reply[reply.length - 1] = 0x10;                  // OK
+        return reply;
+    }
+
+    // Returns the reply once a complete STK500v2 message has been received,
+    // or null if more is needed.
+    byte[] stk500v2() {
+        if (commandByte(0) != 0x1B) {
+            commandLength = 0;
+            return null;
+        }
+
+        if (commandLength < 5) {
+            return null;
+        }
+
+        int len = (commandByte(2) << 8) | commandByte(3);
+        if (commandLength < len + 6) {
+            return null;
+        }
+
+        int checksum = 0;
+        for (int i = 0; i < len + 6; i++) {
+            checksum ^= commandByte(i);
+        }
+        if ((commandByte(4) != 0x0E) || (checksum != 0)) {
+            return frame(commandByte(1), new byte[] { 0, (byte)0xC1 }); // ANSWER_CKSUM_ERROR
+        }
+
+        int cmd = commandByte(5);
+        byte[] body;
+
+        switch (cmd) {
+            case 0x01: // Sign on
+                body = new byte[] { 0x01, 0x00, 0x08, 'A', 'V', 'R', 'I', 'S', 'P', '_', '2' };
+                break;
+            case 0x03: // Get parameter
+                body = new byte[] { 0x03, 0x00, 0x00 };
+                break;
+            case 0x06: // Load address
+                address = (((long)commandByte(6) << 24) | (commandByte(7) << 16) | (commandByte(8) << 8) | commandByte(9)) & 0x7FFFFFFFL;
+                address *= 2;
+                body = new byte[] { 0x06, 0x00 };
+                break;
+            case 0x13: // Program flash
+                writeFlash(15, (commandByte(6) << 8) | commandByte(7));
+                body = new byte[] { 0x13, 0x00 };
+                break;
+            case 0x14: { // Read flash
+                byte[] d = readFlash((commandByte(6) << 8) | commandByte(7));
+                body = new byte[d.length + 3];
+                body[0] = 0x14;
+                System.arraycopy(d, 0, body, 2, d.length);
+                break;
+            }
+            default:
+                body = new byte[] { (byte)cmd, 0x00 };
+                break;
+        }
+
+        return frame(commandByte(1), body);
+    }
+
+    byte[] frame(int seq, byte[] body) {
+        byte[] f = new byte[body.length + 6];
+        f[0] = 0x1B;
+        f[1] = (byte)seq;
+        f[2] = (byte)(body.length >> 8);
+        f[3] = (byte)body.length;
+        f[4] = 0x0E;
+        System.arraycopy(body, 0, f, 5, body.length);
+        int checksum = 0;
+        for (int i = 0; i < f.length - 1; i++) {
+            checksum ^= f[i];
+        }
+        f[f.length - 1] = (byte)checksum;
+        return f;
+    }
+
+    void writeFlash(int offset, int len) {
+        synchronized (this) {
+            pagesWritten++;
+        }
+        for (int i = 0; i < len; i++) {
+            if (address + i < flash.length) {
+                flash[(int)address + i] = command[offset + i];
+            }
+        }
+        address += len;
+    }
+
+    byte[] readFlash(int len) {
+        synchronized (this) {
+            pagesRead++;
+        }
+        byte[] d = new byte[len];
+        for (int i = 0; i < len; i++) {
+            d[i] = address + i < flash.length ? flash[(int)address + i] : (byte)0xFF;
+        }
+        address += len;
+        return d;
+    }
+}
@@ -120,33 +120,46 @@ public class Sketch {
 
     HashMap<String, Integer>keywords = new HashMap<String, Integer>();
 
+    Diagnostics diagnostics = null;
+
+    // Line comments and diagnostics are added to from the build threads.
+    final Object diagnosticsLock = new Object();
+
     public void setLineComment(File file, int line, String comment) {
-        HashMap<Integer, String> comments = lineComments.get(file);
+        synchronized (diagnosticsLock) {
+            HashMap<Integer, String> comments = lineComments.get(file);
 
-        if(comments == null) {
-            comments = new HashMap<Integer, String>();
-        }
+            if(comments == null) {
+                comments = new HashMap<Integer, String>();
+            }
 
-        comments.put(line, comment);
-        lineComments.put(file, comments);
+            comments.put(line, comment);
+            lineComments.put(file, comments);
+        }
     }
 
     public String getLineComment(File file, int line) {
-        HashMap<Integer, String> comments = lineComments.get(file);
+        synchronized (diagnosticsLock) {
+            HashMap<Integer, String> comments = lineComments.get(file);
 
-        if(comments == null) {
-            return null;
-        }
+            if(comments == null) {
+                return null;
+            }
 
-        return comments.get(line);
+            return comments.get(line);
+        }
     }
 
     public HashMap<Integer, String> getLineComments(File file) {
-        return lineComments.get(file);
+        synchronized (diagnosticsLock) {
+            return lineComments.get(file);
+        }
     }
 
     public void clearLineComments() {
-        lineComments = new HashMap<File, HashMap<Integer, String>>();
+        synchronized (diagnosticsLock) {
+            lineComments = new HashMap<File, HashMap<Integer, String>>();
+        }
     }
 
     public Sketch() {
@@ -842,15 +855,7 @@ public class Sketch {
         }
 
         if (f.getName().endsWith(".blk")) { // Special case for ardublock files...
-            try {
-                com.ardublock.core.Context c = com.ardublock.core.Context.getContext();
-                c.loadArduBlockFile(f);
-                return org.uecide.editors.ardublock.generateCode(c, editor);
-            } catch (Exception e) {
-                Base.exception(e);
-                error(e);
-                return "";
-            }
+            return getBlockFileCode(f);
         }
 
         InputStream    fis;
@@ -875,6 +880,34 @@ public class Sketch {
         return sb.toString();
     }
 
+    // Translating an ArduBlock file means loading the whole workspace, so
+    // the code is kept along with a hash of the file it came from and only
+    // translated again when the file changes.
+    HashMap<File, String[]> blockCodeCache = new HashMap<File, String[]>();
+
+    String getBlockFileCode(File f) {
+        String hash = SymbolIndex.hash(Base.getFileAsString(f));
+
+        synchronized (blockCodeCache) {
+            String[] cached = blockCodeCache.get(f);
+            if ((cached != null) && cached[0].equals(hash)) {
+                return cached[1];
+            }
+
+            try {
+                com.ardublock.core.Context c = com.ardublock.core.Context.getContext();
+                c.loadArduBlockFile(f);
+                String code = org.uecide.editors.ardublock.generateCode(c, editor);
+                blockCodeCache.put(f, new String[] { hash, code });
+                return code;
+            } catch (Exception e) {
+                Base.exception(e);
+                error(e);
+                return "";
+            }
+        }
+    }
+
     // Write the content of a file to a folder.
     public void writeFileToFolder(File file, File folder) {
         File dest = new File(folder, file.getName());
@@ -1107,9 +1140,7 @@ public class Sketch {
         }
 
 
-        functionListBm = new ArrayList<FunctionBookmark>();
-        String data;
-        HashMap<Integer, String>funcs = null;
+        ArrayList<String> names = new ArrayList<String>();
 
         for(File f : sketchFiles) {
             switch(FileType.getType(f)) {
@@ -1117,16 +1148,15 @@ public class Sketch {
             case FileType.HEADER:
             case FileType.CSOURCE:
             case FileType.CPPSOURCE:
-                File tf = dumpFileData(buildFolder, f.getName());
-                ArrayList<FunctionBookmark> bm = scanForFunctions(tf);
-                functionListBm.addAll(bm);
-                
+                names.add(f.getName());
                 break;
 
             case FileType.ASMSOURCE:
                 break;
             }
         }
+
+        functionListBm = getSymbols(names);
     }
 
     public static final int LIB_PENDING = 0;
@@ -1194,6 +1224,8 @@ public class Sketch {
             }
         }
 
+        LibraryIncludeIndex.save();
+
         orderedLibraries = new ArrayList<Library>();
         for (String inclib : includeOrder) {
             if (importedLibraries.get(inclib) != null) {
@@ -1260,136 +1292,261 @@ public class Sketch {
     }
 
     public ArrayList<FunctionBookmark> scanForFunctions(File f) {
+        ArrayList<FunctionBookmark> protos = runCtags(f);
+        if (protos == null) {
+            protos = new ArrayList<FunctionBookmark>();
+        }
+        return protos;
+    }
 
-        ArrayList<FunctionBookmark> protos = new ArrayList<FunctionBookmark>();
-        
+    // Run ctags on a single file.  Returns null if ctags isn't available or
+    // failed, so the caller can tell that apart from a file with no symbols.
+    ArrayList<FunctionBookmark> runCtags(File f) {
         Tool t = Tool.getTool("ctags");
-        if (t != null) {
-            Pattern pat = Pattern.compile("\\^([^\\(]+)\\(");
-            ctx.set("filename", f.getName());
-            ctx.set("sketch.root", f.getParentFile().getAbsolutePath());
+        if (t == null) {
+            return null;
+        }
+
+        // Never let the tags from an earlier run stand in for this one.
+        File tags = new File(buildFolder, f.getName() + ".tags");
+        Base.tryDelete(tags);
+
+        ctx.set("filename", f.getName());
+        ctx.set("sketch.root", f.getParentFile().getAbsolutePath());
+        ctx.set("build.root", buildFolder.getAbsolutePath());
+        ctx.set("build.path", buildFolder.getAbsolutePath());
+        ctx.startBuffer(true);
+        boolean ok = t.execute(ctx, "ctags.parse.ino");
+        ctx.endBuffer();
+
+        if (!ok) {
+            return null;
+        }
+        return parseTagsFile(tags);
+    }
+
+    /*! Get the symbols in a set of sketch files.  Files whose content hasn't
+     *  changed since they were last scanned come from the SymbolIndex; the
+     *  rest are written to the build folder and passed through ctags.  If
+     *  the ctags tool has a *ctags.parse.batch* command all the changed files
+     *  are scanned in one go, with *filenames* set to the list of files and
+     *  *tags.file* to the file the tags should be written to.
+     */
+    public ArrayList<FunctionBookmark> getSymbols(ArrayList<String> names) {
+        ArrayList<FunctionBookmark> out = new ArrayList<FunctionBookmark>();
+
+        Tool t = Tool.getTool("ctags");
+        if (t == null) {
+            return out;
+        }
+        String version = t.getFullVersion();
+
+        ArrayList<File> changed = new ArrayList<File>();
+        HashMap<File, String> hashes = new HashMap<File, String>();
+
+        for (String fn : names) {
+            File f = getFileByName(fn);
+            if (f == null) {
+                continue;
+            }
+            // Bookmarks refer to the file by where it would be in the sketch
+            // folder, so the index does too.
+            File sf = translateBuildFileToSketchFile(getBuildFileByName(fn).getAbsolutePath());
+            String hash = SymbolIndex.hash(getFileContent(f));
+            ArrayList<FunctionBookmark> cached = SymbolIndex.get(sf, hash, version);
+            if (cached != null) {
+                out.addAll(cached);
+            } else {
+                File bf = dumpFileData(buildFolder, fn);
+                if (bf != null) {
+                    changed.add(bf);
+                    hashes.put(sf, hash);
+                }
+            }
+        }
+
+        if (changed.size() == 0) {
+            return out;
+        }
+
+        // Everything scanned gets an entry, even if nothing was found in it.
+        HashMap<File, ArrayList<FunctionBookmark>> found = new HashMap<File, ArrayList<FunctionBookmark>>();
+        for (File sf : hashes.keySet()) {
+            found.put(sf, new ArrayList<FunctionBookmark>());
+        }
+
+        if ((changed.size() > 1) && (t.get("ctags.parse.batch") != null)) {
+            StringBuilder files = new StringBuilder();
+            for (File bf : changed) {
+                if (files.length() > 0) {
+                    files.append("::");
+                }
+                files.append(bf.getAbsolutePath());
+            }
+            File tags = new File(buildFolder, "symbols.tags");
+            Base.tryDelete(tags);
+            ctx.set("filenames", files.toString());
+            ctx.set("tags.file", tags.getAbsolutePath());
             ctx.set("build.root", buildFolder.getAbsolutePath());
             ctx.set("build.path", buildFolder.getAbsolutePath());
             ctx.startBuffer(true);
-            t.execute(ctx, "ctags.parse.ino");
+            boolean ok = t.execute(ctx, "ctags.parse.batch");
             ctx.endBuffer();
 
-            File tags = new File(buildFolder, f.getName() + ".tags");
-            if (tags.exists()) { // We got the tags
-                String tagData = Base.getFileAsString(tags);
-                String[] tagLines = tagData.split("\n");
+            // Don't index anything from a failed run - the files will be
+            // scanned again next time.
+            if (!ok) {
+                return out;
+            }
 
-                for (String tagLine : tagLines) {
+            for (FunctionBookmark bm : parseTagsFile(tags)) {
+                ArrayList<FunctionBookmark> list = found.get(bm.getFile());
+                if (list != null) {
+                    list.add(bm);
+                }
+            }
+        } else {
+            for (File bf : changed) {
+                File sf = translateBuildFileToSketchFile(bf.getAbsolutePath());
+                ArrayList<FunctionBookmark> list = found.get(sf);
+                if (list != null) {
+                    ArrayList<FunctionBookmark> syms = runCtags(bf);
+                    if (syms == null) {
+                        found.remove(sf);
+                    } else {
+                        list.addAll(syms);
+                    }
+                }
+            }
+        }
 
-                    String[] chunks = tagLine.split("\t");
+        for (File sf : found.keySet()) {
+            ArrayList<FunctionBookmark> list = found.get(sf);
+            SymbolIndex.put(sf, hashes.get(sf), version, list);
+            out.addAll(list);
+        }
+        SymbolIndex.save();
 
-                    if (chunks[0].startsWith("!")) continue;
+        return out;
+    }
+
+    // Turn a ctags output file into a list of bookmarks.
+    ArrayList<FunctionBookmark> parseTagsFile(File tags) {
+        ArrayList<FunctionBookmark> protos = new ArrayList<FunctionBookmark>();
+        if (tags.exists()) { // We got the tags
+            String tagData = Base.getFileAsString(tags);
+            String[] tagLines = tagData.split("\n");
 
-                    String itemName = chunks[0].trim();
-                    String fileName = chunks[1].trim();
-                    String objectType = chunks[3].trim();
+            for (String tagLine : tagLines) {
 
-                    HashMap<String, String> params = new HashMap<String, String>();
+                String[] chunks = tagLine.split("\t");
 
-                    for (int i = 4; i < chunks.length; i++) {
-                        String[] parts = chunks[i].split(":", 2);
-                        if (parts.length == 2) {
-                            params.put(parts[0], parts[1]);
-                        }
+                if (chunks[0].startsWith("!")) continue;
+
+                String itemName = chunks[0].trim();
+                String fileName = chunks[1].trim();
+                String objectType = chunks[3].trim();
+
+                HashMap<String, String> params = new HashMap<String, String>();
+
+                for (int i = 4; i < chunks.length; i++) {
+                    String[] parts = chunks[i].split(":", 2);
+                    if (parts.length == 2) {
+                        params.put(parts[0], parts[1]);
                     }
+                }
 
 
-                    if (objectType.equals("f")) { // Function
-                        if (params.get("class") != null) { // Class member function
-                            String returnType = getReturnTypeFromProtoAndSignature(chunks[2], params.get("signature"));
-                            if ((returnType != null) && (!returnType.equals(""))) {
-                                if (itemName.indexOf("::") > 0) {
-                                    itemName = itemName.substring(itemName.indexOf("::") + 2);
-                                }
-                                FunctionBookmark bm = new FunctionBookmark(
-                                    FunctionBookmark.MEMBER_FUNCTION,
-                                    translateBuildFileToSketchFile(fileName),
-                                    Utils.s2i(params.get("line")),
-                                    itemName,
-                                    returnType,
-                                    params.get("signature"),
-                                    params.get("class")
-                                );
-                                protos.add(bm);
+                if (objectType.equals("f")) { // Function
+                    if (params.get("class") != null) { // Class member function
+                        String returnType = getReturnTypeFromProtoAndSignature(chunks[2], params.get("signature"));
+                        if ((returnType != null) && (!returnType.equals(""))) {
+                            if (itemName.indexOf("::") > 0) {
+                                itemName = itemName.substring(itemName.indexOf("::") + 2);
                             }
-                        } else { // Global function
-                            String returnType = getReturnTypeFromProtoAndSignature(chunks[2], params.get("signature"));
                             FunctionBookmark bm = new FunctionBookmark(
-                                FunctionBookmark.FUNCTION,
+                                FunctionBookmark.MEMBER_FUNCTION,
                                 translateBuildFileToSketchFile(fileName),
                                 Utils.s2i(params.get("line")),
                                 itemName,
                                 returnType,
                                 params.get("signature"),
-                                null
+                                params.get("class")
                             );
                             protos.add(bm);
                         }
-                    } else if (objectType.equals("v")) { // Variable
-                        String returnType = getReturnTypeFromProtoAndName(chunks[2], itemName);
-                        FunctionBookmark bm = new FunctionBookmark(
-                            FunctionBookmark.VARIABLE,
-                            translateBuildFileToSketchFile(fileName),
-                            Utils.s2i(params.get("line")),
-                            itemName,
-                            returnType,
-                            null,
-                            null
-                        );
-                        protos.add(bm);
-                    } else if (objectType.equals("m")) { // Class member variable
-                        String returnType = getReturnTypeFromProtoAndName(chunks[2], itemName);
-                        FunctionBookmark bm = new FunctionBookmark(
-                            FunctionBookmark.MEMBER_VARIABLE,
-                            translateBuildFileToSketchFile(fileName),
-                            Utils.s2i(params.get("line")),
-                            itemName,
-                            returnType,
-                            params.get("class"),
-                            null
-                        );
-                        protos.add(bm);
-                    } else if (objectType.equals("d")) { // Preprocessor macro
-                        FunctionBookmark bm = new FunctionBookmark(
-                            FunctionBookmark.DEFINE,
-                            translateBuildFileToSketchFile(fileName),
-                            Utils.s2i(params.get("line")),
-                            itemName,
-                            null,
-                            null,
-                            null
-                        );
-                        protos.add(bm);
-                    } else if (objectType.equals("c")) { // Class definition
-                        FunctionBookmark bm = new FunctionBookmark(
-                            FunctionBookmark.CLASS,
-                            translateBuildFileToSketchFile(fileName),
-                            Utils.s2i(params.get("line")),
-                            itemName,
-                            null,
-                            null,
-                            null
-                        );
-                        protos.add(bm);
-                    } else if (objectType.equals("p")) { // Function prototype - may be a class instantiation
+                    } else { // Global function
                         String returnType = getReturnTypeFromProtoAndSignature(chunks[2], params.get("signature"));
                         FunctionBookmark bm = new FunctionBookmark(
-                            FunctionBookmark.VARIABLE,
+                            FunctionBookmark.FUNCTION,
                             translateBuildFileToSketchFile(fileName),
                             Utils.s2i(params.get("line")),
                             itemName,
                             returnType,
-                            null,
+                            params.get("signature"),
                             null
                         );
                         protos.add(bm);
-                    } else { // Something we don't know about
                     }
+                } else if (objectType.equals("v")) { // Variable
+                    String returnType = getReturnTypeFromProtoAndName(chunks[2], itemName);
+                    FunctionBookmark bm = new FunctionBookmark(
+                        FunctionBookmark.VARIABLE,
+                        translateBuildFileToSketchFile(fileName),
+                        Utils.s2i(params.get("line")),
+                        itemName,
+                        returnType,
+                        null,
+                        null
+                    );
+                    protos.add(bm);
+                } else if (objectType.equals("m")) { // Class member variable
+                    String returnType = getReturnTypeFromProtoAndName(chunks[2], itemName);
+                    FunctionBookmark bm = new FunctionBookmark(
+                        FunctionBookmark.MEMBER_VARIABLE,
+                        translateBuildFileToSketchFile(fileName),
+                        Utils.s2i(params.get("line")),
+                        itemName,
+                        returnType,
+                        params.get("class"),
+                        null
+                    );
+                    protos.add(bm);
+                } else if (objectType.equals("d")) { // Preprocessor macro
+                    FunctionBookmark bm = new FunctionBookmark(
+                        FunctionBookmark.DEFINE,
+                        translateBuildFileToSketchFile(fileName),
+                        Utils.s2i(params.get("line")),
+                        itemName,
+                        null,
+                        null,
+                        null
+                    );
+                    protos.add(bm);
+                } else if (objectType.equals("c")) { // Class definition
+                    FunctionBookmark bm = new FunctionBookmark(
+                        FunctionBookmark.CLASS,
+                        translateBuildFileToSketchFile(fileName),
+                        Utils.s2i(params.get("line")),
+                        itemName,
+                        null,
+                        null,
+                        null
+                    );
+                    protos.add(bm);
+                } else if (objectType.equals("p")) { // Function prototype - may be a class instantiation
+                    String returnType = getReturnTypeFromProtoAndSignature(chunks[2], params.get("signature"));
+                    FunctionBookmark bm = new FunctionBookmark(
+                        FunctionBookmark.VARIABLE,
+                        translateBuildFileToSketchFile(fileName),
+                        Utils.s2i(params.get("line")),
+                        itemName,
+                        returnType,
+                        null,
+                        null
+                    );
+                    protos.add(bm);
+                } else { // Something we don't know about
                 }
             }
         }
@@ -1470,6 +1627,7 @@ public class Sketch {
 
         // Find all the function prototypes in sketch files
         ArrayList<FunctionBookmark> protos = new ArrayList<FunctionBookmark>();
+        ArrayList<String> symbolFiles = new ArrayList<String>();
 
         for (String fn : getFileNames()) {
             File f = getBuildFileByName(fn);
@@ -1478,14 +1636,15 @@ public class Sketch {
                 case FileType.CPPSOURCE:
                 case FileType.ASMSOURCE:
                 case FileType.HEADER:
-                case FileType.SKETCH: {
-                    ArrayList<FunctionBookmark> bms = scanForFunctions(f);
-                    for (FunctionBookmark bm : bms) {
-                        if (bm.isFunction()) {
-                            protos.add(bm);
-                        }
-                    }
-                } break;
+                case FileType.SKETCH:
+                    symbolFiles.add(fn);
+                    break;
+            }
+        }
+
+        for (FunctionBookmark bm : getSymbols(symbolFiles)) {
+            if (bm.isFunction()) {
+                protos.add(bm);
             }
         }
 
@@ -1721,8 +1880,8 @@ public class Sketch {
         if (!Base.isQuiet()) ctx.bullet("Resetting board.");
         try {
             CommunicationPort port = ctx.getDevice();
-            if (port instanceof SerialCommunicationPort) {
-                SerialCommunicationPort sport = (SerialCommunicationPort)port;
+            if (port instanceof SerialLinePort) {
+                CommunicationPort sport = port;
                 if (!sport.openPort()) {
                     ctx.error("Error: " + sport.getLastError());
                     return false;
@@ -1750,8 +1909,8 @@ public class Sketch {
         if (!Base.isQuiet()) ctx.bullet("Resetting board.");
         try {
             CommunicationPort port = ctx.getDevice();
-            if (port instanceof SerialCommunicationPort) {
-                SerialCommunicationPort sport = (SerialCommunicationPort)port;
+            if (port instanceof SerialLinePort) {
+                CommunicationPort sport = port;
                 if (!sport.openPort()) {
                     ctx.error("Error: " + sport.getLastError());
                     return false;
@@ -2372,6 +2531,9 @@ public class Sketch {
 
         ctx.set("cache.root", getCacheFolder().getAbsolutePath());
         clearLineComments();
+        synchronized (diagnosticsLock) {
+            diagnostics = new Diagnostics(ctx);
+        }
 
         if (props.getBoolean("purge")) {
             doPrePurge = true;
@@ -2546,37 +2708,49 @@ public class Sketch {
 
         if (!Base.isQuiet()) bullet("Compiling sketch...");
         setCompilingProgress(10);
-        ArrayList<File>sketchObjects = compileSketch();
 
-        if(sketchObjects == null) {
-            error(Base.i18n.string("err.compiling.failed"));
-            return false;
-        }
+        // Everything up to and including the link is queued up as a set of
+        // tasks and then run in parallel as far as the dependencies between
+        // them allow.
+        BuildScheduler scheduler = new BuildScheduler(ctx);
+        scheduler.setProgressRange(10, 50);
+        DependencyIndex deps = openDependencyIndex();
 
-        if (!Base.isQuiet()) bullet(Base.i18n.string("msg.compiling.core"));
-        setCompilingProgress(20);
+        try {
+            final ArrayList<File> sketchObjects = compileSketch(scheduler, deps);
 
-        if(!compileCore()) {
-            error(Base.i18n.string("err.compiling.failed"));
-            return false;
-        }
+            if(sketchObjects == null) {
+                error(Base.i18n.string("err.compiling.failed"));
+                return false;
+            }
 
-        setCompilingProgress(30);
+            if (!Base.isQuiet()) bullet(Base.i18n.string("msg.compiling.core"));
 
-        if (!Base.isQuiet()) bullet(Base.i18n.string("msg.compiling.libraries"));
+            if(!compileCore(scheduler)) {
+                error(Base.i18n.string("err.compiling.failed"));
+                return false;
+            }
 
-        if(!compileLibraries()) {
-            error(Base.i18n.string("err.compiling.failed"));
-            return false;
-        }
+            if (!Base.isQuiet()) bullet(Base.i18n.string("msg.compiling.libraries"));
 
-        setCompilingProgress(40);
+            compileLibraries(scheduler);
 
-        if (!Base.isQuiet()) bullet(Base.i18n.string("msg.linking"));
+            scheduler.add("link", new BuildScheduler.Job() {
+                public boolean run() {
+                    if (!Base.isQuiet()) bullet(Base.i18n.string("msg.linking"));
+                    return compileLink(sketchObjects);
+                }
+            }, scheduler.getTasks());
 
-        if(!compileLink(sketchObjects)) {
-            error(Base.i18n.string("err.compiling.failed"));
-            return false;
+            if(!scheduler.run()) {
+                error(Base.i18n.string("err.compiling.failed"));
+                return false;
+            }
+        } finally {
+            scheduler.shutdown();
+            if (deps != null) {
+                deps.save();
+            }
         }
 
         setCompilingProgress(50);
@@ -2660,7 +2834,34 @@ public class Sketch {
     public boolean compileSize() {
         PropertyFile props = ctx.getMerged();
 
-        if (props.get("compile.size") != null) {
+        if (props.getBoolean("compile.size.internal")) {
+            if (!Base.isQuiet()) heading(Base.i18n.string("msg.compiling.memory"));
+
+            // The core has asked for the sizes to be read straight from the
+            // ELF file rather than by running the size utility.
+            File elfFile = new File(ctx.parseString(props.get("compile.size.file", "${build.path}/${filename}.elf")));
+            ArrayList<String> ignore = new ArrayList<String>();
+            String ignoreList = props.get("compile.size.ignore");
+            if (ignoreList != null) {
+                for (String sec : ignoreList.split(",")) {
+                    ignore.add(sec.trim());
+                }
+            }
+
+            ElfFile elf = null;
+            try {
+                elf = new ElfFile(elfFile);
+                ElfFile.SizeSummary sizes = elf.getSizeSummary(ignore);
+                reportSize((int)sizes.text, (int)sizes.rodata, (int)sizes.data, (int)sizes.bss);
+            } catch (IOException e) {
+                Base.exception(e);
+                error(e);
+            } finally {
+                if (elf != null) {
+                    elf.close();
+                }
+            }
+        } else if (props.get("compile.size") != null) {
             if (!Base.isQuiet()) heading(Base.i18n.string("msg.compiling.memory"));
 
             ctx.startBuffer();
@@ -2701,96 +2902,57 @@ public class Sketch {
                 }
             }
 
-            ctx.set("size.text", textSize + "");
-            ctx.set("size.data", dataSize + "");
-            ctx.set("size.rodata", rodataSize + "");
-            ctx.set("size.bss", bssSize + "");
-
-            ctx.set("size.flash", (textSize + dataSize + rodataSize) + "");
-            ctx.set("size.ram", (bssSize + dataSize) + "");
-
-            if (!Base.isQuiet()) {
-                int max_ram = props.getInteger("memory.sram");
-                int max_rom = props.getInteger("memory.flash");
-
-                if (max_rom > 0) {
-                    int romperc = (textSize + dataSize + rodataSize) * 100 / max_rom;
-                    bullet(Base.i18n.string("msg.compiling.progsize.perc", (textSize + dataSize + rodataSize), romperc)); 
-                } else {
-                    bullet(Base.i18n.string("msg.compiling.progsize", (textSize + dataSize + rodataSize))); 
-                }
-
-                if (max_ram > 0) {
-                    int ramperc = (bssSize + dataSize) * 100 / max_ram;
-                    bullet(Base.i18n.string("msg.compiling.ramsize.perc", (bssSize + dataSize), ramperc)); 
-                } else {
-                    bullet(Base.i18n.string("msg.compiling.ramsize", (bssSize + dataSize))); 
-                }
-            }
+            reportSize(textSize, rodataSize, dataSize, bssSize);
         }
         return true;
     }
 
-    class LibCompileThread extends Thread {
-        public boolean compiled = false;
-        public Library target = null;
-        public LibCompileThread(Library tgt) {
-            target = tgt;
-        }
-        public void run() {
-            compiled = compileLibrary(target);
-        }
-    }
+    void reportSize(int textSize, int rodataSize, int dataSize, int bssSize) {
+        PropertyFile props = ctx.getMerged();
 
-    public boolean compileLibraries() {
-        boolean ok = true;
-        ArrayList<LibCompileThread> threads = new ArrayList<LibCompileThread>();
+        ctx.set("size.text", textSize + "");
+        ctx.set("size.data", dataSize + "");
+        ctx.set("size.rodata", rodataSize + "");
+        ctx.set("size.bss", bssSize + "");
 
-        int maxThreads = 4;
-        int currentThreads = 0;
+        ctx.set("size.flash", (textSize + dataSize + rodataSize) + "");
+        ctx.set("size.ram", (bssSize + dataSize) + "");
 
-        for(String lib : importedLibraries.keySet()) {
+        if (!Base.isQuiet()) {
+            int max_ram = props.getInteger("memory.sram");
+            int max_rom = props.getInteger("memory.flash");
 
-            while (currentThreads >= maxThreads) {
-                for (LibCompileThread t : threads) {
-                    try {
-                        t.join(10);
-                        if (t.getState() == Thread.State.TERMINATED) {
-                            if (t.compiled == false) ok = false;
-                            currentThreads--;
-                            threads.remove(threads.indexOf(t));
-                            break;
-                        }
-                    } catch (Exception e) {
-                        Base.exception(e);
-                        error(e);
-                    }
-                }
+            if (max_rom > 0) {
+                int romperc = (textSize + dataSize + rodataSize) * 100 / max_rom;
+                bullet(Base.i18n.string("msg.compiling.progsize.perc", (textSize + dataSize + rodataSize), romperc)); 
+            } else {
+                bullet(Base.i18n.string("msg.compiling.progsize", (textSize + dataSize + rodataSize))); 
             }
 
-            LibCompileThread t = new LibCompileThread(importedLibraries.get(lib));
-            t.start();
-            threads.add(t);
-            currentThreads++;
-
-            try {
-                Thread.sleep(10);
-            } catch (Exception e) {
-                Base.exception(e);
+            if (max_ram > 0) {
+                int ramperc = (bssSize + dataSize) * 100 / max_ram;
+                bullet(Base.i18n.string("msg.compiling.ramsize.perc", (bssSize + dataSize), ramperc)); 
+            } else {
+                bullet(Base.i18n.string("msg.compiling.ramsize", (bssSize + dataSize))); 
             }
         }
+    }
 
-        for (LibCompileThread t : threads) {
-            try {
-                t.join();
-                if (t.compiled == false) ok = false;
-            } catch (Exception e) {
-                Base.exception(e);
-                error(e);
-            }
+    public boolean compileLibraries() {
+        BuildScheduler scheduler = new BuildScheduler(ctx);
+        try {
+            compileLibraries(scheduler);
+            return scheduler.run();
+        } finally {
+            scheduler.shutdown();
         }
+    }
 
-        return ok;
+    // Queue up all the imported libraries to be compiled.
+    void compileLibraries(BuildScheduler scheduler) {
+        for(String lib : importedLibraries.keySet()) {
+            compileLibrary(scheduler, importedLibraries.get(lib));
+        }
     }
 
     private File compileFile(Context localCtx, File src) {
@@ -2798,6 +2960,10 @@ public class Sketch {
     }
 
     private File compileFile(Context localCtx, File src, File fileBuildFolder) {
+        return compileFile(localCtx, src, fileBuildFolder, null);
+    }
+
+    private File compileFile(Context localCtx, File src, File fileBuildFolder, DependencyIndex deps) {
 
     
         String fileName = src.getName();
@@ -2832,19 +2998,20 @@ public class Sketch {
             bullet3(fileName);
         }
 
-        String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
-        String objExt = localCtx.parseString(props.get("compiler.object","o"));
+        File dest = getObjectFile(localCtx, src, fileBuildFolder);
+        fileBuildFolder = dest.getParentFile();
 
-        String bfPath = fileBuildFolder.getAbsolutePath();
-        String srcPath = src.getParentFile().getAbsolutePath();
+        String signature = null;
 
-        if (srcPath.startsWith(bfPath + "/")) {
-            fileBuildFolder = src.getParentFile();
-        }
-
-        File dest = new File(fileBuildFolder, fileName + "." +objExt);
-
-        if(dest.exists()) {
+        if (deps != null) {
+            localCtx.set("build.path", fileBuildFolder.getAbsolutePath());
+            localCtx.set("source.name", src.getAbsolutePath());
+            localCtx.set("object.name", dest.getAbsolutePath());
+            signature = getRecipeSignature(localCtx, recipe);
+            if (deps.isUpToDate(dest, signature)) {
+                return dest;
+            }
+        } else if(dest.exists()) {
             if(dest.lastModified() > src.lastModified()) {
                 return dest;
             }
@@ -2854,6 +3021,8 @@ public class Sketch {
         localCtx.set("source.name", src.getAbsolutePath());
         localCtx.set("object.name", dest.getAbsolutePath());
 
+        long started = System.currentTimeMillis();
+
 //        localCtx.addDataStreamParser(new DataStreamParser() {
 //            public String parseStreamMessage(Context ctx, String m) {
 //                if (parseLineForWarningMessage(ctx, m)) {
@@ -2875,14 +3044,24 @@ public class Sketch {
         String output = "";
         if(!(Boolean)localCtx.executeKey(recipe)) {
 //            localCtx.removeDataStreamParser();
+            if (deps != null) {
+                deps.remove(dest);
+            }
             return null;
         }
 //        localCtx.removeDataStreamParser();
 
         if(!dest.exists()) {
+            if (deps != null) {
+                deps.remove(dest);
+            }
             return null;
         }
 
+        if (deps != null) {
+            deps.record(dest, src, signature, DependencyIndex.parseIncludePaths(localCtx.parseString(localCtx.get("includes"))), started);
+        }
+
         if(editor != null) {
             editor.updateOutputTree();
         }
@@ -2890,6 +3069,68 @@ public class Sketch {
         return dest;
     }
 
+    // Work out the name of the object file that compileFile() will create
+    // for a source file.  Sources that are already in the build folder get
+    // their objects put next to them.
+    File getObjectFile(Context localCtx, File src, File fileBuildFolder) {
+        PropertyFile props = localCtx.getMerged();
+        String objExt = localCtx.parseString(props.get("compiler.object","o"));
+
+        String bfPath = fileBuildFolder.getAbsolutePath();
+        String srcPath = src.getParentFile().getAbsolutePath();
+
+        if (srcPath.startsWith(bfPath + "/")) {
+            fileBuildFolder = src.getParentFile();
+        }
+
+        return new File(fileBuildFolder, src.getName() + "." + objExt);
+    }
+
+    // Queue a source file to be compiled with compileFile().  The task gets
+    // its own copy of the context to work in.
+    BuildScheduler.Task scheduleFile(BuildScheduler scheduler, Context localCtx, final File src, final File fileBuildFolder, final DependencyIndex deps) {
+        final Context taskCtx = localCtx.fork();
+        return scheduler.add(src.getName(), new BuildScheduler.Job() {
+            public boolean run() {
+                return compileFile(taskCtx, src, fileBuildFolder, deps) != null;
+            }
+        });
+    }
+
+    // Expand a compile recipe, including all the lines of a script recipe,
+    // into the commands that would be run for the current source and object.
+    // Used to spot when the flags a file was built with have changed.
+    String getRecipeSignature(Context localCtx, String recipe) {
+        PropertyFile props = localCtx.getMerged();
+        String key = props.getPlatformSpecificKey(recipe);
+        StringBuilder sb = new StringBuilder();
+
+        String cmd = props.get(key);
+        if (cmd != null) {
+            sb.append(localCtx.parseString(cmd));
+        }
+
+        PropertyFile script = props.getChildren(key);
+        for (String k : script.keySet()) {
+            sb.append("\n");
+            sb.append(k);
+            sb.append("=");
+            sb.append(localCtx.parseString(script.get(k)));
+        }
+
+        return sb.toString();
+    }
+
+    // Dependency tracking is used for the objects that live in the build
+    // folder between compiles - the sketch itself, board files and the
+    // sketch's utility and src folders.
+    DependencyIndex openDependencyIndex() {
+        if (!Preferences.getBoolean("compiler.dependency_tracking")) {
+            return null;
+        }
+        return new DependencyIndex(buildFolder);
+    }
+
     public File getCacheFolder() {
         File cacheRoot = Base.getCacheFolder();
         Core c = getCore();
@@ -2916,6 +3157,19 @@ public class Sketch {
     }
 
     public boolean compileCore() throws IOException {
+        BuildScheduler scheduler = new BuildScheduler(ctx);
+        try {
+            if (!compileCore(scheduler)) {
+                return false;
+            }
+            return scheduler.run();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    // Queue up the core stub files and core libraries to be compiled.
+    boolean compileCore(BuildScheduler scheduler) throws IOException {
         TreeMap<String, ArrayList<File>> coreLibs = getCoreLibs();
         PropertyFile props = ctx.getMerged();
 
@@ -2923,14 +3177,23 @@ public class Sketch {
             String mainStub = ctx.parseString(props.get("compile.stub"));
             String[] bits = mainStub.split("::");
             for (String stubFile : bits) {
-                File mainStubFile = new File(stubFile);
+                final File mainStubFile = new File(stubFile);
                 if (mainStubFile.exists()) {
-                    File mainStubObject = compileFile(ctx, mainStubFile);
-                    File cachedStubObject = getCacheFile(mainStubObject.getName());
-                    if (mainStubObject.exists()) {
-                        Files.copy(mainStubObject.toPath(), cachedStubObject.toPath(), REPLACE_EXISTING);
-                        Base.tryDelete(mainStubObject);
-                    }
+                    final Context stubCtx = ctx.fork();
+                    scheduler.add(mainStubFile.getName(), new BuildScheduler.Job() {
+                        public boolean run() throws IOException {
+                            File mainStubObject = compileFile(stubCtx, mainStubFile);
+                            if (mainStubObject == null) {
+                                return false;
+                            }
+                            File cachedStubObject = getCacheFile(mainStubObject.getName());
+                            if (mainStubObject.exists()) {
+                                Files.copy(mainStubObject.toPath(), cachedStubObject.toPath(), REPLACE_EXISTING);
+                                Base.tryDelete(mainStubObject);
+                            }
+                            return true;
+                        }
+                    });
                 }
             }
         }
@@ -2938,7 +3201,7 @@ public class Sketch {
         for(String lib : coreLibs.keySet()) {
             if (!Base.isQuiet()) bullet2(lib);
 
-            if(!compileCore(coreLibs.get(lib), "Core_" + lib)) {
+            if(!compileCore(scheduler, coreLibs.get(lib), "Core_" + lib)) {
                 return false;
             }
         }
@@ -2946,14 +3209,29 @@ public class Sketch {
         return true;
     }
 
-    @SuppressWarnings("unchecked")
     public boolean compileCore(ArrayList<File> core, String name) {
-        PropertyFile props = ctx.getMerged();
-        String prefix = ctx.parseString(props.get("compiler.library.prefix","lib"));
-        String suffix = ctx.parseString(props.get("compiler.library", "a"));
-        File archive = getCacheFile(prefix + name + "." + suffix);
+        BuildScheduler scheduler = new BuildScheduler(ctx);
+        try {
+            if (!compileCore(scheduler, core, name)) {
+                return false;
+            }
+            return scheduler.run();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
 
-        ctx.set("library", archive.getAbsolutePath());
+    // Queue the out of date files of a core library to be compiled, followed
+    // by a task to add the new objects to the library's archive.
+    @SuppressWarnings("unchecked")
+    boolean compileCore(BuildScheduler scheduler, ArrayList<File> core, String name) {
+        final Context localCtx = ctx.fork();
+        PropertyFile props = localCtx.getMerged();
+        String prefix = localCtx.parseString(props.get("compiler.library.prefix","lib"));
+        String suffix = localCtx.parseString(props.get("compiler.library", "a"));
+        final File archive = getCacheFile(prefix + name + "." + suffix);
+
+        localCtx.set("library", archive.getAbsolutePath());
 
         long archiveDate = 0;
 
@@ -2961,7 +3239,7 @@ public class Sketch {
             archiveDate = archive.lastModified();
         }
 
-        File coreBuildFolder = new File(buildFolder, "libCore_" + name);
+        final File coreBuildFolder = new File(buildFolder, "libCore_" + name);
         coreBuildFolder.mkdirs();
 
         TreeSet<File> fileList = new TreeSet<File>(new CaseInsensitiveFileComparator());
@@ -2976,34 +3254,123 @@ public class Sketch {
             }
         }
 
+        final ArrayList<File> objects = new ArrayList<File>();
+        ArrayList<BuildScheduler.Task> compiles = new ArrayList<BuildScheduler.Task>();
+
         for(File f : fileList) {
             if(f.lastModified() > archiveDate) {
-                File out = compileFile(ctx, f, coreBuildFolder);
+                objects.add(getObjectFile(localCtx, f, coreBuildFolder));
+                compiles.add(scheduleFile(scheduler, localCtx, f, coreBuildFolder, null));
+            }
+        }
+
+        if (objects.size() == 0) {
+            Base.tryDelete(coreBuildFolder);
+            return true;
+        }
 
-                if(out == null) {
+        scheduler.add(archive.getName(), new BuildScheduler.Job() {
+            public boolean run() {
+                if (!archiveObjects(localCtx, objects)) {
                     Base.tryDelete(coreBuildFolder);
                     if (archive.exists()) Base.tryDelete(archive);
                     return false;
                 }
 
-                ctx.set("object.name", out.getAbsolutePath());
-                boolean ok = (Boolean)ctx.executeKey("compile.ar");
+                Base.tryDelete(coreBuildFolder);
+                return true;
+            }
+        }, compiles);
 
-                if(!ok) {
-                    Base.tryDelete(out);
-                    Base.tryDelete(coreBuildFolder);
-                    if (archive.exists()) Base.tryDelete(archive);
+        return true;
+    }
+
+    // Most archivers will take a whole list of objects in one go, which is
+    // far quicker than running them once per object.  No more than this many
+    // objects (or characters of object names) are passed in one go to keep
+    // within the command line limits of the host.
+    static final int ARCHIVE_BATCH_OBJECTS = 64;
+    static final int ARCHIVE_BATCH_CHARS = 8000;
+
+    // Add a list of objects to the archive named in the *library* variable,
+    // deleting each object once it has been archived.
+    //
+    // If the core defines *compile.ar.batch* that is run with *object.name*
+    // set to a batch of objects.  Otherwise *compile.ar* is used in the same
+    // way, as long as it is a plain command with ${object.name} as its last
+    // argument.  Anything else (scripts, javascript, etc) gets run once for
+    // each object as before.
+    boolean archiveObjects(Context localCtx, ArrayList<File> objects) {
+        PropertyFile props = localCtx.getMerged();
+        String key = props.getPlatformSpecificKey("compile.ar.batch");
+
+        if (props.get(key) == null) {
+            key = props.getPlatformSpecificKey("compile.ar");
+            if (!isBatchableRecipe(props, key)) {
+                key = null;
+            }
+        }
+
+        if (key == null) {
+            for (File out : objects) {
+                localCtx.set("object.name", out.getAbsolutePath());
+                boolean ok = (Boolean)localCtx.executeKey("compile.ar");
+                Base.tryDelete(out);
+                if (!ok) {
+                    deleteObjects(objects);
                     return false;
                 }
+            }
+            return true;
+        }
 
-                Base.tryDelete(out);
+        ArrayList<File> batch = new ArrayList<File>();
+        StringBuilder names = new StringBuilder();
+
+        for (int i = 0; i < objects.size(); i++) {
+            File out = objects.get(i);
+            if (names.length() > 0) {
+                names.append("::");
+            }
+            names.append(out.getAbsolutePath());
+            batch.add(out);
+
+            if ((i == objects.size() - 1) || (batch.size() >= ARCHIVE_BATCH_OBJECTS) || (names.length() >= ARCHIVE_BATCH_CHARS)) {
+                localCtx.set("object.name", names.toString());
+                boolean ok = (Boolean)localCtx.executeKey(key);
+                deleteObjects(batch);
+                if (!ok) {
+                    deleteObjects(objects);
+                    return false;
+                }
+                batch.clear();
+                names.setLength(0);
             }
         }
 
-        Base.tryDelete(coreBuildFolder);
         return true;
     }
 
+    // A recipe can be given a list of objects in ${object.name} if it is an
+    // ordinary command where ${object.name} is the final argument on its own.
+    static boolean isBatchableRecipe(PropertyFile props, String key) {
+        String recipe = props.get(key);
+        if (recipe == null) return false;
+        if (props.get(key + ".0") != null) return false;
+
+        String[] args = recipe.split("::");
+        if (args[0].matches("^(res|file|compiler|core|board|programmer|sketch|merged):.*")) return false;
+        if (args[0].trim().startsWith("__builtin_")) return false;
+        if (!args[args.length - 1].trim().equals("${object.name}")) return false;
+        return recipe.indexOf("${object.name}") == recipe.lastIndexOf("${object.name}");
+    }
+
+    static void deleteObjects(ArrayList<File> objects) {
+        for (File out : objects) {
+            Base.tryDelete(out);
+        }
+    }
+
     public void putToContext(String k, String v) {
         ctx.set(k, v);
     }
@@ -3020,10 +3387,21 @@ public class Sketch {
     }
 
     public boolean compileLibrary(Library lib) {
-        Context localCtx = new Context(ctx);
-        File archive = getCacheFile(getArchiveName(lib));  //getCacheFile("lib" + lib.getName() + ".a");
+        BuildScheduler scheduler = new BuildScheduler(ctx);
+        try {
+            compileLibrary(scheduler, lib);
+            return scheduler.run();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    // Queue the out of date files of a library to be compiled, followed by a
+    // task to add the new objects to the library's archive.
+    void compileLibrary(BuildScheduler scheduler, final Library lib) {
+        final Context localCtx = ctx.fork();
+        final File archive = getCacheFile(getArchiveName(lib));  //getCacheFile("lib" + lib.getName() + ".a");
         File utility = lib.getUtilityFolder();
-        PropertyFile props = localCtx.getMerged();
         if (!Base.isQuiet()) bullet2(lib.toString() + " [" + lib.getFolder().getAbsolutePath() + "]");
 
         localCtx.set("library", archive.getAbsolutePath());
@@ -3034,7 +3412,7 @@ public class Sketch {
             archiveDate = archive.lastModified();
         }
 
-        File libBuildFolder = new File(buildFolder, "lib" + lib.getLinkName());
+        final File libBuildFolder = new File(buildFolder, "lib" + lib.getLinkName());
         libBuildFolder.mkdirs();
         if (!libBuildFolder.exists()) {
             error("Failed to make build folder " + libBuildFolder);
@@ -3045,30 +3423,46 @@ public class Sketch {
         String origIncs = localCtx.get("includes");
         localCtx.set("includes", origIncs + "::" + "-I" + utility.getAbsolutePath());
 
-        int fileCount = fileList.size();
+        final int fileCount = fileList.size();
+        final int[] count = new int[1];
 
-        int count = 0;
+        final ArrayList<File> objects = new ArrayList<File>();
+        ArrayList<BuildScheduler.Task> compiles = new ArrayList<BuildScheduler.Task>();
 
-        for(File f : fileList) {
+        for(final File f : fileList) {
             if(f.lastModified() > archiveDate) {
-                File out = compileFile(localCtx, f, libBuildFolder);
+                objects.add(getObjectFile(localCtx, f, libBuildFolder));
+                final Context taskCtx = localCtx.fork();
+                compiles.add(scheduler.add(f.getName(), new BuildScheduler.Job() {
+                    public boolean run() {
+                        File out = compileFile(taskCtx, f, libBuildFolder);
 
-                if(out == null) {
-                    purgeLibrary(lib);
-                    lib.setCompiledPercent(0);
+                        if(out == null) {
+                            lib.setCompiledPercent(0);
 
-                    if(editor != null) {
-                        editor.updateLibrariesTree();
-                    }
+                            if(editor != null) {
+                                editor.updateLibrariesTree();
+                            }
+                            return false;
+                        }
 
-                    Base.tryDelete(libBuildFolder);
-                    return false;
-                }
+                        synchronized (count) {
+                            count[0]++;
+                            lib.setCompiledPercent(count[0] * 100 / fileCount);
+                        }
 
-                localCtx.set("object.name", out.getAbsolutePath());
-                boolean ok = (Boolean)localCtx.executeKey("compile.ar");
+                        if(editor != null) {
+                            editor.updateLibrariesTree();
+                        }
+                        return true;
+                    }
+                }));
+            }
+        }
 
-                if(!ok) {
+        scheduler.add(archive.getName(), new BuildScheduler.Job() {
+            public boolean run() {
+                if (!archiveObjects(localCtx, objects)) {
                     purgeLibrary(lib);
                     lib.setCompiledPercent(0);
 
@@ -3076,36 +3470,25 @@ public class Sketch {
                         editor.updateLibrariesTree();
                     }
 
-                    Base.tryDelete(out);
                     Base.tryDelete(libBuildFolder);
                     return false;
                 }
 
-                count++;
-                lib.setCompiledPercent(count * 100 / fileCount);
-
                 if(editor != null) {
-                    editor.updateLibrariesTree();
+                    editor.updateOutputTree();
                 }
 
-                Base.tryDelete(out);
-            }
-        }
-
-        if(editor != null) {
-            editor.updateOutputTree();
-        }
-
-        localCtx.set("includes", origIncs);
-        lib.setCompiledPercent(100);
+                lib.setCompiledPercent(100);
 
-        if(editor != null) {
-            editor.updateLibrariesTree();
-        }
+                if(editor != null) {
+                    editor.updateLibrariesTree();
+                }
 
-        Base.tryDelete(libBuildFolder);
+                Base.tryDelete(libBuildFolder);
 
-        return true;
+                return true;
+            }
+        }, compiles);
     }
 
     private ArrayList<File> convertFiles(File dest, ArrayList<File> sources) throws IOException {
@@ -3149,34 +3532,37 @@ public class Sketch {
         return objectPaths;
     }
 
-    private ArrayList<File> compileFileList(Context localCtx, File dest, ArrayList<File> sources, String key, File srcroot) {
+    // Turns the compiler's output into warning and error messages.
+    DataStreamParser compileMessageParser = new DataStreamParser() {
+        public String parseStreamMessage(Context localCtx, String m) {
+            if (parseLineForWarningMessage(localCtx, m)) {
+                return "";
+            }
+            return m;
+        }
+        public String parseStreamError(Context localCtx, String m) {
+            if (parseLineForErrorMessage(localCtx, m)) {
+                return "";
+            }
+            if (parseLineForWarningMessage(localCtx, m)) {
+                return "";
+            }
+            return m;
+        }
+    };
+
+    // Queue a list of files to be compiled with the given recipe key, keeping
+    // the folder structure under *srcroot*.  Returns the list of object files
+    // that will be created.
+    private ArrayList<File> compileFileList(BuildScheduler scheduler, Context localCtx, File dest, ArrayList<File> sources, final String key, File srcroot, final DependencyIndex deps) {
         ArrayList<File> objectPaths = new ArrayList<File>();
         PropertyFile props = localCtx.getMerged();
 
-        localCtx.set("build.path", dest.getAbsolutePath());
         String objExt = localCtx.parseString(props.get("compiler.object","o"));
 
-        localCtx.addDataStreamParser(new DataStreamParser() {
-            public String parseStreamMessage(Context localCtx, String m) {
-                if (parseLineForWarningMessage(localCtx, m)) {
-                    return "";
-                }
-                return m;
-            }
-            public String parseStreamError(Context localCtx, String m) {
-                if (parseLineForErrorMessage(localCtx, m)) {
-                    return "";
-                }
-                if (parseLineForWarningMessage(localCtx, m)) {
-                    return "";
-                }
-                return m;
-            }
-        });
-
-        for(File file : sources) {
+        for(final File file : sources) {
             String fileName = file.getName();
-            String relative = srcroot.toURI().relativize(file.toURI()).getPath();
+            final String relative = srcroot.toURI().relativize(file.toURI()).getPath();
 
             File out = new File(dest, relative);
             File par = out.getParentFile();
@@ -3184,33 +3570,54 @@ public class Sketch {
                 par.mkdirs();
             }
 
-            if (Preferences.getBoolean("compiler.verbose_files")) {
-                bullet3(relative);
-            }
-
-            String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
-            File objectFile = new File(par, fileName + "." + objExt);
+            final File objectFile = new File(par, fileName + "." + objExt);
             objectPaths.add(objectFile);
 
-            localCtx.set("source.name", file.getAbsolutePath());
-            localCtx.set("object.name", objectFile.getAbsolutePath());
+            final Context taskCtx = localCtx.fork();
+            taskCtx.set("build.path", dest.getAbsolutePath());
+            taskCtx.set("source.name", file.getAbsolutePath());
+            taskCtx.set("object.name", objectFile.getAbsolutePath());
+            taskCtx.addDataStreamParser(compileMessageParser);
 
-            if(objectFile.exists() && objectFile.lastModified() > file.lastModified()) {
-                continue;
-            }
+            scheduler.add(relative, new BuildScheduler.Job() {
+                public boolean run() {
+                    return compileListFile(taskCtx, file, objectFile, key, relative, deps);
+                }
+            });
+        }
+        return objectPaths;
+    }
 
-            if(!(Boolean)localCtx.executeKey(key)) {
-                localCtx.removeDataStreamParser();
-                return null;
+    private boolean compileListFile(Context localCtx, File file, File objectFile, String key, String relative, DependencyIndex deps) {
+        if (Preferences.getBoolean("compiler.verbose_files")) {
+            bullet3(relative);
+        }
+
+        String signature = null;
+
+        if (deps != null) {
+            signature = getRecipeSignature(localCtx, key);
+            if (deps.isUpToDate(objectFile, signature)) {
+                return true;
             }
+        } else if(objectFile.exists() && objectFile.lastModified() > file.lastModified()) {
+            return true;
+        }
 
-            if(!objectFile.exists()) {
-                localCtx.removeDataStreamParser();
-                return null;
+        long started = System.currentTimeMillis();
+
+        if(!(Boolean)localCtx.executeKey(key) || !objectFile.exists()) {
+            if (deps != null) {
+                deps.remove(objectFile);
             }
+            return false;
         }
-        localCtx.removeDataStreamParser();
-        return objectPaths;
+
+        if (deps != null) {
+            deps.record(objectFile, file, signature, DependencyIndex.parseIncludePaths(localCtx.parseString(localCtx.get("includes"))), started);
+        }
+
+        return true;
     }
 
     public File dumpFileData(File dest, String name) {
@@ -3228,22 +3635,13 @@ public class Sketch {
         return null;
     }
 
-    private ArrayList<File> compileFiles(Context localCtx, File dest, ArrayList<File> sSources, ArrayList<File> cSources, ArrayList<File> cppSources, File srcroot) {
+    private ArrayList<File> compileFiles(BuildScheduler scheduler, Context localCtx, File dest, ArrayList<File> sSources, ArrayList<File> cSources, ArrayList<File> cppSources, File srcroot, DependencyIndex deps) {
 
         ArrayList<File> objectPaths = new ArrayList<File>();
-        PropertyFile props = localCtx.getMerged();
-
-        localCtx.set("build.path", dest.getAbsolutePath());
-        String objExt = localCtx.parseString(props.get("compiler.object","o"));
 
-        ArrayList<File> sObjects = compileFileList(localCtx, dest, sSources, "compile.S", srcroot);
-        if (sObjects == null) { return null; }
-
-        ArrayList<File> cObjects = compileFileList(localCtx, dest, cSources, "compile.c", srcroot);
-        if (cObjects == null) { return null; }
-
-        ArrayList<File> cppObjects = compileFileList(localCtx, dest, cppSources, "compile.cpp", srcroot);
-        if (cppObjects == null) { return null; }
+        ArrayList<File> sObjects = compileFileList(scheduler, localCtx, dest, sSources, "compile.S", srcroot, deps);
+        ArrayList<File> cObjects = compileFileList(scheduler, localCtx, dest, cSources, "compile.c", srcroot, deps);
+        ArrayList<File> cppObjects = compileFileList(scheduler, localCtx, dest, cppSources, "compile.cpp", srcroot, deps);
 
         objectPaths.addAll(sObjects);
         objectPaths.addAll(cObjects);
@@ -3252,7 +3650,9 @@ public class Sketch {
         return objectPaths;
     }
 
-    private ArrayList<File> compileSketch() throws IOException {
+    // Queue all the sketch's own files to be compiled.  Returns the list of
+    // object files that will be created for linking.
+    private ArrayList<File> compileSketch(BuildScheduler scheduler, DependencyIndex deps) throws IOException {
         ArrayList<File> sf = new ArrayList<File>();
 
         PropertyFile props = ctx.getMerged();
@@ -3274,11 +3674,13 @@ public class Sketch {
         }
 
         for (File f : filesToCompile) {
-            File obj = compileFile(ctx, f, buildFolder);
-            if (obj == null) {
+            int type = FileType.getType(f);
+            if ((type != FileType.CPPSOURCE) && (type != FileType.CSOURCE) && (type != FileType.ASMSOURCE)) {
+                error(Base.i18n.string("err.badfile", f.getName()));
                 return null;
             }
-            sf.add(obj);
+            sf.add(getObjectFile(ctx, f, buildFolder));
+            scheduleFile(scheduler, ctx, f, buildFolder, deps);
         }
         
         String boardFiles = ctx.parseString(props.get("build.files"));
@@ -3313,7 +3715,7 @@ public class Sketch {
                     }
                 }
 
-                sf.addAll(compileFiles(ctx, buildFolder, sFiles, cFiles, cppFiles, getBoard().getFolder()));
+                sf.addAll(compileFiles(scheduler, ctx, buildFolder, sFiles, cFiles, cppFiles, getBoard().getFolder(), deps));
             }
         }
 
@@ -3322,12 +3724,13 @@ public class Sketch {
         if(suf.exists()) {
             File buf = new File(buildFolder, "utility");
             buf.mkdirs();
-            ArrayList<File> uf = compileFiles(ctx,
+            ArrayList<File> uf = compileFiles(scheduler, ctx,
                                 buf,
                                 findFilesInFolder(suf, "S", true),
                                 findFilesInFolder(suf, "c", true),
                                 findFilesInFolder(suf, "cpp", true),
-                                suf
+                                suf,
+                                deps
                             );
             sf.addAll(uf);
         }
@@ -3337,12 +3740,13 @@ public class Sketch {
         if(suf.exists()) {
             File buf = new File(buildFolder, "src");
             buf.mkdirs();
-            ArrayList<File> uf = compileFiles(ctx,
+            ArrayList<File> uf = compileFiles(scheduler, ctx,
                                 buf,
                                 findFilesInFolder(suf, "S", true),
                                 findFilesInFolder(suf, "c", true),
                                 findFilesInFolder(suf, "cpp", true),
-                                suf
+                                suf,
+                                deps
                             );
             sf.addAll(uf);
         }
@@ -3566,21 +3970,7 @@ public class Sketch {
      **************************************************************************/
 
     public boolean isWarningMessage(String s) {
-        PropertyFile props = ctx.getMerged();
-        String wRec = props.get("compiler.warning");
-        int wFilename = props.getInteger("compiler.warning.filename", 1);
-        int wLine = props.getInteger("compiler.warning.line", 2);
-        int wMessage = props.getInteger("compiler.warning.message", 3);
-
-        if(wRec != null) {
-            Pattern wPat = Pattern.compile(wRec);
-            Matcher wMat = wPat.matcher(s);
-
-            if(wMat.find()) {
-                return true;
-            }
-        }
-        return false;
+        return getDiagnostics().matchWarning(s) != null;
     }
 
     public void flagError(String s) {
@@ -3588,74 +3978,48 @@ public class Sketch {
             return;
         }
 
-        PropertyFile props = ctx.getMerged();
-
-        String eRec = props.get("compiler.error");
-        int eFilename = props.getInteger("compiler.error.filename", 1);
-        int eLine = props.getInteger("compiler.error.line", 2);
-        int eMessage = props.getInteger("compiler.error.message", 3);
-
-        String wRec = props.get("compiler.warning");
-        int wFilename = props.getInteger("compiler.warning.filename", 1);
-        int wLine = props.getInteger("compiler.warning.line", 2);
-        int wMessage = props.getInteger("compiler.warning.message", 3);
-
-        if(eRec != null) {
-            Pattern ePat = Pattern.compile(eRec);
-            Matcher eMat = ePat.matcher(s);
-
-            if(eMat.find()) {
-                try {
-                    int errorLineNumber = Integer.parseInt(eMat.group(eLine));
-
-                    File errorFile = new File(eMat.group(eFilename));
+        Diagnostics diags = getDiagnostics();
 
-                    if(errorFile != null) {
-                        int tabNumber = editor.getTabByFile(errorFile);
+        Diagnostics.Diagnostic error = diags.matchError(s);
+        if (error != null) {
+            try {
+                File errorFile = error.getFile();
+                int errorLineNumber = error.getLine();
+                int tabNumber = editor.getTabByFile(errorFile);
 
-                        if(tabNumber > -1) {
-                            EditorBase eb = editor.getTab(tabNumber);
-                            eb.highlightLine(errorLineNumber, Preferences.getColor("theme.editor.colors.error"));
-                            eb.flagLine(errorLineNumber, IconManager.getIcon(16, "tree.fixme"), 0x1000);
-                        }
+                if(tabNumber > -1) {
+                    EditorBase eb = editor.getTab(tabNumber);
+                    eb.highlightLine(errorLineNumber, Preferences.getColor("theme.editor.colors.error"));
+                    eb.flagLine(errorLineNumber, IconManager.getIcon(16, "tree.fixme"), 0x1000);
+                }
 
-                        link("uecide://error/" + errorLineNumber + "/" + errorFile.getAbsolutePath() + "|Error at line " + errorLineNumber + " in file " + errorFile.getName());
+                link("uecide://error/" + errorLineNumber + "/" + errorFile.getAbsolutePath() + "|Error at line " + errorLineNumber + " in file " + errorFile.getName());
 
-                        setLineComment(errorFile, errorLineNumber, eMat.group(eMessage));
-                    }
-                } catch(Exception e) {
-                    Base.exception(e);
-                    Base.error(e);
-                }
+                setLineComment(errorFile, errorLineNumber, error.getMessage());
+            } catch(Exception e) {
+                Base.exception(e);
+                Base.error(e);
             }
         }
 
-        if(wRec != null) {
-            Pattern wPat = Pattern.compile(wRec);
-            Matcher wMat = wPat.matcher(s);
-
-            if(wMat.find()) {
-                try {
-                    int warningLineNumber = Integer.parseInt(wMat.group(wLine));
-
-                    File warningFile = new File(wMat.group(wFilename));
-
-                    if(warningFile != null) {
-                        int tabNumber = editor.getTabByFile(warningFile);
-
-                        if(tabNumber > -1) {
-                            EditorBase eb = editor.getTab(tabNumber);
-                            eb.highlightLine(warningLineNumber, Preferences.getColor("theme.editor.colors.warning"));
-                            eb.flagLine(warningLineNumber, IconManager.getIcon(16, "tree.todo"), 0x1001);
-                            link("uecide://error/" + warningLineNumber + "/" + warningFile.getAbsolutePath() + "|Warning at line " + warningLineNumber + " in file " + warningFile.getName());
-                        }
+        Diagnostics.Diagnostic warning = diags.matchWarning(s);
+        if (warning != null) {
+            try {
+                File warningFile = warning.getFile();
+                int warningLineNumber = warning.getLine();
+                int tabNumber = editor.getTabByFile(warningFile);
 
-                        setLineComment(warningFile, warningLineNumber, wMat.group(wMessage));
-                    }
-                } catch(Exception e) {
-                    Base.exception(e);
-                    Base.error(e);
+                if(tabNumber > -1) {
+                    EditorBase eb = editor.getTab(tabNumber);
+                    eb.highlightLine(warningLineNumber, Preferences.getColor("theme.editor.colors.warning"));
+                    eb.flagLine(warningLineNumber, IconManager.getIcon(16, "tree.todo"), 0x1001);
+                    link("uecide://error/" + warningLineNumber + "/" + warningFile.getAbsolutePath() + "|Warning at line " + warningLineNumber + " in file " + warningFile.getName());
                 }
+
+                setLineComment(warningFile, warningLineNumber, warning.getMessage());
+            } catch(Exception e) {
+                Base.exception(e);
+                Base.error(e);
             }
         }
     }
@@ -4606,89 +4970,81 @@ public class Sketch {
         return ctx.parseString(s);
     }
 
+    /*! Get the diagnostics collected during the last build.  If there hasn't
+     *  been a build yet a new, empty, set is created from the current context.
+     */
+    public Diagnostics getDiagnostics() {
+        synchronized (diagnosticsLock) {
+            if (diagnostics == null) {
+                diagnostics = new Diagnostics(ctx);
+            }
+            return diagnostics;
+        }
+    }
+
     public boolean parseLineForErrorMessage(Context ctx, String mess) {
-        PropertyFile props = ctx.getMerged();
-        Pattern p = Pattern.compile(props.get("compiler.error"));
-        Matcher m = p.matcher(mess);
-        if (m.find()) {
-            File errorFile = new File(m.group(1));
-            int errorLineNumber = Integer.parseInt(m.group(2));
-            if (editor != null) {
-                try {
-                    int tabNumber = editor.getTabByFile(errorFile);
+        Diagnostics.Diagnostic d = getDiagnostics().matchError(mess);
+        if (d == null) {
+            return false;
+        }
+        reportDiagnostic(ctx, d);
+        return true;
+    }
 
-                    if(tabNumber > -1) {
-                        EditorBase eb = editor.getTab(tabNumber);
-                        eb.highlightLine(errorLineNumber, Preferences.getColor("theme.editor.colors.error"));
-                        eb.flagLine(errorLineNumber, IconManager.getIcon(16, "tree.fixme"), 0x1000);
-                    }
+    public boolean parseLineForWarningMessage(Context ctx, String mess) {
+        Diagnostics.Diagnostic d = getDiagnostics().matchWarning(mess);
+        if (d == null) {
+            return false;
+        }
+        reportDiagnostic(ctx, d);
+        return true;
+    }
 
-                    String linkUrl = "uecide://error/" + errorLineNumber + "/" + errorFile.getAbsolutePath();
+    // Record a diagnostic for the build, flag it in the editor and tell the user about it.
+    void reportDiagnostic(Context ctx, Diagnostics.Diagnostic d) {
+        getDiagnostics().add(d);
 
-                    if (containsFile(errorFile)) {
-                        String errmess = String.format(
-                            "{\\bullet}{\\error Error at }{\\link %s|line %d in file %s}{\\error :}\n",
-                                linkUrl, errorLineNumber, errorFile.getName());
+        File errorFile = d.getFile();
+        int errorLineNumber = d.getLine();
+        String type = d.isError() ? "error" : "warning";
+        String title = d.isError() ? "Error" : "Warning";
 
-                        ctx.parsedMessage(errmess);
+        if (editor != null) {
+            try {
+                int tabNumber = editor.getTabByFile(errorFile);
 
+                if(tabNumber > -1) {
+                    EditorBase eb = editor.getTab(tabNumber);
+                    if (d.isError()) {
+                        eb.highlightLine(errorLineNumber, Preferences.getColor("theme.editor.colors.error"));
+                        eb.flagLine(errorLineNumber, IconManager.getIcon(16, "tree.fixme"), 0x1000);
                     } else {
-                        ctx.parsedMessage("{\\bullet}{\\error Error at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
-                    }
-
-                } catch (Exception execpt) {
-                    Base.exception(execpt);
-                }
-            } else {
-                ctx.parsedMessage("{\\bullet}{\\error Error at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
-            }
-            ctx.parsedMessage("{\\bullet2}{\\error " + m.group(3) + "}\n");
-            setLineComment(errorFile, errorLineNumber, m.group(3));
-            return true;
-        }
-        return false;
-    }
-
-    public boolean parseLineForWarningMessage(Context ctx, String mess) {
-        PropertyFile props = ctx.getMerged();
-        Pattern p = Pattern.compile(props.get("compiler.warning"));
-        Matcher m = p.matcher(mess);
-        if (m.find()) {
-            File errorFile = new File(m.group(1));
-            int errorLineNumber = Integer.parseInt(m.group(2));
-            if (editor != null) {
-                try {
-                    int tabNumber = editor.getTabByFile(errorFile);
-
-                    if(tabNumber > -1) {
-                        EditorBase eb = editor.getTab(tabNumber);
                         eb.highlightLine(errorLineNumber, Preferences.getColor("theme.editor.colors.warning"));
                         eb.flagLine(errorLineNumber, IconManager.getIcon(16, "tree.todo"), 0x1001);
                     }
-                    String linkUrl = "uecide://error/" + errorLineNumber + "/" + errorFile.getAbsolutePath();
+                }
 
-                    if (containsFile(errorFile)) {
-                        String errmess = String.format(
-                            "{\\bullet}{\\warning Warning at }{\\link %s|line %d in file %s}{\\warning :}\n",
-                                linkUrl, errorLineNumber, errorFile.getName());
+                String linkUrl = "uecide://error/" + errorLineNumber + "/" + errorFile.getAbsolutePath();
 
-                        ctx.parsedMessage(errmess);
+                if (containsFile(errorFile)) {
+                    String errmess = String.format(
+                        "{\\bullet}{\\%s %s at }{\\link %s|line %d in file %s}{\\%s :}\n",
+                            type, title, linkUrl, errorLineNumber, errorFile.getName(), type);
 
-                    } else {
-                        ctx.parsedMessage("{\\bullet}{\\warning Error at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
-                    }
+                    ctx.parsedMessage(errmess);
 
-                } catch (Exception execpt) {
-                    Base.exception(execpt);
+                } else {
+                    ctx.parsedMessage("{\\bullet}{\\" + type + " " + title + " at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
                 }
-            } else {
-                ctx.parsedMessage("{\\bullet}{\\warning Warning at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
+
+            } catch (Exception execpt) {
+                Base.exception(execpt);
             }
-            ctx.parsedMessage("{\\bullet2}{\\warning " + m.group(3) + "}\n");
-            setLineComment(errorFile, errorLineNumber, m.group(3));
-            return true;
+        } else {
+            ctx.parsedMessage("{\\bullet}{\\" + type + " " + title + " at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
         }
-        return false;
+        ctx.parsedMessage("{\\bullet2}{\\" + type + " " + d.getMessage() + "}\n");
+        setLineComment(errorFile, errorLineNumber, d.getMessage());
     }
 
     public boolean containsFile(File f) {
@@ -4778,7 +5134,11 @@ public class Sketch {
             return false;
         }
         PropertyFile props = ctx.getMerged();
-        if (props.get("compile.preproc") == null) { // Manually parse it.
+
+        // Unless asked to use the preprocessor, walk the include graph of the
+        // file and the libraries it uses.  The libraries' own includes come
+        // from the LibraryIncludeIndex, so no files need to be re-read.
+        if ((props.get("compile.preproc") == null) || !Preferences.getBoolean("compiler.preproc_libraries")) {
 
             ArrayList<String> incs = gatherIncludes(f);
             for (String inc : incs) {
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/*! A StringTemplate is a string containing ${...} variable references that
+ *  has been broken down into a tree of tokens, ready to be expanded against
+ *  a Context.  Each token is either literal text, a property reference such
+ *  as ${build.path}, or a function call such as ${cmd:param}.  References may
+ *  be nested, as in ${foo.${bar}}, in which case the inner reference is
+ *  expanded first to form the name of the outer one.
+ *
+ *  Templates are compiled once and cached by their source string, so the
+ *  same recipe used for every file in a build is only ever scanned once.
+ */
+public class StringTemplate {
+
+    // Expanding values within values this deep is assumed to be a loop.
+    static final int MAX_DEPTH = 64;
+
+    // The cache is simply emptied if it ever gets this big.
+    static final int MAX_CACHE = 10000;
+
+    static ConcurrentHashMap<String, StringTemplate> cache = new ConcurrentHashMap<String, StringTemplate>();
+
+    // A token is literal text if name is null, otherwise a reference whose
+    // name is itself a template.
+    static class Token {
+        String text;
+        StringTemplate name;
+
+        Token(String t) {
+            text = t;
+        }
+
+        Token(StringTemplate n) {
+            name = n;
+        }
+    }
+
+    Token[] tokens;
+    boolean literal = true;
+
+    StringTemplate(ArrayList<Token> t) {
+        tokens = t.toArray(new Token[0]);
+        for (Token tok : tokens) {
+            if (tok.name != null) {
+                literal = false;
+            }
+        }
+    }
+
+    /*! Get the compiled template for a string, compiling it if needed. */
+    public static StringTemplate compile(String in) {
+        StringTemplate t = cache.get(in);
+        if (t == null) {
+            int[] pos = new int[1];
+            t = parse(in, pos, false);
+            if (cache.size() >= MAX_CACHE) {
+                cache.clear();
+            }
+            cache.put(in, t);
+        }
+        return t;
+    }
+
+    // Parse from pos[0] up to the end of the string, or, if nested, up to
+    // the closing brace of the reference being parsed.  Returns null if a
+    // nested reference has no closing brace.
+    static StringTemplate parse(String in, int[] pos, boolean nested) {
+        ArrayList<Token> out = new ArrayList<Token>();
+        StringBuilder text = new StringBuilder();
+        int len = in.length();
+        int i = pos[0];
+
+        while (i < len) {
+            char c = in.charAt(i);
+
+            if (nested && (c == '}')) {
+                if (text.length() > 0) {
+                    out.add(new Token(text.toString()));
+                }
+                pos[0] = i + 1;
+                return new StringTemplate(out);
+            }
+
+            if ((c == '$') && (i + 1 < len) && (in.charAt(i + 1) == '{')) {
+                int[] inner = new int[] { i + 2 };
+                StringTemplate name = parse(in, inner, true);
+                if (name != null) {
+                    if (text.length() > 0) {
+                        out.add(new Token(text.toString()));
+                        text.setLength(0);
+                    }
+                    out.add(new Token(name));
+                    i = inner[0];
+                    continue;
+                }
+                // No closing brace, so it's just text.
+            }
+
+            text.append(c);
+            i++;
+        }
+
+        if (nested) {
+            return null;
+        }
+
+        if (text.length() > 0) {
+            out.add(new Token(text.toString()));
+        }
+        pos[0] = i;
+        return new StringTemplate(out);
+    }
+
+    /*! Returns true if the template contains no references at all. */
+    public boolean isLiteral() {
+        return literal;
+    }
+
+    /*! Expand the template using the properties and variable commands of
+     *  the given context.
+     */
+    public String expand(Context ctx) {
+        if (literal) {
+            return tokens.length == 0 ? "" : tokens[0].text;
+        }
+        StringBuilder out = new StringBuilder();
+        expand(ctx, out, new ArrayList<String>());
+        return out.toString();
+    }
+
+    // The stack holds the names of the properties currently being expanded,
+    // which is how a property that refers back to itself is spotted.
+    void expand(Context ctx, StringBuilder out, ArrayList<String> stack) {
+        for (Token tok : tokens) {
+            if (tok.name == null) {
+                out.append(tok.text);
+                continue;
+            }
+
+            String mid;
+            if (tok.name.literal) {
+                mid = tok.name.tokens.length == 0 ? "" : tok.name.tokens[0].text;
+            } else {
+                StringBuilder sb = new StringBuilder();
+                tok.name.expand(ctx, sb, stack);
+                mid = sb.toString();
+            }
+
+            // Compatability hack for old format roots
+            if (mid.equals("board.root")) { mid = "board:root"; }
+            if (mid.equals("core.root")) { mid = "core:root"; }
+            if (mid.equals("compiler.root")) { mid = "compiler:root"; }
+
+            String value;
+            int colon = mid.indexOf(":");
+
+            if (colon > -1) {
+                value = ctx.runFunctionVariable(mid.substring(0, colon), mid.substring(colon + 1));
+            } else {
+                value = ctx.getMerged(mid);
+            }
+
+            if (value == null) {
+                continue;
+            }
+
+            // The value may contain references of its own.
+            if (value.indexOf("${") == -1) {
+                out.append(value);
+                continue;
+            }
+
+            if (stack.contains(mid) || (stack.size() >= MAX_DEPTH)) {
+                Debug.message("Variable loop expanding ${" + mid + "}: " + stack);
+                continue;
+            }
+
+            stack.add(mid);
+            compile(value).expand(ctx, out, stack);
+            stack.remove(stack.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.security.*;
+
+/*! The SymbolIndex remembers the functions, variables, classes and macros
+ *  that ctags found in each sketch file.  Each file's entry is stamped with
+ *  a hash of the content that was scanned and the version of the ctags tool
+ *  that scanned it, and is only used while both still match.  That way only
+ *  files that have actually changed are passed through ctags again.
+ *
+ *  The index is kept in memory and saved to the cache folder so it survives
+ *  restarting the IDE.
+ */
+public class SymbolIndex {
+
+    static final String INDEX_NAME = "symbols.idx";
+    static final String NULL_FIELD = "\\0";
+
+    static HashMap<String, Entry> entries = null;
+    static boolean dirty = false;
+
+    static class Entry {
+        String hash;
+        String version;
+        ArrayList<FunctionBookmark> symbols = new ArrayList<FunctionBookmark>();
+    }
+
+    static File getIndexFile() {
+        return new File(Base.getCacheFolder(), INDEX_NAME);
+    }
+
+    /*! Get the symbols previously found in a file, or null if the content
+     *  or the ctags version have changed since.
+     */
+    public static synchronized ArrayList<FunctionBookmark> get(File f, String hash, String version) {
+        if (entries == null) {
+            load();
+        }
+
+        Entry e = entries.get(f.getAbsolutePath());
+        if ((e == null) || !e.hash.equals(hash) || !e.version.equals(version)) {
+            return null;
+        }
+        return new ArrayList<FunctionBookmark>(e.symbols);
+    }
+
+    /*! Remember the symbols found in a file. */
+    public static synchronized void put(File f, String hash, String version, ArrayList<FunctionBookmark> symbols) {
+        if (entries == null) {
+            load();
+        }
+
+        Entry e = new Entry();
+        e.hash = hash;
+        e.version = version;
+        e.symbols = new ArrayList<FunctionBookmark>(symbols);
+        entries.put(f.getAbsolutePath(), e);
+        dirty = true;
+    }
+
+    /*! Get the hash used to tell if a file's content has changed. */
+    public static String hash(String content) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return Package.toHex(md.digest(content.getBytes("UTF-8")));
+        } catch (Exception ex) {
+            // Every JVM has SHA-1 and UTF-8, but if not this still changes with the content.
+            return Integer.toHexString(content.hashCode()) + ":" + content.length();
+        }
+    }
+
+    /*! Write the index out to the cache folder if anything has changed.
+     *  Entries for files that no longer exist are dropped.
+     */
+    public static synchronized void save() {
+        if (!dirty || (entries == null)) {
+            return;
+        }
+
+        try {
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(getIndexFile()), "UTF-8"));
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Entry> me = it.next();
+                if (!new File(me.getKey()).exists()) {
+                    it.remove();
+                    continue;
+                }
+                Entry e = me.getValue();
+                pw.println("file\t" + e.hash + "\t" + e.version + "\t" + me.getKey());
+                for (FunctionBookmark bm : e.symbols) {
+                    pw.println("symbol\t" + bm.getType() + "\t" + bm.getLine() + "\t" +
+                        field(bm.getFile() == null ? null : bm.getFile().getAbsolutePath()) + "\t" +
+                        field(bm.getName()) + "\t" +
+                        field(bm.getReturnType()) + "\t" +
+                        field(bm.getParamList()) + "\t" +
+                        field(bm.getParentClass()));
+                }
+            }
+            pw.close();
+            dirty = false;
+        } catch (Exception ex) {
+            Base.exception(ex);
+        }
+    }
+
+    static String field(String s) {
+        return s == null ? NULL_FIELD : s;
+    }
+
+    static String unfield(String s) {
+        return s.equals(NULL_FIELD) ? null : s;
+    }
+
+    static void load() {
+        entries = new HashMap<String, Entry>();
+
+        File indexFile = getIndexFile();
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            String line;
+            Entry current = null;
+            while ((line = br.readLine()) != null) {
+                String[] bits = line.split("\t", -1);
+                if (bits[0].equals("file") && (bits.length == 4)) {
+                    current = new Entry();
+                    current.hash = bits[1];
+                    current.version = bits[2];
+                    entries.put(bits[3], current);
+                } else if (bits[0].equals("symbol") && (bits.length == 8) && (current != null)) {
+                    String file = unfield(bits[3]);
+                    current.symbols.add(new FunctionBookmark(
+                        Integer.parseInt(bits[1]),
+                        file == null ? null : new File(file),
+                        Integer.parseInt(bits[2]),
+                        unfield(bits[4]),
+                        unfield(bits[5]),
+                        unfield(bits[6]),
+                        unfield(bits[7])
+                    ));
+                }
+            }
+            br.close();
+        } catch (Exception ex) {
+            // A damaged index just gets built again.
+            Base.exception(ex);
+            entries.clear();
+        }
+    }
+}
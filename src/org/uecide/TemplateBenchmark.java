@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+
+/*! Times the expansion of real compile recipes, comparing the old way
+ *  parseString worked - merging every layer of properties and then
+ *  repeatedly searching and rebuilding the string - with the compiled
+ *  StringTemplates it uses now.
+ *
+ *  Each fixture is a folder holding *compiler*, *core* and *board* folders,
+ *  each with the usual compiler.txt, core.txt or board.txt, which are
+ *  loaded into a Context just as they would be for a real build.  For every
+ *  expansion the per-file source.name and object.name are changed, as they
+ *  are for each file compiled.
+ *
+ *  Run from the command line with:
+ *
+ *      java -cp uecide.jar org.uecide.TemplateBenchmark [options] fixture...
+ *
+ *  The options are:
+ *  * --key=name - the recipe to expand (default compile.cpp)
+ *  * --iterations=N - how many expansions to time each way (default 20000)
+ *
+ *  The tests/template folder has fixtures for an AVR and an ESP32 board.
+ *  The exit status is non-zero if the two ways of expanding a recipe don't
+ *  give the same result.
+ */
+public class TemplateBenchmark {
+
+    /*! The measurements for one fixture. */
+    public static class Result {
+        public String name;
+        public int iterations;
+        public int length;
+        public long legacyNanos;
+        public long templateNanos;
+        public boolean matched;
+
+        public double getLegacyPerSecond() {
+            return legacyNanos > 0 ? iterations * 1e9 / legacyNanos : 0;
+        }
+
+        public double getTemplatePerSecond() {
+            return templateNanos > 0 ? iterations * 1e9 / templateNanos : 0;
+        }
+
+        public String toString() {
+            return String.format("%s: %d expansions of %d characters, before %.0f/s, after %.0f/s, %.1fx faster%s",
+                name, iterations, length, getLegacyPerSecond(), getTemplatePerSecond(),
+                templateNanos > 0 ? (double)legacyNanos / templateNanos : 0,
+                matched ? "" : " - RESULTS DIFFER");
+        }
+    }
+
+    String key = "compile.cpp";
+    int iterations = 20000;
+
+    public void setKey(String k) { key = k; }
+    public void setIterations(int i) { iterations = i; }
+
+    /*! Load a fixture's compiler, core and board into a new Context. */
+    public Context createContext(File fixture) {
+        Context ctx = new Context();
+        ctx.setCompiler(new Compiler(new File(fixture, "compiler")));
+        ctx.setCore(new Core(new File(fixture, "core")));
+        ctx.setBoard(new Board(new File(fixture, "board")));
+
+        File build = new File(fixture, "build");
+        ctx.set("build.path", build.getAbsolutePath());
+        ctx.set("includes", "-I" + new File(fixture, "sketch").getAbsolutePath() + "::-I" + new File(fixture, "libraries/SPI").getAbsolutePath() + "::-I" + new File(fixture, "libraries/Wire").getAbsolutePath());
+        return ctx;
+    }
+
+    // Set the per-file keys the way Sketch.compileFile does.
+    void setFile(Context ctx, int n) {
+        String base = ctx.get("build.path") + "/src" + (n % 32);
+        ctx.set("source.name", base + ".cpp");
+        ctx.set("object.name", base + ".o");
+    }
+
+    /*! Expand the recipe in *fixture* both ways and time them. */
+    public Result run(File fixture) {
+        Context ctx = createContext(fixture);
+        String recipe = ctx.getMerged(key);
+
+        Result r = new Result();
+        r.name = fixture.getName();
+        r.iterations = iterations;
+
+        if (recipe == null) {
+            System.err.println("No " + key + " in " + fixture);
+            return r;
+        }
+
+        // Check both give the same answer, and warm both up.
+        setFile(ctx, 0);
+        String expected = legacyParse(ctx, recipe);
+        r.length = expected.length();
+        r.matched = expected.equals(ctx.parseString(recipe));
+        for (int i = 0; i < iterations / 10; i++) {
+            setFile(ctx, i);
+            legacyParse(ctx, recipe);
+            ctx.parseString(recipe);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            setFile(ctx, i);
+            legacyParse(ctx, recipe);
+        }
+        r.legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            setFile(ctx, i);
+            ctx.parseString(recipe);
+        }
+        r.templateNanos = System.nanoTime() - start;
+
+        return r;
+    }
+
+    /*! The way Context.parseString used to expand a string: merge all the
+     *  layers, then find the innermost ${...}, replace it, and search the
+     *  whole string again until there is nothing left to replace.
+     */
+    public static String legacyParse(Context ctx, String in) {
+        PropertyFile tokens = new PropertyFile();
+        for (PropertyFile layer : ctx.getLayers()) {
+            if (layer != null) {
+                tokens.mergeData(layer);
+            }
+        }
+        return legacyParse(ctx, tokens, in);
+    }
+
+    static String legacyParse(Context ctx, PropertyFile tokens, String in) {
+        int iStart;
+        int iEnd;
+        int iTest;
+        String out;
+        String start;
+        String end;
+        String mid;
+
+        if(in == null) {
+            return null;
+        }
+
+        out = in;
+
+        iStart = out.indexOf("${");
+
+        if(iStart == -1) {
+            return out;
+        }
+
+        iEnd = out.indexOf("}", iStart);
+        iTest = out.indexOf("${", iStart + 1);
+
+        while((iTest > -1) && (iTest < iEnd)) {
+            iStart = iTest;
+            iTest = out.indexOf("${", iStart + 1);
+        }
+
+        while(iStart != -1) {
+            start = out.substring(0, iStart);
+            end = out.substring(iEnd + 1);
+            mid = out.substring(iStart + 2, iEnd);
+
+            if (mid.equals("board.root")) { mid = "board:root"; }
+            if (mid.equals("core.root")) { mid = "core:root"; }
+            if (mid.equals("compiler.root")) { mid = "compiler:root"; }
+
+            if(mid.indexOf(":") > -1) {
+                String command = mid.substring(0, mid.indexOf(":"));
+                String param = mid.substring(mid.indexOf(":") + 1);
+
+                mid = ctx.runFunctionVariable(command, param);
+            } else {
+                String tmid = tokens.get(mid);
+
+                if(tmid == null) {
+                    tmid = "";
+                }
+
+                mid = tmid;
+            }
+
+            if(mid != null) {
+                out = start + mid + end;
+            } else {
+                out = start + end;
+            }
+
+            iStart = out.indexOf("${");
+            iEnd = out.indexOf("}", iStart);
+            iTest = out.indexOf("${", iStart + 1);
+
+            while((iTest > -1) && (iTest < iEnd)) {
+                iStart = iTest;
+                iTest = out.indexOf("${", iStart + 1);
+            }
+        }
+
+        if(out != in) {
+            out = legacyParse(ctx, tokens, out);
+        }
+
+        return out;
+    }
+
+    public static void main(String[] args) {
+        TemplateBenchmark bench = new TemplateBenchmark();
+        ArrayList<File> fixtures = new ArrayList<File>();
+
+        for (String arg : args) {
+            String key = arg;
+            String val = null;
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                key = arg.substring(0, eq);
+                val = arg.substring(eq + 1);
+            }
+
+            try {
+                if (key.equals("--key")) {
+                    bench.setKey(val);
+                } else if (key.equals("--iterations")) {
+                    bench.setIterations(Integer.parseInt(val));
+                } else if (key.startsWith("--")) {
+                    System.err.println("Unknown option " + key);
+                    System.exit(2);
+                } else {
+                    fixtures.add(new File(arg));
+                }
+            } catch (Exception ex) {
+                System.err.println("Bad value for " + key + ": " + val);
+                System.exit(2);
+            }
+        }
+
+        if (fixtures.size() == 0) {
+            System.err.println("Usage: TemplateBenchmark [--key=name] [--iterations=N] fixture...");
+            System.exit(2);
+        }
+
+        Base.overrideSettingsFolder = new File(System.getProperty("java.io.tmpdir"), "uecide-benchmark").getAbsolutePath();
+        Base.preferences = new PropertyFile();
+
+        boolean good = true;
+        for (File fixture : fixtures) {
+            if (!fixture.isDirectory()) {
+                System.err.println("No such fixture " + fixture);
+                System.exit(2);
+            }
+            Result r = bench.run(fixture);
+            System.out.println(r);
+            good &= r.matched;
+        }
+
+        System.exit(good ? 0 : 1);
+    }
+}
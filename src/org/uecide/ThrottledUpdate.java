@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.awt.event.*;
+
+/*! A ThrottledUpdate runs a job on the event thread some time after it is
+ *  requested.  Any number of requests made before the job gets to run are
+ *  rolled into one, so however often something asks for an update it only
+ *  happens at most once every *interval* milliseconds.
+ */
+public class ThrottledUpdate {
+
+    javax.swing.Timer timer;
+    boolean pending = false;
+
+    public ThrottledUpdate(int interval, final Runnable job) {
+        timer = new javax.swing.Timer(interval, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                synchronized (ThrottledUpdate.this) {
+                    pending = false;
+                }
+                job.run();
+            }
+        });
+        timer.setRepeats(false);
+        timer.setCoalesce(false);
+    }
+
+    /*! Ask for the job to be run.  May be called from any thread. */
+    public void request() {
+        synchronized (this) {
+            if (pending) {
+                return;
+            }
+            pending = true;
+        }
+        timer.start();
+    }
+}
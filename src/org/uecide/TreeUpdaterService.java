@@ -30,11 +30,19 @@
 
 package org.uecide;
 
-public class TreeUpdaterService extends Service {
+import java.io.File;
+import java.util.Set;
+
+public class TreeUpdaterService extends Service implements FileChangeListener {
+
+    // Set when files have changed on disk so the trees get rebuilt even if
+    // nothing has been edited.
+    volatile boolean filesChanged = false;
 
     public TreeUpdaterService() {
         setName("Tree Updater");
         setInterval(1000);
+        FileWatchService.addListener(this);
     }
 
     public void setup() {
@@ -43,18 +51,25 @@ public class TreeUpdaterService extends Service {
     public void cleanup() {
     }
 
+    public void filesChanged(Set<File> files) {
+        filesChanged = true;
+    }
+
     public void loop() {
+        boolean force = filesChanged;
+        filesChanged = false;
         synchronized (Editor.editorList) {
             boolean doneSomething = false;
             for (Editor e : Editor.editorList) {
                 if (!e.compilerRunning()) {
-                    if (e.getUpdateFlag()) {
+                    if (force || e.getUpdateFlag()) {
                         e.loadedSketch.findAllFunctions();
                         e.loadedSketch.updateKeywords();
                         e.loadedSketch.updateLibraryList();
                         e.updateKeywords();
                         e.updateLibrariesTree();
                         e.updateSourceTree();
+                        BackgroundLibraryCompileService.wake();
                     }
                 }
             }
@@ -100,7 +100,7 @@ public class UObject implements Comparable {
                     return;
                 }
 
-                _properties = new PropertyFile(_configFile);
+                _properties = AssetIndex.loadPropertyFile(_configFile);
                 updateSources();
                 _name = get("name");
 
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import org.uecide.builtin.stk500v1;
+import org.uecide.builtin.stk500v2;
+
+import java.io.*;
+import java.util.*;
+
+/*! Times the STK500 uploaders against a SimulatedCommunicationPort, so
+ *  upload performance can be measured and checked for regressions on a
+ *  machine with no boards attached.  Each run resets the simulated board
+ *  the same way a Programmer would, uploads a HEX file to it, then checks
+ *  that what ended up in its flash matches the file.
+ *
+ *  Run from the command line with:
+ *
+ *      java -cp uecide.jar org.uecide.UploadBenchmark [options] file.hex
+ *
+ *  The options are:
+ *  * --protocol=v1|v2|both - which uploaders to run (default both)
+ *  * --baud=N - the upload speed (default 115200)
+ *  * --latency=N - milliseconds added before every reply (default 0)
+ *  * --errors=N - proportion of replies to drop or corrupt (default 0)
+ *  * --seed=N - seed for choosing which replies to damage (default 0)
+ *  * --reset=dtr|baud|none - how to reset the board first (default dtr)
+ *  * --runs=N - how many times to upload with each uploader (default 1)
+ *  * --differential=off|trust|verify - differential uploading mode (default off)
+ *  * --no-pacing - don't slow the traffic down to the baud rate
+ *  * --tamper - change a byte of the simulated flash after every run, as if
+ *    something else had programmed the board in the meantime
+ *  * --expect-repeat=none|all - fail unless every run after the first
+ *    programs no pages, or all of them
+ *
+ *  Each uploader talks to the same simulated board for all its runs, so with
+ *  differential uploading turned on the runs after the first show how long a
+ *  re-upload of an unchanged image takes.  Saved device images are kept in a
+ *  temporary data folder rather than the user's own.
+ *
+ *  The exit status is non-zero if any upload failed or didn't verify, or
+ *  didn't program the number of pages given by --expect-repeat.  The
+ *  tests/upload Makefile uses this to check differential uploading.
+ */
+public class UploadBenchmark {
+
+    /*! The measurements from a single upload. */
+    public static class Result {
+        public String uploader;
+        public int baud;
+        public int latency;
+        public boolean success;
+        public boolean verified;
+        public long imageBytes;
+        public int pages;
+        public int imagePages;
+        public long firstAddress;
+        public int commands;
+        public long wireBytes;
+        public long resetMillis;
+        public long uploadMillis;
+        public int errorsInjected;
+
+        public double getBytesPerSecond() {
+            return uploadMillis > 0 ? imageBytes * 1000.0 / uploadMillis : 0;
+        }
+
+        public double getRoundTripsPerPage() {
+            return pages > 0 ? (double)commands / pages : 0;
+        }
+
+        public String toString() {
+            return String.format("%s %d baud, %dms latency: %s, %d bytes in %d pages, %d round trips (%.2f/page), %d bytes on the wire, reset %dms, upload %dms, %.0f bytes/s, %d errors injected",
+                uploader, baud, latency,
+                !success ? "FAILED" : verified ? "verified" : "VERIFY FAILED",
+                imageBytes, pages, commands, getRoundTripsPerPage(), wireBytes,
+                resetMillis, uploadMillis, getBytesPerSecond(), errorsInjected);
+        }
+    }
+
+    int baud = 115200;
+    int latency = 0;
+    double errors = 0.0;
+    long seed = 0;
+    String reset = "dtr";
+    boolean pacing = true;
+
+    public void setBaud(int b) { baud = b; }
+    public void setLatency(int l) { latency = l; }
+    public void setErrorRate(double e, long s) { errors = e; seed = s; }
+    public void setReset(String r) { reset = r; }
+    public void setPacing(boolean p) { pacing = p; }
+
+    /*! Create a simulated board for the STK500v1 or STK500v2 uploader.  Any
+     *  device image saved for a previous board of the same name is forgotten.
+     */
+    public SimulatedCommunicationPort createPort(int protocol) {
+        SimulatedCommunicationPort port = new SimulatedCommunicationPort("sim-stk500v" + protocol, protocol);
+        FlashImageCache.forget(FlashImageCache.getDeviceKey(port, null));
+        return port;
+    }
+
+    /*! Upload *hex* to a simulated board and measure it. */
+    public Result run(SimulatedCommunicationPort port, File hex) {
+        String name = port.toString();
+        int protocol = port.protocol;
+        port.setSpeed(baud);
+        port.setLatency(latency);
+        port.setErrorRate(errors, seed);
+        port.setPacing(pacing);
+
+        Context ctx = new Context();
+        ctx.setDevice(port);
+        Base.communicationPorts.add(port);
+
+        Result r = new Result();
+        r.uploader = "stk500v" + protocol;
+        r.baud = baud;
+        r.latency = latency;
+
+        try {
+            long start = System.currentTimeMillis();
+            Programmer programmer = new Programmer();
+            if (reset.equals("dtr")) {
+                programmer.performSerialReset(ctx, true, true, baud, 100, 100, 100);
+            } else if (reset.equals("baud")) {
+                programmer.performBaudBasedReset(ctx, 1200, 100, 100, 100);
+            }
+            r.resetMillis = System.currentTimeMillis() - start;
+
+            port.resetStatistics();
+
+            TreeMap<Long, byte[]> pages;
+            start = System.currentTimeMillis();
+            if (protocol == SimulatedCommunicationPort.STK500V1) {
+                stk500v1 uploader = new stk500v1();
+                r.success = uploader.main(ctx, new String[] { name, Integer.toString(baud), hex.getAbsolutePath() });
+                pages = uploader.getPages();
+            } else {
+                stk500v2 uploader = new stk500v2();
+                r.success = uploader.main(ctx, new String[] { name, Integer.toString(baud), hex.getAbsolutePath() });
+                pages = uploader.getPages();
+            }
+            r.uploadMillis = System.currentTimeMillis() - start;
+
+            r.pages = port.getPagesWritten();
+            r.commands = port.getCommandCount();
+            r.wireBytes = port.getBytesWritten() + port.getBytesRead();
+            r.errorsInjected = port.getErrorsInjected();
+
+            if (pages != null) {
+                r.imagePages = pages.size();
+                r.firstAddress = pages.isEmpty() ? 0 : pages.firstKey();
+                r.verified = r.success;
+                byte[] flash = port.getFlash();
+                for (Map.Entry<Long, byte[]> e : pages.entrySet()) {
+                    byte[] page = e.getValue();
+                    r.imageBytes += page.length;
+                    for (int i = 0; i < page.length; i++) {
+                        long a = e.getKey() + i;
+                        if ((a >= flash.length) || (flash[(int)a] != page[i])) {
+                            r.verified = false;
+                        }
+                    }
+                }
+            }
+        } finally {
+            port.closePort();
+            Base.communicationPorts.remove(port);
+        }
+
+        return r;
+    }
+
+    public static void main(String[] args) {
+        UploadBenchmark bench = new UploadBenchmark();
+        String protocols = "both";
+        String differential = "off";
+        String expectRepeat = null;
+        boolean tamper = false;
+        int runs = 1;
+        File hex = null;
+
+        for (String arg : args) {
+            String key = arg;
+            String val = null;
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                key = arg.substring(0, eq);
+                val = arg.substring(eq + 1);
+            }
+
+            try {
+                if (key.equals("--protocol")) {
+                    protocols = val;
+                } else if (key.equals("--baud")) {
+                    bench.setBaud(Integer.parseInt(val));
+                } else if (key.equals("--latency")) {
+                    bench.setLatency(Integer.parseInt(val));
+                } else if (key.equals("--errors")) {
+                    bench.errors = Double.parseDouble(val);
+                } else if (key.equals("--seed")) {
+                    bench.seed = Long.parseLong(val);
+                } else if (key.equals("--reset")) {
+                    bench.setReset(val);
+                } else if (key.equals("--runs")) {
+                    runs = Integer.parseInt(val);
+                } else if (key.equals("--differential")) {
+                    differential = val;
+                } else if (key.equals("--no-pacing")) {
+                    bench.setPacing(false);
+                } else if (key.equals("--tamper")) {
+                    tamper = true;
+                } else if (key.equals("--expect-repeat")) {
+                    if (!val.equals("none") && !val.equals("all")) {
+                        throw new IllegalArgumentException(val);
+                    }
+                    expectRepeat = val;
+                } else if (key.startsWith("--")) {
+                    System.err.println("Unknown option " + key);
+                    System.exit(2);
+                } else {
+                    hex = new File(arg);
+                }
+            } catch (Exception ex) {
+                System.err.println("Bad value for " + key + ": " + val);
+                System.exit(2);
+            }
+        }
+
+        if ((hex == null) || !hex.exists()) {
+            System.err.println("Usage: UploadBenchmark [--protocol=v1|v2|both] [--baud=N] [--latency=ms] [--errors=rate] [--seed=N] [--reset=dtr|baud|none] [--runs=N] [--differential=off|trust|verify] [--no-pacing] [--tamper] [--expect-repeat=none|all] file.hex");
+            System.exit(2);
+        }
+
+        Base.overrideSettingsFolder = new File(System.getProperty("java.io.tmpdir"), "uecide-benchmark").getAbsolutePath();
+        Base.preferences = new PropertyFile();
+        Base.preferences.set("compiler.upload_differential", differential);
+
+        ArrayList<SimulatedCommunicationPort> ports = new ArrayList<SimulatedCommunicationPort>();
+        if (!protocols.equals("v2")) {
+            ports.add(bench.createPort(SimulatedCommunicationPort.STK500V1));
+        }
+        if (!protocols.equals("v1")) {
+            ports.add(bench.createPort(SimulatedCommunicationPort.STK500V2));
+        }
+
+        boolean good = true;
+
+        for (int i = 0; i < runs; i++) {
+            for (SimulatedCommunicationPort port : ports) {
+                Result r = bench.run(port, hex);
+                System.out.println(r);
+                good &= r.verified;
+
+                if ((i > 0) && (expectRepeat != null)) {
+                    int want = expectRepeat.equals("all") ? r.imagePages : 0;
+                    if (r.pages != want) {
+                        System.out.println("Expected " + want + " pages to be programmed, but " + r.pages + " were");
+                        good = false;
+                    }
+                }
+
+                if (tamper && (r.imagePages > 0)) {
+                    byte[] flash = port.getFlash();
+                    if (r.firstAddress < flash.length) {
+                        flash[(int)r.firstAddress] ^= 0xFF;
+                    }
+                }
+            }
+        }
+
+        System.exit(good ? 0 : 1);
+    }
+}
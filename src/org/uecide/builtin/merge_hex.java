@@ -42,11 +42,11 @@ public class merge_hex extends BuiltinCommand {
                 return false;
             }
 
-            HexFile hex = new HexFile();
+            MemoryImage image = new MemoryImage();
             for (int i = 1; i < arg.length; i++) {
-                hex.loadFile(new File(arg[i]));
+                image.load(new File(arg[i]));
             }
-            hex.saveFile(new File(arg[0]));
+            image.save(new File(arg[0]));
 
             return true;
         } catch (Exception ex) { Base.exception(ex); ctx.error(ex); }
@@ -34,9 +34,9 @@ import org.uecide.*;
 import java.util.*;
 import java.io.*;
 
-public class stk500v1 extends BuiltinCommand implements CommsListener {
+import uk.co.majenko.hexfile.*;
 
-    boolean replyIsAvailable = false;
+public class stk500v1 extends BuiltinCommand implements CommsListener {
 
     String portName = null;
     CommunicationPort port;
@@ -123,7 +123,7 @@ public class stk500v1 extends BuiltinCommand implements CommsListener {
     public static final int Stat_STK_LEDR               = 0x40;
     public static final int Stat_STK_LEDBLINK           = 0x80;
 
-    TreeMap<Long, int[]>memChunks;
+    TreeMap<Long, byte[]> memChunks;
 
     public static long pageSize = 128;
 
@@ -159,24 +159,36 @@ public class stk500v1 extends BuiltinCommand implements CommsListener {
 
         String dn = getDeviceName();
 
+        String deviceKey = FlashImageCache.getDeviceKey(port, ctx.getBoard());
+
         enterProgMode();
-        uploadProgram();
+
+        TreeMap<Long, byte[]> pages = FlashImageCache.selectPages(ctx, deviceKey, pageSize, memChunks, new FlashImageCache.PageReader() {
+            public byte[] readPage(long address, int length) {
+                return readFlash(address, length);
+            }
+        });
+
+        boolean ok = uploadProgram(pages);
         leaveProgMode();
 
         disconnect();
         if (ctx.getSketch() != null) {
             ctx.getSketch().setCompilingProgress(100);
         }
-        return true;
-    }
 
-    public int[] newPage() {
-        int[] page = new int[(int)pageSize];
+        FlashImageCache.uploadFinished(deviceKey, pageSize, memChunks, ok);
+        return ok;
+    }
 
-        for(int i = 0; i < (int)pageSize; i++) {
-            page[i] = 0xff;
-        }
+    /*! The image loaded by loadHexFile(), split into pages. */
+    public TreeMap<Long, byte[]> getPages() {
+        return memChunks;
+    }
 
+    public byte[] newPage() {
+        byte[] page = new byte[(int)pageSize];
+        Arrays.fill(page, (byte)0xFF);
         return page;
     }
 
@@ -256,29 +268,54 @@ public class stk500v1 extends BuiltinCommand implements CommsListener {
     }
 
     public boolean sendCommand(int[] command) {
-        replyIsAvailable = false;
+        return sendCommand(command, VARIABLE_REPLY) != null;
+    }
+
+    /*! Send a command and wait for the bootloader to answer with INSYNC,
+     *  *replyLength* bytes of data and OK.  The command is written in a single
+     *  call, and the wait ends as soon as the OK arrives.  With a reply length
+     *  of VARIABLE_REPLY everything up to the first OK is taken as the reply,
+     *  which is only safe for replies that can't contain the OK byte.
+     *  Returns the data, or null if no reply arrived within the timeout.
+     */
+    public int[] sendCommand(int[] command, int replyLength) {
+        byte[] frame = new byte[command.length + 1];
+        for(int i = 0; i < command.length; i++) {
+            frame[i] = (byte)command[i];
+        }
+        frame[command.length] = (byte)Sync_CRC_EOP;
+
+        synchronized (replyLock) {
+            reply = null;
+            recPhase = 0;
+            recLength = replyLength;
+            recPos = 0;
+            if ((replyLength > 0) && (recBuffer.length < replyLength)) {
+                recBuffer = new int[replyLength];
+            }
+        }
+
         try {
-            for(int i = 0; i < command.length; i++) {
-                port.write((byte)(command[i] & 0xFF));
+            if (!port.write(frame)) {
+                return null;
             }
 
-            port.write((byte)(Sync_CRC_EOP & 0xFF));
+            long end = System.currentTimeMillis() + timeout;
 
-            int to = 0;
-            while (!replyIsAvailable) {
-                Thread.sleep(10);
-                to++;
-                if (to > 100) {
-                    return false;
+            synchronized (replyLock) {
+                while (reply == null) {
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    replyLock.wait(remaining);
                 }
+                return reply;
             }
-
-            return true;
-
         } catch(Exception e) {
             Base.exception(e);
             ctx.error(e);
-            return false;
+            return null;
         }
     }
 
@@ -299,24 +336,30 @@ public class stk500v1 extends BuiltinCommand implements CommsListener {
             return 0;
         }
 
-        if (!sendCommand(new int[] {Cmnd_GET_PARAMETER, param})) {
+        int[] rv = sendCommand(new int[] {Cmnd_GET_PARAMETER, param}, 1);
+
+        if (rv == null) {
             return 0;
         }
 
-        return replyData.get(1);
+        return rv[0];
     }
 
     public boolean uploadProgram() {
+        return uploadProgram(memChunks);
+    }
+
+    public boolean uploadProgram(TreeMap<Long, byte[]> pages) {
         if(!connected) {
             return false;
         }
 
-        int numberOfChunks = memChunks.keySet().size();
+        int numberOfChunks = pages.size();
         int currentChunk = 0;
 
-        for(Long start : memChunks.keySet()) {
+        for(Long start : pages.keySet()) {
 
-System.err.println("Programming chunk " + currentChunk + " at address " + start);
+            Debug.message("Programming chunk " + currentChunk + " at address " + start);
 
             int perc = currentChunk * 100 / numberOfChunks;
             if (ctx.getSketch() != null) {
@@ -330,7 +373,7 @@ System.err.println("Programming chunk " + currentChunk + " at address " + start)
                 return false;
             }
 
-            int[] chunk = memChunks.get(start);
+            byte[] chunk = pages.get(start);
 
             if(!uploadPage(chunk)) {
                 return false;
@@ -340,7 +383,7 @@ System.err.println("Programming chunk " + currentChunk + " at address " + start)
         return true;
     }
 
-    public boolean uploadPage(int[] data) {
+    public boolean uploadPage(byte[] data) {
         int[] message = new int[data.length + 4];
         int len = data.length;
         message[0] = Cmnd_STK_PROG_PAGE;
@@ -349,7 +392,7 @@ System.err.println("Programming chunk " + currentChunk + " at address " + start)
         message[3] = 0x46;
 
         for(int i = 0; i < len; i++) {
-            message[4 + i] = data[i];
+            message[4 + i] = data[i] & 0xFF;
         }
 
         if(!sendCommand(message)) {
@@ -360,6 +403,29 @@ System.err.println("Programming chunk " + currentChunk + " at address " + start)
         return true;
     }
 
+    /*! Read *length* bytes of flash starting at *address*. */
+    public byte[] readFlash(long address, int length) {
+        if(!connected) {
+            return null;
+        }
+
+        if(!loadAddress(address)) {
+            return null;
+        }
+
+        int[] rv = sendCommand(new int[] {Cmnd_STK_READ_PAGE, (length >> 8) & 0xFF, length & 0xFF, 'F'}, length);
+
+        if(rv == null) {
+            return null;
+        }
+
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++) {
+            data[i] = (byte)rv[i];
+        }
+        return data;
+    }
+
     public boolean loadAddress(long address) {
         if(!connected) {
             return false;
@@ -402,144 +468,6 @@ System.err.println("Programming chunk " + currentChunk + " at address " + start)
         return true;
     }
 
-    static class HexRecord {
-        int length = 0;
-        long address = 0;
-        int type = 0;
-        int[] data = null;
-        int checksum = 0;
-
-        String lineBuffer = "";
-
-        public final static int Data = 0x00;
-        public final static int EoF = 0x01;
-        public final static int ExtendedSegmentAddress = 0x02;
-        public final static int StartSegmentAddress = 0x03;
-        public final static int ExtendedLinearAddress = 0x04;
-        public final static int StartLinearAddress = 0x05;
-
-        public HexRecord(String line) {
-            if(line.startsWith(":")) {
-                lineBuffer = line.substring(1);
-
-                length = shiftHex();
-                int a0 = shiftHex();
-                int a1 = shiftHex();
-                address = ((a0  << 8) | a1) & 0xFFFF;
-                type = shiftHex();
-                data = new int[length];
-
-                for(int i = 0; i < length; i++) {
-                    data[i] = shiftHex();
-                }
-
-                checksum = shiftHex();
-            }
-        }
-
-        public int getLength() {
-            return (int)length;
-        }
-        public long getAddress() {
-            return address;
-        }
-        public int[] getData() {
-            return data;
-        }
-        public int getChecksum() {
-            return checksum;
-        }
-        public int getType() {
-            return type;
-        }
-
-        private int shiftHex() {
-            if(lineBuffer.length() < 2) {
-                return 0;
-            }
-
-            char c0 = lineBuffer.charAt(0);
-            char c1 = lineBuffer.charAt(1);
-            lineBuffer = lineBuffer.substring(2);
-
-            int b = (h2d(c0) << 4) | h2d(c1);
-            return b;
-
-        }
-
-        private int h2d(char c) {
-            switch(c) {
-            case '0':
-                return 0;
-
-            case '1':
-                return 1;
-
-            case '2':
-                return 2;
-
-            case '3':
-                return 3;
-
-            case '4':
-                return 4;
-
-            case '5':
-                return 5;
-
-            case '6':
-                return 6;
-
-            case '7':
-                return 7;
-
-            case '8':
-                return 8;
-
-            case '9':
-                return 9;
-
-            case 'a':
-                return 10;
-
-            case 'A':
-                return 10;
-
-            case 'b':
-                return 11;
-
-            case 'B':
-                return 11;
-
-            case 'c':
-                return 12;
-
-            case 'C':
-                return 12;
-
-            case 'd':
-                return 13;
-
-            case 'D':
-                return 13;
-
-            case 'e':
-                return 14;
-
-            case 'E':
-                return 14;
-
-            case 'f':
-                return 15;
-
-            case 'F':
-                return 15;
-            }
-
-            return 0;
-        }
-    }
-
     public int unsigned_byte(byte b) {
         return (int)b & 0xFF;
     }
@@ -548,144 +476,69 @@ System.err.println("Programming chunk " + currentChunk + " at address " + start)
         return (long)b & 0xFFFFFFFFL;
     }
 
+    /*! Load a HEX file and split it into pages of pageSize bytes.  Any gaps
+     *  within a page are filled with 0xFF.
+     */
     public boolean loadHexFile(File hexFile) {
-        long baseAddress = 0;
-        long fullAddress = 0;
-        long segmentAddress = 0;
-        long recordAddress = 0;
-        long currentAddress = 0;
-
-        memChunks = new TreeMap<Long, int[]>();
-        int b0;
-        int b1;
-        int[] data;
-        int tint;
-
-        InputStream fis;
-        BufferedReader br;
-        String line;
-
         try {
-            fis = new FileInputStream(hexFile);
-            br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
-
-            while((line = br.readLine()) != null) {
-                if(!line.startsWith(":")) {
-                    continue;
-                }
-
-                HexRecord hr = new HexRecord(line);
-
-                switch(hr.getType()) {
-                case HexRecord.Data:
-                    recordAddress = hr.getAddress();
-                    fullAddress = baseAddress + (recordAddress + segmentAddress);
-                    memChunks.put((Long)fullAddress, (int[])hr.getData());
-                    break;
-
-                case HexRecord.EoF:
-                    break;
-
-                case HexRecord.ExtendedSegmentAddress:
-                    data = hr.getData();
-                    segmentAddress = (data[0] << 8) | data[1];
-                    segmentAddress *= 16;
-                    break;
-
-                case HexRecord.StartSegmentAddress:
-                    // Not supported
-                    break;
-
-                case HexRecord.ExtendedLinearAddress:
-                    data = hr.getData();
-                    baseAddress = ((data[0] << 24) | (data[1] << 16));
-                    break;
-
-                case HexRecord.StartLinearAddress:
-                    // Not supported
-                    break;
-                default:
-                    break;
-                }
-            }
-
-            br.close();
+            memChunks = new MemoryImage(hexFile).getPages((int)pageSize, (byte)0xFF);
         } catch(Exception e) {
             Base.exception(e);
             ctx.error(e);
             return false;
         }
 
-        // Now let's see about coalescing the chunks into big blocks, each of a page in size.
-
-        TreeMap<Long, int[]> compressedChunks = new TreeMap<Long, int[]>();
-
-        for(Long start : memChunks.keySet()) {
-            int[] chunkData = memChunks.get(start);
-
-            long pagestart = start & ~(pageSize - 1L);
-
-
-            int[] pageData = compressedChunks.get(pagestart);
-
-            if(pageData == null) {
-                pageData = newPage();
-            }
-
-            long pageoffset = start - pagestart;
-
-            //System.err.println(String.format("Coalesced chunk of length %d starting at 0x%x into page 0x%x",
-            //    chunkData.length, start, pagestart));
-
-            for(int i = 0; i < chunkData.length; i++) {
-                if(pageoffset + i == pageSize) {
-                    compressedChunks.put(pagestart, pageData);
-                    pagestart += pageSize;
-                    pageoffset = 0;
-                    pageData = compressedChunks.get(pagestart);
-
-                    if(pageData == null) {
-                        pageData = newPage();
-                    }
-                }
-
-                pageData[i + (int)pageoffset] = chunkData[i];
-            }
-
-            compressedChunks.put(pagestart, pageData);
-        }
-
-        memChunks = compressedChunks;
-
-
         return true;
     }
 
     public void commsEventReceived(CommsEvent e) {
     }
 
-    ArrayList<Integer> replyData = new ArrayList<Integer>();
+    public static final int VARIABLE_REPLY = -1;
+
+    // Reply handling.  The receiver runs on the port's thread and hands each
+    // complete reply to sendCommand() through replyLock.
+    final Object replyLock = new Object();
+    int[] reply = null;
+
     int recPhase = 0;
-    int msgLen = 0;
+    int recLength = 0;
+    int recPos = 0;
+    int[] recBuffer = new int[256];
 
     public void commsDataReceived(byte[] data) {
-        for (int i = 0; i < data.length; i++) {
-            int recByte = (int)data[i];
-
-            switch(recPhase) {
-                case 0: // Message start
-                    if (recByte == Resp_STK_INSYNC) {
-                        recPhase = 1;
-                    }
-                    break;
-                case 1:
-                    if (recByte == Resp_STK_OK) {
-                        replyIsAvailable=true;
-                        recPhase = 0;
-                    } else {
-                        replyData.add(recByte);
-                    }
-                    break;
+        synchronized (replyLock) {
+            for (int i = 0; i < data.length; i++) {
+                int recByte = data[i] & 0xFF;
+
+                switch(recPhase) {
+                    case 0: // Message start
+                        if (recByte == Resp_STK_INSYNC) {
+                            recPos = 0;
+                            recPhase = recLength > 0 ? 1 : 2;
+                        }
+                        break;
+                    case 1: // Fixed length data
+                        recBuffer[recPos++] = recByte;
+                        if (recPos == recLength) {
+                            recPhase = 2;
+                        }
+                        break;
+                    case 2: // End of reply, or variable length data
+                        if (recByte == Resp_STK_OK) {
+                            reply = Arrays.copyOf(recBuffer, recPos);
+                            recPhase = 0;
+                            replyLock.notifyAll();
+                        } else if (recLength == VARIABLE_REPLY) {
+                            if (recPos == recBuffer.length) {
+                                recBuffer = Arrays.copyOf(recBuffer, recPos * 2);
+                            }
+                            recBuffer[recPos++] = recByte;
+                        } else {
+                            recPhase = 0;
+                        }
+                        break;
+                }
             }
         }
     }
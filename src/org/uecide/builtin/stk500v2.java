@@ -34,9 +34,12 @@ import org.uecide.*;
 import java.util.*;
 import java.io.*;
 
+import uk.co.majenko.hexfile.*;
+
 public class stk500v2 extends BuiltinCommand implements CommsListener {
 
-    boolean replyIsAvailable = false;
+    public static final int MESSAGE_START = 0x1B;
+    public static final int TOKEN = 0x0E;
 
     String portName = null;
     CommunicationPort port;
@@ -73,7 +76,7 @@ public class stk500v2 extends BuiltinCommand implements CommsListener {
 
     public static final int STATUS_CMD_OK              = 0x00;
 
-    TreeMap<Long, int[]>memChunks;
+    TreeMap<Long, byte[]> memChunks;
 
     public static long pageSize = 256;
 
@@ -96,7 +99,7 @@ public class stk500v2 extends BuiltinCommand implements CommsListener {
             ctx.error(e);
         }
 
-        if(loadHexFile(new File(fle))) {
+        if(!loadHexFile(new File(fle))) {
             ctx.error(Base.i18n.string("err.notfound", fle));
             return false;
         }
@@ -108,20 +111,32 @@ public class stk500v2 extends BuiltinCommand implements CommsListener {
 
         String dn = getDeviceName();
 
+        String deviceKey = FlashImageCache.getDeviceKey(port, ctx.getBoard());
+
         enterProgMode();
-        uploadProgram();
+
+        TreeMap<Long, byte[]> pages = FlashImageCache.selectPages(ctx, deviceKey, pageSize, memChunks, new FlashImageCache.PageReader() {
+            public byte[] readPage(long address, int length) {
+                return readFlash(address, length);
+            }
+        });
+
+        boolean ok = uploadProgram(pages);
         leaveProgMode();
         disconnect();
-        return true;
-    }
 
-    public int[] newPage() {
-        int[] page = new int[(int)pageSize];
+        FlashImageCache.uploadFinished(deviceKey, pageSize, memChunks, ok);
+        return ok;
+    }
 
-        for(int i = 0; i < (int)pageSize; i++) {
-            page[i] = 0xff;
-        }
+    /*! The image loaded by loadHexFile(), split into pages. */
+    public TreeMap<Long, byte[]> getPages() {
+        return memChunks;
+    }
 
+    public byte[] newPage() {
+        byte[] page = new byte[(int)pageSize];
+        Arrays.fill(page, (byte)0xFF);
         return page;
     }
 
@@ -141,12 +156,10 @@ public class stk500v2 extends BuiltinCommand implements CommsListener {
 
         port = null;
         for (CommunicationPort p : Base.communicationPorts) {
-System.err.println(p.toString());
             if (p.toString().equals(portName)) {
                 port = p;
             }
         }
-System.err.println("Port: " + port);
         if (port == null) {
             ctx.error("Unable to find port " + portName);
             return false;
@@ -167,7 +180,7 @@ System.err.println("Port: " + port);
         port.pulseLine();
 
         int tries = 10;
-        ArrayList<Integer> rv = null;
+        int[] rv = null;
 
         while(tries > 0 && rv == null) {
             rv = sendCommand(new int[] {CMD_SIGN_ON});
@@ -189,13 +202,13 @@ System.err.println("Port: " + port);
             return false;
         }
 
-        if(rv.get(0) != CMD_SIGN_ON) {
+        if(rv[0] != CMD_SIGN_ON) {
             connected = false;
             port.closePort();
             return false;
         }
 
-        int status = rv.get(1);
+        int status = rv[1];
 
         if(status != STATUS_CMD_OK) {
             connected = false;
@@ -203,14 +216,16 @@ System.err.println("Port: " + port);
             return false;
         }
 
-        int rlen = rv.get(2);
+        int rlen = Math.min(rv[2], rv.length - 3);
 
-        deviceName = "";
+        StringBuilder dn = new StringBuilder();
 
         for(int i = 0; i < rlen; i++) {
-            deviceName += Character.toString((char)((int)rv.get(3 + i)));
+            dn.append((char)rv[3 + i]);
         }
 
+        deviceName = dn.toString();
+
         connected = true;
 
         return true;
@@ -225,44 +240,43 @@ System.err.println("Port: " + port);
         return deviceName;
     }
 
-    public ArrayList<Integer> sendCommand(int[] command) {
-        replyIsAvailable = false;
-        try {
-            int checksum = 0;
-            port.write((byte)0x1B);
-            checksum ^= 0x1B;
-            port.write((byte)(sequence & 0xFF));
-            checksum ^= sequence;
-            port.write((byte)((command.length >> 8) & 0xFF));
-            checksum ^= ((command.length >> 8) & 0xFF);
-            port.write((byte)(command.length & 0xFF));
-            checksum ^= (command.length & 0xFF);
-            port.write((byte)0x0E);
-            checksum ^= 0x0E;
-
-            for(int i = 0; i < command.length; i++) {
-                port.write((byte)(command[i] & 0xFF));
-System.err.println(String.format("> [%02X]", command[i]));
-                checksum ^= command[i];
-            }
+    /*! Send a command to the bootloader and wait for its answer.  The whole
+     *  frame is encoded into one buffer and written in a single call, and the
+     *  wait ends as soon as the reply has been received.  The body of the reply
+     *  is returned, or null if nothing valid arrived within the timeout.
+     */
+    public int[] sendCommand(int[] command) {
+        byte[] frame = encodeFrame(sequence, command);
 
-            port.write((byte)(checksum & 0xFF));
+        synchronized (replyLock) {
+            expectedSequence = sequence;
+            reply = null;
+        }
 
-            sequence++;
+        sequence = (sequence + 1) & 0xFF;
 
-            int to = 0;
-            while (!replyIsAvailable) {
-                Thread.sleep(10);
-                to++;
-                if (to > 100) {
-System.err.println("Timeout");
-                    return null;
-                }
+        if (Debug.isEnabled(Debug.TRACE)) {
+            Debug.log(Debug.TRACE, "stk500v2 > " + toHex(frame, frame.length));
+        }
+
+        try {
+            if (!port.write(frame)) {
+                return null;
             }
-System.err.println("Reply: " + replyData.get(1));
 
-            return replyData;
+            long end = System.currentTimeMillis() + timeout;
 
+            synchronized (replyLock) {
+                while (reply == null) {
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        Debug.message("stk500v2: timeout waiting for reply to command " + command[0]);
+                        return null;
+                    }
+                    replyLock.wait(remaining);
+                }
+                return reply;
+            }
         } catch(Exception e) {
             Base.exception(e);
             ctx.error(e);
@@ -270,18 +284,55 @@ System.err.println("Reply: " + replyData.get(1));
         }
     }
 
+    /*! Build a complete STK500v2 message around a command body:
+     *  MESSAGE_START, sequence, size (2 bytes), TOKEN, body, checksum.
+     */
+    public static byte[] encodeFrame(int seq, int[] command) {
+        int len = command.length;
+        byte[] frame = new byte[len + 6];
+
+        frame[0] = (byte)MESSAGE_START;
+        frame[1] = (byte)seq;
+        frame[2] = (byte)(len >> 8);
+        frame[3] = (byte)len;
+        frame[4] = (byte)TOKEN;
+
+        for (int i = 0; i < len; i++) {
+            frame[5 + i] = (byte)command[i];
+        }
+
+        int checksum = 0;
+        for (int i = 0; i < len + 5; i++) {
+            checksum ^= frame[i];
+        }
+        frame[len + 5] = (byte)checksum;
+
+        return frame;
+    }
+
+    static String toHex(byte[] data, int len) {
+        StringBuilder sb = new StringBuilder(len * 3);
+        for (int i = 0; i < len; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(String.format("%02X", data[i] & 0xFF));
+        }
+        return sb.toString();
+    }
+
     public boolean setParameter(int param, int val) {
         if(!connected) {
             return false;
         }
 
-        ArrayList<Integer> rv = sendCommand(new int[] {CMD_SET_PARAMETER, param, val});
+        int[] rv = sendCommand(new int[] {CMD_SET_PARAMETER, param, val});
 
         if(rv == null) {
             return false;
         }
 
-        if(rv.get(1) == STATUS_CMD_OK) {
+        if(rv[1] == STATUS_CMD_OK) {
             return true;
         }
 
@@ -293,14 +344,14 @@ System.err.println("Reply: " + replyData.get(1));
             return 0;
         }
 
-        ArrayList<Integer> rv = sendCommand(new int[] {CMD_GET_PARAMETER, param});
+        int[] rv = sendCommand(new int[] {CMD_GET_PARAMETER, param});
 
         if(rv == null) {
             return 0;
         }
 
-        if(rv.get(1) == STATUS_CMD_OK) {
-            return rv.get(2);
+        if(rv[1] == STATUS_CMD_OK) {
+            return rv[2];
         }
 
         return 0;
@@ -311,13 +362,13 @@ System.err.println("Reply: " + replyData.get(1));
             return false;
         }
 
-        ArrayList<Integer> rv = sendCommand(new int[] {CMD_OSCCAL});
+        int[] rv = sendCommand(new int[] {CMD_OSCCAL});
 
         if(rv == null) {
             return false;
         }
 
-        if(rv.get(1) == STATUS_CMD_OK) {
+        if(rv[1] == STATUS_CMD_OK) {
             return true;
         }
 
@@ -325,19 +376,33 @@ System.err.println("Reply: " + replyData.get(1));
     }
 
     public boolean uploadProgram() {
+        return uploadProgram(memChunks);
+    }
+
+    /*! Program a set of pages from the image.  Addresses after the first
+     *  load are relative to the start of the whole image.
+     */
+    public boolean uploadProgram(TreeMap<Long, byte[]> pages) {
         if(!connected) {
             return false;
         }
 
-        boolean firstrun = true;
+        if(memChunks.isEmpty()) {
+            return true;
+        }
 
-        long currentAddress = 0;
-        long offset = 0;
+        long offset = memChunks.firstKey();
+        long currentAddress = offset;
 
-        int numberOfChunks = memChunks.keySet().size();
+        if(!loadAddress(offset)) {
+            ctx.error(String.format("Load Address failed at address 0x%08x", offset));
+            return false;
+        }
+
+        int numberOfChunks = pages.size();
         int currentChunk = 0;
 
-        for(Long start : memChunks.keySet()) {
+        for(Long start : pages.keySet()) {
 
             int perc = currentChunk * 100 / numberOfChunks;
             if (ctx.getSketch() != null) {
@@ -346,27 +411,15 @@ System.err.println("Reply: " + replyData.get(1));
 
             currentChunk ++;
 
-            
-            if(firstrun) {
-                currentAddress = start;
-                offset = start;
-
-                if(!loadAddress(currentAddress)) {
-                    ctx.error(String.format("Load Address failed at address 0x%08x", currentAddress));
+            if (start != currentAddress) {
+                if(!loadAddress(start - offset)) {
+                    ctx.error(String.format("Load Address failed at address 0x%08x", start - offset));
                     return false;
                 }
-
-                firstrun = false;
-                currentAddress += pageSize;
-                continue;
-            }
-
-            if (start != currentAddress) {
-                loadAddress(start - offset);
                 currentAddress = start;
             }
 
-            int[] chunk = memChunks.get(start);
+            byte[] chunk = pages.get(start);
 
             if(!uploadPage(chunk))
                 return false;
@@ -377,7 +430,7 @@ System.err.println("Reply: " + replyData.get(1));
         return true;
     }
 
-    public boolean uploadPage(int[] data) {
+    public boolean uploadPage(byte[] data) {
         int[] message = new int[data.length + 10];
         int len = data.length;
         message[0] = CMD_PROGRAM_FLASH_ISP;
@@ -392,17 +445,17 @@ System.err.println("Reply: " + replyData.get(1));
         message[9] = 0xFF; // 0x00
 
         for(int i = 0; i < len; i++) {
-            message[10 + i] = data[i];
+            message[10 + i] = data[i] & 0xFF;
         }
 
-        ArrayList<Integer> rv = sendCommand(message);
+        int[] rv = sendCommand(message);
 
         if(rv == null) {
             ctx.error("Upload failed");
             return false;
         }
 
-        if(rv.get(1) != STATUS_CMD_OK) {
+        if(rv[1] != STATUS_CMD_OK) {
             ctx.error("Upload failed");
             return false;
         }
@@ -410,6 +463,32 @@ System.err.println("Reply: " + replyData.get(1));
         return true;
     }
 
+    /*! Read *length* bytes of flash starting at *address*.  Only images that
+     *  start at address 0 can be read back, since the others rely on the
+     *  address being relative to a base set when programming starts.
+     */
+    public byte[] readFlash(long address, int length) {
+        if(!connected || memChunks.isEmpty() || (memChunks.firstKey() != 0) || (address > 65535)) {
+            return null;
+        }
+
+        if(!loadAddress(address)) {
+            return null;
+        }
+
+        int[] rv = sendCommand(new int[] {CMD_READ_FLASH_ISP, (length >> 8) & 0xFF, length & 0xFF, 0x20});
+
+        if((rv == null) || (rv.length < length + 3) || (rv[1] != STATUS_CMD_OK)) {
+            return null;
+        }
+
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++) {
+            data[i] = (byte)rv[2 + i];
+        }
+        return data;
+    }
+
     public boolean loadAddress(long address) {
         if(!connected) {
             return false;
@@ -424,40 +503,40 @@ System.err.println("Reply: " + replyData.get(1));
             int a2 = (int)((address >> 16) & 0xFFL);
             int a3 = (int)((address >> 24) & 0xFFL);
 
-            ArrayList<Integer> rv = sendCommand(new int[] {CMD_LOAD_ADDRESS, a3, a2, a1, a0});
+            int[] rv = sendCommand(new int[] {CMD_LOAD_ADDRESS, a3, a2, a1, a0});
 
             if(rv == null) {
                 return false;
             }
 
-            if(rv.get(1) == STATUS_CMD_OK) {
+            if(rv[1] == STATUS_CMD_OK) {
                 return true;
             }
 
             return false;
         } else {
             //int[] rv = sendCommand(new int[] {CMD_LOAD_ADDRESS, 0x80, 0x00, 0x00, 0x00});
-            ArrayList<Integer> rv = sendCommand(new int[] {CMD_LOAD_ADDRESS, 0x00, 0x00, 0x00, 0x00});
+            int[] rv = sendCommand(new int[] {CMD_LOAD_ADDRESS, 0x00, 0x00, 0x00, 0x00});
 
             if(rv == null) {
                 return false;
             }
 
-            if(rv.get(1) != STATUS_CMD_OK) {
+            if(rv[1] != STATUS_CMD_OK) {
                 return false;
             }
 
-            int[] page = newPage();
+            byte[] page = newPage();
 
             int a0 = (int)(address & 0xFFL);
             int a1 = (int)((address >> 8) & 0xFFL);
             int a2 = (int)((address >> 16) & 0xFFL);
             int a3 = (int)((address >> 24) & 0xFFL);
 
-            page[0xf8] = a0;
-            page[0xf9] = a1;
-            page[0xfa] = a2;
-            page[0xfb] = a3;
+            page[0xf8] = (byte)a0;
+            page[0xf9] = (byte)a1;
+            page[0xfa] = (byte)a2;
+            page[0xfb] = (byte)a3;
             return uploadPage(page);
         }
     }
@@ -467,7 +546,7 @@ System.err.println("Reply: " + replyData.get(1));
             return false;
         }
 
-        ArrayList<Integer> rv = sendCommand(new int[] {
+        int[] rv = sendCommand(new int[] {
                                    CMD_ENTER_PROGMODE_ISP,
                                    200,
                                    100,
@@ -486,7 +565,7 @@ System.err.println("Reply: " + replyData.get(1));
             return false;
         }
 
-        if(rv.get(1) == STATUS_CMD_OK) {
+        if(rv[1] == STATUS_CMD_OK) {
             return true;
         }
 
@@ -498,14 +577,14 @@ System.err.println("Reply: " + replyData.get(1));
             return false;
         }
 
-        ArrayList<Integer> rv = sendCommand(new int[] { CMD_LEAVE_PROGMODE_ISP, 1, 1});
+        int[] rv = sendCommand(new int[] { CMD_LEAVE_PROGMODE_ISP, 1, 1});
 
         if(rv == null) {
             ctx.error("Timeout leaving programming mode!");
             return false;
         }
 
-        if(rv.get(1) != STATUS_CMD_OK) {
+        if(rv[1] != STATUS_CMD_OK) {
             ctx.error("Error leaving programming mode!");
             return false;
         }
@@ -513,144 +592,6 @@ System.err.println("Reply: " + replyData.get(1));
         return true;
     }
 
-    static class HexRecord {
-        int length = 0;
-        long address = 0;
-        int type = 0;
-        int[] data = null;
-        int checksum = 0;
-
-        String lineBuffer = "";
-
-        public final static int Data = 0x00;
-        public final static int EoF = 0x01;
-        public final static int ExtendedSegmentAddress = 0x02;
-        public final static int StartSegmentAddress = 0x03;
-        public final static int ExtendedLinearAddress = 0x04;
-        public final static int StartLinearAddress = 0x05;
-
-        public HexRecord(String line) {
-            if(line.startsWith(":")) {
-                lineBuffer = line.substring(1);
-
-                length = shiftHex();
-                int a0 = shiftHex();
-                int a1 = shiftHex();
-                address = ((a0  << 8) | a1) & 0xFFFF;
-                type = shiftHex();
-                data = new int[length];
-
-                for(int i = 0; i < length; i++) {
-                    data[i] = shiftHex();
-                }
-
-                checksum = shiftHex();
-            }
-        }
-
-        public int getLength() {
-            return (int)length;
-        }
-        public long getAddress() {
-            return address;
-        }
-        public int[] getData() {
-            return data;
-        }
-        public int getChecksum() {
-            return checksum;
-        }
-        public int getType() {
-            return type;
-        }
-
-        private int shiftHex() {
-            if(lineBuffer.length() < 2) {
-                return 0;
-            }
-
-            char c0 = lineBuffer.charAt(0);
-            char c1 = lineBuffer.charAt(1);
-            lineBuffer = lineBuffer.substring(2);
-
-            int b = (h2d(c0) << 4) | h2d(c1);
-            return b;
-
-        }
-
-        private int h2d(char c) {
-            switch(c) {
-            case '0':
-                return 0;
-
-            case '1':
-                return 1;
-
-            case '2':
-                return 2;
-
-            case '3':
-                return 3;
-
-            case '4':
-                return 4;
-
-            case '5':
-                return 5;
-
-            case '6':
-                return 6;
-
-            case '7':
-                return 7;
-
-            case '8':
-                return 8;
-
-            case '9':
-                return 9;
-
-            case 'a':
-                return 10;
-
-            case 'A':
-                return 10;
-
-            case 'b':
-                return 11;
-
-            case 'B':
-                return 11;
-
-            case 'c':
-                return 12;
-
-            case 'C':
-                return 12;
-
-            case 'd':
-                return 13;
-
-            case 'D':
-                return 13;
-
-            case 'e':
-                return 14;
-
-            case 'E':
-                return 14;
-
-            case 'f':
-                return 15;
-
-            case 'F':
-                return 15;
-            }
-
-            return 0;
-        }
-    }
-
     public int unsigned_byte(byte b) {
         return (int)b & 0xFF;
     }
@@ -659,166 +600,103 @@ System.err.println("Reply: " + replyData.get(1));
         return (long)b & 0xFFFFFFFFL;
     }
 
+    /*! Load a HEX file and split it into pages of pageSize bytes.  Any gaps
+     *  within a page are filled with 0xFF.
+     */
     public boolean loadHexFile(File hexFile) {
-        long baseAddress = 0;
-        long fullAddress = 0;
-        long segmentAddress = 0;
-        long recordAddress = 0;
-        long currentAddress = 0;
-
-        memChunks = new TreeMap<Long, int[]>();
-        int b0;
-        int b1;
-        int[] data;
-        int tint;
-
-        InputStream fis;
-        BufferedReader br;
-        String line;
-
         try {
-            fis = new FileInputStream(hexFile);
-            br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
-
-            while((line = br.readLine()) != null) {
-                if(!line.startsWith(":")) {
-                    continue;
-                }
-
-                HexRecord hr = new HexRecord(line);
-
-                switch(hr.getType()) {
-                case HexRecord.Data:
-                    recordAddress = hr.getAddress();
-                    fullAddress = baseAddress + (recordAddress + segmentAddress);
-                    memChunks.put((Long)fullAddress, (int[])hr.getData());
-                    break;
-
-                case HexRecord.EoF:
-                    break;
-
-                case HexRecord.ExtendedSegmentAddress:
-                    data = hr.getData();
-                    segmentAddress = (data[0] << 8) | data[1];
-                    segmentAddress *= 16;
-                    break;
-
-                case HexRecord.StartSegmentAddress:
-                    // Not supported
-                    break;
-
-                case HexRecord.ExtendedLinearAddress:
-                    data = hr.getData();
-                    baseAddress = ((data[0] << 24) | (data[1] << 16));
-                    break;
-
-                case HexRecord.StartLinearAddress:
-                    // Not supported
-                    break;
-                default:
-                    break;
-                }
-            }
-
-            br.close();
+            memChunks = new MemoryImage(hexFile).getPages((int)pageSize, (byte)0xFF);
         } catch(Exception e) {
             Base.exception(e);
             ctx.error(e);
             return false;
         }
 
-        // Now let's see about coalescing the chunks into big blocks, each of a page in size.
-
-        TreeMap<Long, int[]> compressedChunks = new TreeMap<Long, int[]>();
-
-        for(Long start : memChunks.keySet()) {
-            int[] chunkData = memChunks.get(start);
-
-            long pagestart = start & ~(pageSize - 1L);
-
-
-            int[] pageData = compressedChunks.get(pagestart);
-
-            if(pageData == null) {
-                pageData = newPage();
-            }
-
-            long pageoffset = start - pagestart;
-
-            for(int i = 0; i < chunkData.length; i++) {
-                if(pageoffset + i == pageSize) {
-                    compressedChunks.put(pagestart, pageData);
-                    pagestart += pageSize;
-                    pageoffset = 0;
-                    pageData = compressedChunks.get(pagestart);
-
-                    if(pageData == null) {
-                        pageData = newPage();
-                    }
-                }
-
-                pageData[i + (int)pageoffset] = chunkData[i];
-            }
-
-            compressedChunks.put(pagestart, pageData);
-        }
-
-        memChunks = compressedChunks;
-
-
         return true;
     }
 
     public void commsEventReceived(CommsEvent e) {
     }
 
-    ArrayList<Integer> replyData = new ArrayList<Integer>();
+    // Reply handling.  The receiver runs on the port's thread and hands each
+    // complete, valid reply to sendCommand() through replyLock.
+    final Object replyLock = new Object();
+    int[] reply = null;
+    int expectedSequence = -1;
+
     int recPhase = 0;
-    int msgLen = 0;
+    int recSequence = 0;
+    int recLength = 0;
+    int recPos = 0;
+    int recChecksum = 0;
+    int[] recBuffer = new int[512];
 
     public void commsDataReceived(byte[] data) {
-        for (int i = 0; i < data.length; i++) {
-            int recByte = (int)data[i];
+        if (Debug.isEnabled(Debug.TRACE)) {
+            Debug.log(Debug.TRACE, "stk500v2 < " + toHex(data, data.length));
+        }
 
-System.err.println(String.format("< [%02X]", recByte));
+        for (int i = 0; i < data.length; i++) {
+            int recByte = data[i] & 0xFF;
 
             switch(recPhase) {
                 case 0: // Message start
-                    if (recByte == 0x1B) {
+                    if (recByte == MESSAGE_START) {
+                        recChecksum = recByte;
                         recPhase = 1;
                     }
                     break;
-                case 1: // Seqno
-                    // Ignore sequence numbers
+                case 1: // Sequence number
+                    recSequence = recByte;
+                    recChecksum ^= recByte;
                     recPhase = 2;
                     break;
-                case 2: // Message size
-                    msgLen = recByte;
+                case 2: // Message size, high byte
+                    recLength = recByte << 8;
+                    recChecksum ^= recByte;
                     recPhase = 3;
                     break;
-                case 3: // Token
-                    if (recByte == 0x0E) {
-                        recPhase = 4;
-                        replyData = new ArrayList<Integer>();
+                case 3: // Message size, low byte
+                    recLength |= recByte;
+                    recChecksum ^= recByte;
+                    recPhase = 4;
+                    break;
+                case 4: // Token
+                    if (recByte == TOKEN) {
+                        recChecksum ^= recByte;
+                        if (recBuffer.length < recLength) {
+                            recBuffer = new int[recLength];
+                        }
+                        recPos = 0;
+                        recPhase = recLength > 0 ? 5 : 6;
                     } else {
                         recPhase = 0;
                     }
                     break;
-                case 4:
-                    replyData.add(recByte);
-                    if (replyData.size() == msgLen) {
-                        recPhase = 5;
+                case 5: // Message body
+                    recBuffer[recPos++] = recByte;
+                    recChecksum ^= recByte;
+                    if (recPos == recLength) {
+                        recPhase = 6;
                     }
                     break;
-                case 5:
-                    replyIsAvailable=true;
+                case 6: // Checksum
                     recPhase = 0;
+                    if (recByte != (recChecksum & 0xFF)) {
+                        Debug.message("stk500v2: bad checksum on reply");
+                        break;
+                    }
+                    synchronized (replyLock) {
+                        if (recSequence == expectedSequence) {
+                            reply = Arrays.copyOf(recBuffer, recLength);
+                            replyLock.notifyAll();
+                        }
+                    }
                     break;
             }
         }
     }
 
-
     public void kill() {
     }
 }
@@ -25,6 +25,8 @@ public class ardublock extends JPanel implements EditorBase {
     Workspace workspace;
 
     com.ardublock.core.Context context;
+    volatile String generatedCode = null;
+    volatile int changes = 0;
 
     public ardublock(Sketch s, File f, Editor e) {
         sketch = s;
@@ -43,6 +45,8 @@ public class ardublock extends JPanel implements EditorBase {
             public void workspaceEventOccurred(WorkspaceEvent e) {
                 context.setWorkspaceChanged(true);
                 context.resetHightlightBlock();
+                changes++;
+                generatedCode = null;
             }
         });
 
@@ -59,7 +63,19 @@ public class ardublock extends JPanel implements EditorBase {
 
     public boolean isModified() { return context.isWorkspaceChanged(); }
 
-    public String getText() { return generateCode(context, editor); }
+    // The code is only generated again after the workspace has changed.
+    public synchronized String getText() {
+        String code = generatedCode;
+        if (code == null) {
+            int before = changes;
+            code = generateCode(context, editor);
+            // Don't keep it if the workspace changed while we were working.
+            if (changes == before) {
+                generatedCode = code;
+            }
+        }
+        return code;
+    }
 
     public void setText(String text) {}
 
@@ -94,6 +110,8 @@ public class ardublock extends JPanel implements EditorBase {
         try {
             context.loadArduBlockFile(file);
             context.setWorkspaceChanged(false);
+            changes++;
+            generatedCode = null;
         } catch (Exception e) {
             Base.exception(e);
         }
@@ -26,7 +26,6 @@ import org.fife.ui.rsyntaxtextarea.folding.*;
 
 public class ElfInspector extends Plugin {
 
-    public RandomAccessFile elf;
     static String types[] = {
         "None", "Relocatable", "Executable", "Shared Object", "Core"
     };
@@ -69,399 +68,22 @@ public class ElfInspector extends Plugin {
         "Null", "Program code", "Symbol table", "String table", "Relocation entries", "Symbol hash table", "Dynamic linking information", "Note", "Empty data", "Relocation entries", "Reserved", "Dynamic symbol table"
     };
 
-    public class Elf {
-        public int     e_type;
-        public int     e_machine;
-        public long    e_version;
-        public long    e_entry;
-        public long    e_phoff;
-        public long    e_shoff;
-        public long    e_flags;
-        public int     e_ehsize;
-        public int     e_phentsize;
-        public int     e_phnum;
-        public int     e_shentsize;
-        public int     e_shnum;
-        public int     e_shstrndx;
-
-        public byte     ei_class;
-        public byte     ei_data;
-        public byte     ei_version;
-        public byte     ei_osabi;
-        public byte     ei_abiversion;
-
-        public long     p_type;
-        public long     p_offset;
-        public long     p_vaddr;
-        public long     p_paddr;
-        public long     p_filesz;
-        public long     p_memsz;
-        public long     p_flags;
-        public long     p_align;
-
-        public long     shst_name;
-        public long     shst_type;
-        public long     shst_flags;
-        public long     shst_addr;
-        public long     shst_offset;
-        public long     shst_size;
-        public long     shst_link;
-        public long     shst_info;
-        public long     shst_addralign;
-        public long     shst_entsize;
-
-        RandomAccessFile file;
-
-        public class Symbol implements Comparable {
-            public String name;
-            public long offset;
-
-            public long     st_name;
-            public long     st_value;
-            public long     st_size;
-            public byte     st_info;
-            public byte     st_other;
-            public int      st_shndx;
-
-            public Symbol(long off) {
-                try {
-                    file.seek(off);
-                    st_name = readInt();
-                    st_value = readInt();
-                    st_size = readInt();
-                    st_info = readByte();
-                    st_other = readByte();
-                    st_shndx = readShort();
-                    offset = off;
-                    if (st_name > 0) {
-                        name = loadString(".strtab", st_name);
-                    } else {
-                        name = "";
-                    }
-                } catch (Exception e) {
-                    Base.exception(e);
-                    Base.error(e);
-                }
-            }
-            public Section getSection() {
-                for (Section s : sections.values()) {
-                    if (st_value >= s.sh_addr && st_value < s.sh_addr + s.sh_size) {
-                        return s;
-                    }
-                }
-                return null;
-            }
-            public String toString() {
-                Section s = getSection();
-                if (s != null) {
-                    return String.format("%20s 0x%08X 0x%08X %s", s.name, (int)st_value, (int)st_size, name);
-                } else {
-                    return String.format("%20s 0x%08X 0x%08X %s", "", (int)st_value, (int)st_size, name);
-                }
-            }
-
-            public int compareTo(Object o) {
-                if (!(o instanceof Symbol)) {
-                    return 0;
-                }
-                Symbol s = (Symbol)o;
-                Long me = st_size;
-                Long other = s.st_size;
-                if (me.equals(other)) {
-                    me = s.st_value;
-                    other = st_value;
-                }
-                return me.compareTo(other);
-            }
-        }
-
-        public class Section implements Comparable {
-            
-            public long offset;
-            public long     sh_name;
-            public long     sh_type;
-            public long     sh_flags;
-            public long     sh_addr;
-            public long     sh_offset;
-            public long     sh_size;
-            public long     sh_link;
-            public long     sh_info;
-            public long     sh_addralign;
-            public long     sh_entsize;
-
-            public String   name;
-            
-            public Section(long off) {
-                try {
-                    offset = off;
-                    file.seek(offset);
-                    sh_name = readInt();
-                    sh_type = readInt();
-                    sh_flags = readInt();
-                    sh_addr = readInt();
-                    sh_offset = readInt();
-                    sh_size = readInt();
-                    sh_link = readInt();
-                    sh_info = readInt();
-                    sh_addralign = readInt();
-                    sh_entsize = readInt();
-                    name = loadString(sh_name);
-                } catch (Exception e) {
-                    Base.exception(e);
-                    Base.error(e);
-                }
-            }
-
-            public void seek() {
-                try {
-                    file.seek(offset);
-                } catch (Exception e) {
-                    Base.exception(e);
-                    Base.error(e);
-                } 
-            }
-
-            public String toString() {
-                return name;
-            }
-
-            public int compareTo(Object o) {
-                if (!(o instanceof Section)) {
-                    return 0;
-                }
-                Section s = (Section)o;
-                return name.compareTo(s.name);
-            }
-        }
-
-        public HashMap<String, Section> sections;
-        public ArrayList<Symbol> symbols;
-
-        public Elf(RandomAccessFile f) {
-            file = f;
-            try {
-                file.seek(4);
-                ei_class = readByte();   // File class
-                ei_data = readByte();    // Data encoding
-                ei_version = readByte(); // File version
-                ei_osabi = readByte(); // ABI
-                ei_abiversion = readByte(); // ABI Version
-
-                file.seek(16);
-
-                e_type = readShort();
-                e_machine = readShort();
-                e_version = readInt();
-                e_entry = readInt();
-                e_phoff = readInt();
-                e_shoff = readInt();
-                e_flags = readInt();
-                e_ehsize = readShort();
-                e_phentsize = readShort();
-                e_phnum = readShort();
-                e_shentsize = readShort();
-                e_shnum = readShort();
-                e_shstrndx = readShort();
-
-                loadStringTableHeader();
-
-                sections = new HashMap<String, Section>();
-                
-                for (int i = 0; i < e_shnum; i++) {
-                    long offset = e_shoff + (i * e_shentsize);
-                    Section s = new Section(offset);
-                    sections.put(s.name, s);
-                }
-
-                Section symtab = sections.get(".symtab");
-
-                symbols = new ArrayList<Symbol>();
-                long recs = symtab.sh_size / symtab.sh_entsize;
-                for (long l = 0; l < recs; l++) {
-                    long pos = symtab.sh_offset + (l * symtab.sh_entsize);
-                    Symbol sym = new Symbol(pos);
-                    symbols.add(sym);
-                }
-
-            } catch (Exception e) {
-                Base.exception(e);
-                Base.error(e);
-            }
-        }
-
-        public void loadProgramHeader(long offset) {
-            try {
-                file.seek(offset);
-                p_type = readInt();
-                p_offset = readInt();
-                p_vaddr = readInt();
-                p_paddr = readInt();
-                p_filesz = readInt();
-                p_memsz = readInt();
-                p_flags = readInt();
-                p_align = readInt();
-            } catch (Exception e) {
-                Base.exception(e);
-                Base.error(e);
-            }
-        }
-
-        public void loadStringTableHeader() {
-            try {
-                long offset = e_shoff + (e_shstrndx * e_shentsize);
-                file.seek(offset);
-                shst_name = readInt();
-                shst_type = readInt();
-                shst_flags = readInt();
-                shst_addr = readInt();
-                shst_offset = readInt();
-                shst_size = readInt();
-                shst_link = readInt();
-                shst_info = readInt();
-                shst_addralign = readInt();
-                shst_entsize = readInt();
-            } catch (Exception e) {
-                Base.exception(e);
-                Base.error(e);
-            }
-        }
+    static String formatSymbol(ElfFile.Symbol s) {
+        ElfFile.Section sec = s.getSection();
+        return String.format("%20s 0x%08X 0x%08X %s", sec == null ? "" : sec.getName(), (int)s.getValue(), (int)s.getSize(), s.getName());
+    }
 
-        public Byte readByte() {
-            try {
-                return file.readByte();
-            } catch (Exception e) {
-                Base.exception(e);
-                Base.error(e);
+    // Biggest symbols first, then in address order.
+    static class SymbolOrder implements Comparator<ElfFile.Symbol> {
+        public int compare(ElfFile.Symbol a, ElfFile.Symbol b) {
+            if (a.getSize() != b.getSize()) {
+                return a.getSize() > b.getSize() ? -1 : 1;
             }
-            return 0;
-        }
-
-        public Integer readShort() {
-            try {
-                if (ei_data == 2) {
-                    return (int)file.readShort();
-                }
-                byte b1 = readByte();
-                byte b2 = readByte();
-                int s = ((b2 << 8) | b1) & 0xFFFF;
-                return s;
-            } catch (Exception e) {
-                Base.exception(e);
-                Base.error(e);
+            if (a.getValue() != b.getValue()) {
+                return a.getValue() < b.getValue() ? -1 : 1;
             }
             return 0;
         }
-
-        public Long readInt() {
-            try {
-                if (ei_data == 2) {
-                    return (long)file.readInt();
-                }
-                byte b1 = readByte();
-                byte b2 = readByte();
-                byte b3 = readByte();
-                byte b4 = readByte();
-                long l1 = (b4 << 24) & 0xFF000000;
-                long l2 = (b3 << 16) & 0x00FF0000;
-                long l3 = (b2 << 8) & 0x0000FF00;
-                long l4 = (b1) & 0x000000FF;
-                long l = (l1 | l2 | l3 | l4) & 0xFFFFFFFF;
-                return l;
-            } catch (Exception e) {
-                Base.exception(e);
-                Base.error(e);
-            }
-            return (long)0;
-        }
-
-        public String loadString(String table, long index) {
-            try {
-                Section sec = sections.get(table);
-                if (sec == null) {
-                    return "";
-                }
-                long offset = sec.sh_offset + index;
-                file.seek(offset);
-                String out = "";
-                byte b = readByte();
-                char c = ((char)b);
-                while (c != '\0') {
-                    out += c;
-                    b = readByte();
-                    c = ((char)b);
-                }
-                return out;
-            } catch (Exception e) {
-                Base.exception(e);
-                Base.error(e);
-            }
-            return "";
-        }
-
-        public String loadString(long index) {
-            try {
-                long offset = shst_offset + index;
-                file.seek(offset);
-                String out = "";
-                byte b = readByte();
-                char c = ((char)b);
-                while (c != '\0') {
-                    out += c;
-                    b = readByte();
-                    c = ((char)b);
-                }
-                return out;
-            } catch (Exception e) {
-                Base.exception(e);
-                Base.error(e);
-            }
-            return "";
-        }
-
-        public String dumpRawData(long offset, long start, long size) {
-            try {
-                StringBuilder out = new StringBuilder();
-                String text = "";
-
-                file.seek(start);
-
-                out.append(String.format("\t0x%08X: ", (int)(offset) & 0xFFFFFFFF));
-
-                int ctr = 0;
-                for (long i = 0; i < size; i++) {
-                    byte b = readByte();
-                    out.append(String.format("%02X ", (int)b & 0xFF));
-                    if (b < 32 || b > 126) {
-                        text += ".";
-                    } else {
-                        text += ((char)b);
-                    }
-                    ctr++;
-                    if (ctr == 16) {
-                        ctr = 0;
-                        out.append(text);
-                        text = "";
-                        out.append(String.format("\n\t0x%08X: ", (int)(offset + file.getFilePointer() - start) & 0xFFFFFFFF));
-                    }
-                }           
-                if (ctr != 0) {
-                    while (ctr < 16) {
-                        out.append("   ");
-                        text = text + " ";
-                        ctr++;
-                    }
-                    out.append(text);
-                }
-                out.append("\n");
-
-                return out.toString();
-
-            } catch (Exception e) {
-                Base.exception(e);
-                Base.error(e);
-            }
-            return "";
-        }
     }
 
     public static HashMap<String, String> pluginInfo = null;
@@ -492,15 +114,15 @@ public class ElfInspector extends Plugin {
 
                 ctx.heading("Parsing ELF file");
 
-                elf = new RandomAccessFile(filename, "r");
-                if (elf == null) {
-                    ctx.error("Unable to open " + filename);
+                ctx.bullet("Opening ELF file");
+                ElfFile elfFile = null;
+                try {
+                    elfFile = new ElfFile(new File(filename));
+                } catch (IOException ex) {
+                    ctx.error("Unable to open " + filename + ": " + ex.getMessage());
                     return;
                 }
 
-                ctx.bullet("Opening ELF file");
-                Elf elfFile = new Elf(elf);
-
                 JFrame dialog = new JFrame();
                 dialog.setLayout(new BorderLayout());
 
@@ -511,90 +133,100 @@ public class ElfInspector extends Plugin {
                 ctx.bullet("Parsing header");
 
                 sb.append("Type:    ");
-                if (elfFile.e_type < 5) {  
-                    sb.append(types[elfFile.e_type]);
+                if (elfFile.getType() < 5) {  
+                    sb.append(types[elfFile.getType()]);
                 } else {
-                    sb.append(elfFile.e_type);
+                    sb.append(elfFile.getType());
                 }
                 sb.append("\n");
 
                 sb.append("Machine: ");
-                if (elfFile.e_machine < 221) {
-                    sb.append(machines[elfFile.e_machine]);
+                if (elfFile.getMachine() < machines.length) {
+                    sb.append(machines[elfFile.getMachine()]);
                 } else {
                     sb.append("Unknown (");
-                    sb.append(elfFile.e_machine);
+                    sb.append(elfFile.getMachine());
                     sb.append(")");
                 }
                 sb.append("\n");
 
+                sb.append("Class:   ");
+                sb.append(elfFile.is64Bit() ? "64 bit" : "32 bit");
+                sb.append("\n");
+
                 sb.append("Endian:  ");
-                if (elfFile.ei_data == 1) {
-                    sb.append("Little");
-                } else if (elfFile.ei_data == 2) {
-                    sb.append("Big");
-                } else {
-                    sb.append("Invalid");
-                }
+                sb.append(elfFile.isBigEndian() ? "Big" : "Little");
                 sb.append("\n");
 
                 sb.append("Version: ");
-                sb.append(elfFile.e_version);
+                sb.append(elfFile.getVersion());
                 sb.append("\n");
 
-                if (elfFile.ei_osabi > 0) {
+                if (elfFile.getOsAbi() > 0) {
                     sb.append("ABI:     ");
-                    if (elfFile.ei_osabi < 17) {
-                        sb.append(abis[elfFile.ei_osabi]);
+                    if (elfFile.getOsAbi() < abis.length) {
+                        sb.append(abis[elfFile.getOsAbi()]);
                     } else {
                         sb.append("Unknown");
                     }
                     sb.append(" Version ");
-                    sb.append((int)elfFile.ei_abiversion);
+                    sb.append(elfFile.getAbiVersion());
                     sb.append("\n");
                 }
 
                 sb.append("Entry:   ");
-                sb.append(String.format("0x%08X", (int)elfFile.e_entry));
+                sb.append(String.format("0x%08X", (int)elfFile.getEntry()));
                 sb.append("\n");
 
                 sb.append("\n");
 
                 ctx.bullet("Parsing sections");
 
-                sb.append("Symbols:\n\n");
+                ElfFile.SizeSummary sizes = elfFile.getSizeSummary();
+                sb.append(String.format("Flash:   %d bytes (text %d, rodata %d, data %d)\n", sizes.getFlash(), sizes.text, sizes.rodata, sizes.data));
+                sb.append(String.format("RAM:     %d bytes (data %d, bss %d)\n", sizes.getRam(), sizes.data, sizes.bss));
+                sb.append("\n");
 
-                Elf.Section[] secs = elfFile.sections.values().toArray(new Elf.Section[elfFile.sections.size()]);
-                Arrays.sort(secs);
+                sb.append("Symbols:\n\n");
 
-                Elf.Symbol[] syms = elfFile.symbols.toArray(new Elf.Symbol[elfFile.symbols.size()]);
-                Arrays.sort(syms, Collections.reverseOrder());
-                for (Elf.Section sec : secs) {
+                ElfFile.Symbol[] syms = elfFile.getSymbols().toArray(new ElfFile.Symbol[0]);
+                Arrays.sort(syms, new SymbolOrder());
 
-                    boolean hasEntries = false;
-                    for (Elf.Symbol s : syms) {
-                        Elf.Section ssec = s.getSection();
-                        if ((ssec != null) && (ssec.name.equals(sec.name))) {
-                            sb.append(s);
-                            sb.append("\n");
-                            hasEntries = true;
-                        }
+                // Group the symbols by the name of their section.  Symbols
+                // with no section are listed at the end.
+                TreeMap<String, ArrayList<ElfFile.Symbol>> bySection = new TreeMap<String, ArrayList<ElfFile.Symbol>>();
+                ArrayList<ElfFile.Symbol> unplaced = new ArrayList<ElfFile.Symbol>();
+                for (ElfFile.Symbol s : syms) {
+                    ElfFile.Section ssec = s.getSection();
+                    if (ssec == null) {
+                        unplaced.add(s);
+                        continue;
                     }
-                    if (hasEntries) {
-                        sb.append("\n");
+                    ArrayList<ElfFile.Symbol> list = bySection.get(ssec.getName());
+                    if (list == null) {
+                        list = new ArrayList<ElfFile.Symbol>();
+                        bySection.put(ssec.getName(), list);
                     }
+                    list.add(s);
                 }
-                ctx.bullet("Analyzing symbols");
 
-                for (Elf.Symbol s : syms) {
-                    Elf.Section ssec = s.getSection();
-                    if (ssec == null) {
-                        sb.append(s);
+                for (ArrayList<ElfFile.Symbol> list : bySection.values()) {
+                    for (ElfFile.Symbol s : list) {
+                        sb.append(formatSymbol(s));
                         sb.append("\n");
                     }
+                    sb.append("\n");
+                }
+
+                ctx.bullet("Analyzing symbols");
+
+                for (ElfFile.Symbol s : unplaced) {
+                    sb.append(formatSymbol(s));
+                    sb.append("\n");
                 }
 
-                
+                elfFile.close();
+
                 ctx.bullet("Generating report");
                     
 
@@ -0,0 +1,444 @@
+package uk.co.majenko.hexfile;
+
+import java.util.*;
+import java.io.*;
+
+// A sparse image of a device's memory.  The address space is split into
+// 4KB pages which are only created when something is written into them.
+// Each page has a bitmap of which of its bytes have been written, so gaps
+// in the image are kept as gaps rather than being filled in.
+//
+// Intel HEX files can be read into and written out of an image without
+// creating an object per line or per byte, and the image can be sliced
+// into fixed size, filled, pages for programming.
+
+public class MemoryImage {
+
+    public static final int PAGE_BITS = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    static class Page {
+        byte[] data = new byte[PAGE_SIZE];
+        long[] present = new long[PAGE_SIZE / 64];
+        int used = 0;
+
+        boolean isPresent(int off) {
+            return (present[off >>> 6] & (1L << off)) != 0;
+        }
+
+        void set(int off, byte b) {
+            long bit = 1L << off;
+            if ((present[off >>> 6] & bit) == 0) {
+                present[off >>> 6] |= bit;
+                used++;
+            }
+            data[off] = b;
+        }
+
+        // The first offset at or after *off* that is (or, if *want* is
+        // false, isn't) present.  Returns PAGE_SIZE if there isn't one.
+        int next(int off, boolean want) {
+            while (off < PAGE_SIZE) {
+                long word = present[off >>> 6];
+                if (!want) {
+                    word = ~word;
+                }
+                word &= -1L << off;
+                if (word != 0) {
+                    return (off & ~63) + Long.numberOfTrailingZeros(word);
+                }
+                off = (off & ~63) + 64;
+            }
+            return PAGE_SIZE;
+        }
+    }
+
+    // Called for each run of contiguous bytes in the image.  The bytes are
+    // data[offset] to data[offset + length - 1], and the array must not be
+    // kept or changed.
+    public static interface RangeVisitor {
+        public void range(long address, byte[] data, int offset, int length);
+    }
+
+    TreeMap<Long, Page> pages = new TreeMap<Long, Page>();
+
+    // The last page looked up, since accesses are nearly always sequential.
+    long lastIndex = -1;
+    Page lastPage = null;
+
+    public MemoryImage() {
+    }
+
+    public MemoryImage(File f) throws IOException {
+        load(f);
+    }
+
+    Page getPage(long index, boolean create) {
+        if (index == lastIndex) {
+            return lastPage;
+        }
+        Page p = pages.get(index);
+        if (p == null) {
+            if (!create) {
+                return null;
+            }
+            p = new Page();
+            pages.put(index, p);
+        }
+        lastIndex = index;
+        lastPage = p;
+        return p;
+    }
+
+    public void set(long address, int b) {
+        getPage(address >>> PAGE_BITS, true).set((int)(address & PAGE_MASK), (byte)b);
+    }
+
+    public void set(long address, byte[] data, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            long a = address + i;
+            getPage(a >>> PAGE_BITS, true).set((int)(a & PAGE_MASK), data[offset + i]);
+        }
+    }
+
+    // Get the byte at an address, or -1 if nothing has been written there.
+    public int get(long address) {
+        Page p = getPage(address >>> PAGE_BITS, false);
+        if (p == null) {
+            return -1;
+        }
+        int off = (int)(address & PAGE_MASK);
+        if (!p.isPresent(off)) {
+            return -1;
+        }
+        return p.data[off] & 0xFF;
+    }
+
+    public boolean isPresent(long address) {
+        return get(address) != -1;
+    }
+
+    public boolean isEmpty() {
+        return pages.isEmpty();
+    }
+
+    // The number of bytes that have been written.
+    public long size() {
+        long total = 0;
+        for (Page p : pages.values()) {
+            total += p.used;
+        }
+        return total;
+    }
+
+    // The lowest address written, or -1 if the image is empty.
+    public long getStartAddress() {
+        if (pages.isEmpty()) {
+            return -1;
+        }
+        Map.Entry<Long, Page> e = pages.firstEntry();
+        return (e.getKey() << PAGE_BITS) + e.getValue().next(0, true);
+    }
+
+    // The highest address written, or -1 if the image is empty.
+    public long getEndAddress() {
+        if (pages.isEmpty()) {
+            return -1;
+        }
+        Map.Entry<Long, Page> e = pages.lastEntry();
+        Page p = e.getValue();
+        for (int w = p.present.length - 1; w >= 0; w--) {
+            if (p.present[w] != 0) {
+                return (e.getKey() << PAGE_BITS) + (w * 64) + 63 - Long.numberOfLeadingZeros(p.present[w]);
+            }
+        }
+        return -1;
+    }
+
+    // Copy everything in another image over the top of this one.
+    public void merge(MemoryImage other) {
+        other.forEachRange(new RangeVisitor() {
+            public void range(long address, byte[] data, int offset, int length) {
+                set(address, data, offset, length);
+            }
+        });
+    }
+
+    // Visit each run of contiguous bytes, in address order.  A run that
+    // crosses from one 4KB page to the next is visited as two runs.
+    public void forEachRange(RangeVisitor v) {
+        for (Map.Entry<Long, Page> e : pages.entrySet()) {
+            long base = e.getKey() << PAGE_BITS;
+            Page p = e.getValue();
+            int start = p.next(0, true);
+            while (start < PAGE_SIZE) {
+                int end = p.next(start, false);
+                v.range(base + start, p.data, start, end - start);
+                start = p.next(end, true);
+            }
+        }
+    }
+
+    // Get the runs of contiguous bytes as { start address, length } pairs,
+    // joining any that cross page boundaries.
+    public ArrayList<long[]> getRanges() {
+        final ArrayList<long[]> ranges = new ArrayList<long[]>();
+        forEachRange(new RangeVisitor() {
+            public void range(long address, byte[] data, int offset, int length) {
+                if (!ranges.isEmpty()) {
+                    long[] last = ranges.get(ranges.size() - 1);
+                    if (last[0] + last[1] == address) {
+                        last[1] += length;
+                        return;
+                    }
+                }
+                ranges.add(new long[] { address, length });
+            }
+        });
+        return ranges;
+    }
+
+    // Copy *length* bytes starting at *address* into *out*, using *fill* for
+    // anything that hasn't been written.
+    public void read(long address, byte[] out, int offset, int length, byte fill) {
+        int i = 0;
+        while (i < length) {
+            long a = address + i;
+            int off = (int)(a & PAGE_MASK);
+            int n = Math.min(length - i, PAGE_SIZE - off);
+            Page p = getPage(a >>> PAGE_BITS, false);
+            if (p == null) {
+                Arrays.fill(out, offset + i, offset + i + n, fill);
+            } else if (p.used == PAGE_SIZE) {
+                System.arraycopy(p.data, off, out, offset + i, n);
+            } else {
+                for (int j = 0; j < n; j++) {
+                    out[offset + i + j] = p.isPresent(off + j) ? p.data[off + j] : fill;
+                }
+            }
+            i += n;
+        }
+    }
+
+    // Slice the image into pages of *pageSize* bytes, each aligned to its
+    // size.  Only pages with something written in them are included, and
+    // any gaps within them are filled with *fill*.  The result is keyed by
+    // the start address of each page.
+    public TreeMap<Long, byte[]> getPages(final int pageSize, final byte fill) {
+        final TreeMap<Long, byte[]> out = new TreeMap<Long, byte[]>();
+        forEachRange(new RangeVisitor() {
+            long lastPage = -1;
+            public void range(long address, byte[] data, int offset, int length) {
+                long first = address - (address % pageSize);
+                long last = (address + length - 1) - ((address + length - 1) % pageSize);
+                for (long start = first; start <= last; start += pageSize) {
+                    if (start != lastPage) {
+                        byte[] page = new byte[pageSize];
+                        read(start, page, 0, pageSize, fill);
+                        out.put(start, page);
+                        lastPage = start;
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    static final byte[] HEX_VALUE = new byte[128];
+    static final byte[] HEX_DIGIT = "0123456789ABCDEF".getBytes();
+
+    static {
+        Arrays.fill(HEX_VALUE, (byte)-1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUE['0' + i] = (byte)i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUE['a' + i] = (byte)(10 + i);
+            HEX_VALUE['A' + i] = (byte)(10 + i);
+        }
+    }
+
+    public void load(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Read an Intel HEX file into the image.  Records that run past the end
+    // of a 64KB segment carry on into the next one.
+    public void load(InputStream stream) throws IOException {
+        HexReader reader = new HexReader();
+        byte[] buffer = new byte[65536];
+        int n;
+        while ((n = stream.read(buffer)) > 0) {
+            for (int i = 0; i < n; i++) {
+                if (reader.add(buffer[i])) {
+                    return;
+                }
+            }
+        }
+        reader.add((byte)'\n');
+    }
+
+    // Parses HEX records a character at a time into a reused buffer.
+    class HexReader {
+        byte[] record = new byte[5 + 255];
+        int recLen = 0;
+        int nibble = -1;
+        boolean inRecord = false;
+        boolean bad = false;
+        int line = 1;
+
+        long segmentBase = 0;
+        long linearBase = 0;
+
+        // Returns true once the end of file record has been seen.
+        boolean add(int c) throws IOException {
+            if (c == ':') {
+                inRecord = true;
+                bad = false;
+                recLen = 0;
+                nibble = -1;
+                return false;
+            }
+
+            if ((c == '\n') || (c == '\r')) {
+                if (c == '\n') {
+                    line++;
+                }
+                if (!inRecord) {
+                    return false;
+                }
+                inRecord = false;
+                return endRecord();
+            }
+
+            if (!inRecord || (c == ' ') || (c == '\t')) {
+                return false;
+            }
+
+            int v = (c >= 0) && (c < 128) ? HEX_VALUE[c] : -1;
+            if (v < 0) {
+                bad = true;
+            } else if (nibble == -1) {
+                nibble = v;
+            } else {
+                if (recLen == record.length) {
+                    bad = true;
+                } else {
+                    record[recLen++] = (byte)((nibble << 4) | v);
+                }
+                nibble = -1;
+            }
+            return false;
+        }
+
+        boolean endRecord() throws IOException {
+            if (bad || (nibble != -1) || (recLen < 5) || (recLen != (record[0] & 0xFF) + 5)) {
+                throw new IOException("Malformed record on line " + (line - 1));
+            }
+
+            int sum = 0;
+            for (int j = 0; j < recLen; j++) {
+                sum += record[j];
+            }
+            if ((sum & 0xFF) != 0) {
+                throw new IOException("Checksum error on line " + (line - 1));
+            }
+
+            int len = record[0] & 0xFF;
+            int off = ((record[1] & 0xFF) << 8) | (record[2] & 0xFF);
+
+            switch (record[3]) {
+                case 0x00: // Data
+                    set(linearBase + segmentBase + off, record, 4, len);
+                    break;
+                case 0x01: // End of file
+                    return true;
+                case 0x02: // Extended segment address
+                    segmentBase = (((record[4] & 0xFF) << 8) | (record[5] & 0xFF)) * 16L;
+                    break;
+                case 0x04: // Extended linear address
+                    linearBase = (((record[4] & 0xFF) << 8) | (record[5] & 0xFF)) * 65536L;
+                    break;
+                default: // Start addresses aren't needed
+                    break;
+            }
+            return false;
+        }
+    }
+
+    public void save(File f) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+        try {
+            save(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    // Write the image as an Intel HEX file with 16 bytes per data record.
+    public void save(final OutputStream out) throws IOException {
+        final byte[] line = new byte[1 + (5 + 16) * 2 + 1];
+        final long[] upper = new long[] { 0 };
+        final IOException[] error = new IOException[1];
+
+        forEachRange(new RangeVisitor() {
+            public void range(long address, byte[] data, int offset, int length) {
+                try {
+                    while (length > 0) {
+                        if ((address >>> 16) != upper[0]) {
+                            upper[0] = address >>> 16;
+                            byte[] ext = new byte[] { (byte)(upper[0] >> 8), (byte)upper[0] };
+                            writeRecord(out, line, 0, 0x04, ext, 0, 2);
+                        }
+                        int n = Math.min(16, length);
+                        n = (int)Math.min(n, 0x10000 - (address & 0xFFFF));
+                        writeRecord(out, line, (int)(address & 0xFFFF), 0x00, data, offset, n);
+                        address += n;
+                        offset += n;
+                        length -= n;
+                    }
+                } catch (IOException ex) {
+                    if (error[0] == null) {
+                        error[0] = ex;
+                    }
+                }
+            }
+        });
+
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        writeRecord(out, line, 0, 0x01, null, 0, 0);
+        out.flush();
+    }
+
+    static void writeRecord(OutputStream out, byte[] line, int address, int type, byte[] data, int offset, int length) throws IOException {
+        int pos = 0;
+        line[pos++] = ':';
+        int sum = length + (address >> 8) + address + type;
+        pos = putHex(line, pos, length);
+        pos = putHex(line, pos, address >> 8);
+        pos = putHex(line, pos, address);
+        pos = putHex(line, pos, type);
+        for (int i = 0; i < length; i++) {
+            sum += data[offset + i];
+            pos = putHex(line, pos, data[offset + i]);
+        }
+        pos = putHex(line, pos, -sum);
+        line[pos++] = '\n';
+        out.write(line, 0, pos);
+    }
+
+    static int putHex(byte[] line, int pos, int b) {
+        line[pos++] = HEX_DIGIT[(b >> 4) & 0x0F];
+        line[pos++] = HEX_DIGIT[b & 0x0F];
+        return pos;
+    }
+}